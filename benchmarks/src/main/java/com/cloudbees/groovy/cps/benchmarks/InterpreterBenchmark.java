@@ -0,0 +1,132 @@
+package com.cloudbees.groovy.cps.benchmarks;
+
+import com.cloudbees.groovy.cps.DepthTrackingEnv;
+import groovy.lang.Script;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs representative scripts from start to end through the CPS interpreter.
+ *
+ * <p>
+ * Each benchmark compiles its script once and measures running a fresh instance of it,
+ * both with {@link com.cloudbees.groovy.cps.sandbox.DefaultInvoker} and in the sandbox.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InterpreterBenchmark {
+
+    static final String LOOPS =
+            "int sum = 0\n" +
+            "for (int i = 0; i < 1000; i++) {\n" +
+            "  sum += i\n" +
+            "}\n" +
+            "int j = 0\n" +
+            "while (j < 1000) {\n" +
+            "  j++\n" +
+            "}\n" +
+            "return sum + j\n";
+
+    static final String CLOSURES =
+            "def numbers = (1..200).toList()\n" +
+            "def doubled = numbers.collect { it * 2 }\n" +
+            "int sum = 0\n" +
+            "doubled.each { sum += it }\n" +
+            "return doubled.findAll { it % 3 == 0 }.size() + sum\n";
+
+    // leave some room for the frames of the script itself
+    static final String RECURSION =
+            "int depth(int n) {\n" +
+            "  return n == 0 ? 0 : 1 + depth(n - 1)\n" +
+            "}\n" +
+            "return depth(" + (DepthTrackingEnv.MAX_LEGAL_DEPTH - 8) + ")\n";
+
+    static final String EXCEPTIONS =
+            "void fail(int i) {\n" +
+            "  throw new IllegalStateException('failure')\n" +
+            "}\n" +
+            "int caught = 0\n" +
+            "for (int i = 0; i < 100; i++) {\n" +
+            "  try {\n" +
+            "    fail(i)\n" +
+            "  } catch (IllegalStateException e) {\n" +
+            "    caught++\n" +
+            "  } finally {\n" +
+            "    caught++\n" +
+            "  }\n" +
+            "}\n" +
+            "return caught\n";
+
+    static final String GSTRINGS =
+            "def sb = new StringBuilder()\n" +
+            "for (int i = 0; i < 200; i++) {\n" +
+            "  def name = \"item${i}\"\n" +
+            "  sb.append(\"${name}: ${i * 2}\\n\")\n" +
+            "}\n" +
+            "return sb.toString().length()\n";
+
+    @Param({"trusted", "sandboxed"})
+    public String invoker;
+
+    private Programs programs;
+    private Class<? extends Script> loops;
+    private Class<? extends Script> closures;
+    private Class<? extends Script> recursion;
+    private Class<? extends Script> exceptions;
+    private Class<? extends Script> gstrings;
+
+    @Setup
+    public void setUp() {
+        programs = new Programs(invoker.equals("sandboxed"));
+        loops = programs.compile(LOOPS);
+        closures = programs.compile(CLOSURES);
+        recursion = programs.compile(RECURSION);
+        exceptions = programs.compile(EXCEPTIONS);
+        gstrings = programs.compile(GSTRINGS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        programs.close();
+    }
+
+    @Benchmark
+    public Object loops() throws Throwable {
+        return programs.runToEnd(loops);
+    }
+
+    @Benchmark
+    public Object closures() throws Throwable {
+        return programs.runToEnd(closures);
+    }
+
+    @Benchmark
+    public Object recursion() throws Throwable {
+        return programs.runToEnd(recursion);
+    }
+
+    @Benchmark
+    public Object exceptions() throws Throwable {
+        return programs.runToEnd(exceptions);
+    }
+
+    @Benchmark
+    public Object gstrings() throws Throwable {
+        return programs.runToEnd(gstrings);
+    }
+}
@@ -0,0 +1,97 @@
+package com.cloudbees.groovy.cps.benchmarks;
+
+import com.cloudbees.groovy.cps.Continuable;
+import com.cloudbees.groovy.cps.CpsTransformer;
+import com.cloudbees.groovy.cps.Envs;
+import com.cloudbees.groovy.cps.Outcome;
+import com.cloudbees.groovy.cps.SandboxCpsTransformer;
+import com.cloudbees.groovy.cps.SerializableScript;
+import com.cloudbees.groovy.cps.sandbox.DefaultInvoker;
+import com.cloudbees.groovy.cps.sandbox.SandboxInvoker;
+import groovy.lang.Binding;
+import groovy.lang.Closure;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.GroovyCategorySupport;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.kohsuke.groovy.sandbox.GroovyInterceptor;
+
+/**
+ * Compiles and runs CPS-transformed scripts the way Pipeline does, either trusted or in the sandbox.
+ *
+ * <p>
+ * Sandboxed programs run with a {@link GroovyInterceptor} that permits everything,
+ * so that they measure the cost of going through the sandbox rather than that of any particular whitelist.
+ * Since interceptors are registered per thread, instances should be used from a single thread.
+ */
+final class Programs implements AutoCloseable {
+    private final boolean sandboxed;
+    private final GroovyShell shell;
+    private final GroovyInterceptor interceptor;
+
+    Programs(boolean sandboxed) {
+        this.sandboxed = sandboxed;
+        ImportCustomizer imports = new ImportCustomizer();
+        imports.addStarImports("com.cloudbees.groovy.cps");
+        CompilerConfiguration cc = new CompilerConfiguration();
+        cc.addCompilationCustomizers(imports);
+        cc.addCompilationCustomizers(sandboxed ? new SandboxCpsTransformer() : new CpsTransformer());
+        cc.setScriptBaseClass(SerializableScript.class.getName());
+        shell = new GroovyShell(cc);
+        if (sandboxed) {
+            interceptor = new GroovyInterceptor() {};
+            interceptor.register();
+        } else {
+            interceptor = null;
+        }
+    }
+
+    ClassLoader getClassLoader() {
+        return shell.getClassLoader();
+    }
+
+    Class<? extends Script> compile(String script) {
+        return shell.parse(script).getClass();
+    }
+
+    /**
+     * Creates a fresh program from a compiled script, ready to be run from the start.
+     */
+    Continuable start(Class<? extends Script> script) {
+        Script s = InvokerHelper.createScript(script, new Binding());
+        return new Continuable(s, Envs.empty(sandboxed ? new SandboxInvoker() : new DefaultInvoker()));
+    }
+
+    /**
+     * Runs the program until it suspends or terminates, with the same categories as the CPS VM thread.
+     */
+    static Outcome run(Continuable program, Object resumeValue) {
+        return GroovyCategorySupport.use(Continuable.categories, new Closure<Outcome>(null) {
+            @Override
+            public Outcome call() {
+                return program.run0(new Outcome(resumeValue, null));
+            }
+        });
+    }
+
+    /**
+     * Runs a program to completion, returning its result.
+     */
+    Object runToEnd(Class<? extends Script> script) throws Throwable {
+        Continuable program = start(script);
+        Outcome o = run(program, null);
+        while (program.isResumable()) {
+            o = run(program, o.replay());
+        }
+        return o.replay();
+    }
+
+    @Override
+    public void close() {
+        if (interceptor != null) {
+            interceptor.unregister();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.cloudbees.groovy.cps.benchmarks;
+
+import com.cloudbees.groovy.cps.Continuable;
+import com.cloudbees.groovy.cps.ObjectInputStreamWithLoader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializes a suspended program, as is done whenever Pipeline saves {@code program.dat}.
+ *
+ * <p>
+ * The program is suspended from inside nested function calls, loops and closures,
+ * with some local state on each frame, so that its continuation resembles that of a real Pipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SerializationBenchmark {
+
+    static final String SUSPENDED =
+            "def stage(String name, int depth, Closure body) {\n" +
+            "  def labels = ['build', 'test', 'deploy'].collect { \"${name}-${it}\" }\n" +
+            "  return depth == 0 ? body(labels) : stage(name + '/' + depth, depth - 1, body)\n" +
+            "}\n" +
+            "def results = [:]\n" +
+            "for (int i = 0; i < 3; i++) {\n" +
+            "  results[\"branch${i}\"] = stage(\"branch${i}\", 10) { labels ->\n" +
+            "    labels.each { label -> results[label] = label.length() }\n" +
+            "    return i == 2 ? Continuable.suspend(results.size()) : i\n" +
+            "  }\n" +
+            "}\n" +
+            "return results.size()\n";
+
+    @Param({"trusted", "sandboxed"})
+    public String invoker;
+
+    private Programs programs;
+    private Continuable program;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws Throwable {
+        programs = new Programs(invoker.equals("sandboxed"));
+        program = programs.start(programs.compile(SUSPENDED));
+        Programs.run(program, null);
+        if (!program.isResumable()) {
+            throw new IllegalStateException("program did not suspend");
+        }
+        serialized = serialize();
+    }
+
+    @TearDown
+    public void tearDown() {
+        programs.close();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(program);
+        }
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStreamWithLoader ois = new ObjectInputStreamWithLoader(new ByteArrayInputStream(serialized), programs.getClassLoader())) {
+            return ois.readObject();
+        }
+    }
+
+    @Benchmark
+    public Object roundTrip() throws IOException, ClassNotFoundException {
+        byte[] bytes = serialize();
+        try (ObjectInputStreamWithLoader ois = new ObjectInputStreamWithLoader(new ByteArrayInputStream(bytes), programs.getClassLoader())) {
+            return ois.readObject();
+        }
+    }
+}
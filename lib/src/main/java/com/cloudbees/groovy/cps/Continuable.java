@@ -153,6 +153,44 @@ public class Continuable implements Serializable {
         return n.yield;
     }
 
+    /**
+     * Like {@link #run0(Outcome)}, but gives up control once the program has run for the given number of steps
+     * or nanoseconds without suspending, so that a long computation cannot monopolize the calling thread.
+     *
+     * <p>
+     * In that case, the program is left between two steps and {@link #PREEMPTED} is returned.
+     * Resuming it with any value continues where it left off,
+     * while resuming it with an exception throws that exception from there.
+     *
+     * @param maxSteps
+     *      maximum number of steps to run, or zero or less for no limit
+     * @param maxNanos
+     *      maximum time to run, or zero or less for no limit
+     */
+    public Outcome run0(final Outcome cn, long maxSteps, long maxNanos) {
+        Next n = cn.resumeFrom(e,k);
+
+        long deadline = maxNanos > 0 ? System.nanoTime() + maxNanos : 0;
+        long steps = 0;
+        while(n.yield==null) {
+            if (maxSteps > 0 && steps >= maxSteps
+                    // System.nanoTime() is cheap, but not compared to a step
+                    || maxNanos > 0 && (steps & (CLOCK_CHECK_INTERVAL - 1)) == CLOCK_CHECK_INTERVAL - 1 && System.nanoTime() - deadline >= 0) {
+                // Next ignores the value it receives, so resuming continues with the step we stopped at
+                e = n.e;
+                k = n;
+                return new Outcome(PREEMPTED, null);
+            }
+            n = n.step();
+            steps++;
+        }
+
+        e = n.e;
+        k = n.k;
+
+        return n.yield;
+    }
+
     /**
      * Checks if this {@link Continuable} is pointing at the end of the program which cannot
      * be resumed.
@@ -202,6 +240,20 @@ public class Continuable implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of steps between two checks of the clock in {@link #run0(Outcome, long, long)}. Must be a power of two.
+     */
+    private static final int CLOCK_CHECK_INTERVAL = 64;
+
+    /**
+     * Value yielded by {@link #run0(Outcome, long, long)} when the program ran out of its budget before suspending.
+     */
+    public static final Object PREEMPTED = Preempted.INSTANCE;
+
+    private enum Preempted {
+        INSTANCE
+    }
+
     /**
      * The artificial {@link StackTraceElement} that appears in the stack trace when the CPS library fixes up
      * the stack trace. This separator separates the regular call stack that tracks the actual call stack
@@ -32,6 +32,7 @@ import org.codehaus.groovy.control.Janitor;
 import org.codehaus.groovy.control.LabelVerifier;
 import org.codehaus.groovy.control.SourceUnit;
 import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.control.messages.WarningMessage;
 import org.codehaus.groovy.runtime.powerassert.SourceText;
 import org.codehaus.groovy.syntax.SyntaxException;
 import org.codehaus.groovy.syntax.Token;
@@ -223,6 +224,11 @@ public class CpsTransformer extends CompilationCustomizer implements GroovyCodeV
             visitNontransformedMethod(m);
             return;
         }
+        if (config.isNonCpsInference() && new NonCpsInference(m).cannotSuspend()) {
+            reportInferredNonCps(m);
+            visitNontransformedMethod(m);
+            return;
+        }
 
         final AtomicReference<Expression> body = new AtomicReference<>();
 
@@ -278,6 +284,18 @@ public class CpsTransformer extends CompilationCustomizer implements GroovyCodeV
         }
     }
 
+    /**
+     * Reports a method that is left untransformed because it cannot suspend.
+     *
+     * @see TransformerConfiguration#withNonCpsInference(boolean)
+     */
+    protected void reportInferredNonCps(MethodNode m) {
+        LOGGER.log(Level.FINE, "in {0} inferred {1} to be @NonCPS", new Object[] {classNode.getName(), m.getTypeDescriptor()});
+        sourceUnit.getErrorCollector().addWarning(WarningMessage.PARANOIA,
+                m.getName() + " cannot suspend, so it is compiled as if it were @NonCPS",
+                Token.newString(m.getName(), m.getLineNumber(), m.getColumnNumber()), sourceUnit);
+    }
+
     /**
      * Generates code that instantiates a new {@link Builder}.
      *
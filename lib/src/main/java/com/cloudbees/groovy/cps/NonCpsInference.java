@@ -0,0 +1,383 @@
+package com.cloudbees.groovy.cps;
+
+import com.cloudbees.groovy.cps.impl.CpsCallableInvocation;
+import java.util.List;
+import java.util.Set;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.MethodNode;
+import org.codehaus.groovy.ast.Parameter;
+import org.codehaus.groovy.ast.Variable;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.BitwiseNegationExpression;
+import org.codehaus.groovy.ast.expr.BooleanExpression;
+import org.codehaus.groovy.ast.expr.CastExpression;
+import org.codehaus.groovy.ast.expr.ClassExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.DeclarationExpression;
+import org.codehaus.groovy.ast.expr.EmptyExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.GStringExpression;
+import org.codehaus.groovy.ast.expr.ListExpression;
+import org.codehaus.groovy.ast.expr.MapEntryExpression;
+import org.codehaus.groovy.ast.expr.MapExpression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.NotExpression;
+import org.codehaus.groovy.ast.expr.PostfixExpression;
+import org.codehaus.groovy.ast.expr.PrefixExpression;
+import org.codehaus.groovy.ast.expr.RangeExpression;
+import org.codehaus.groovy.ast.expr.TernaryExpression;
+import org.codehaus.groovy.ast.expr.TupleExpression;
+import org.codehaus.groovy.ast.expr.UnaryMinusExpression;
+import org.codehaus.groovy.ast.expr.UnaryPlusExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.EmptyStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.IfStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.syntax.Types;
+
+/**
+ * Decides whether a method can be compiled as if it were annotated with {@link NonCPS},
+ * because it provably never suspends.
+ *
+ * <p>
+ * The analysis is deliberately conservative. A method qualifies only if its body consists of
+ * local variables, literals, {@code if}/{@code else}, and operators whose operands are statically known to be
+ * JDK value types ({@link String}, primitives and their wrappers). Such code cannot reach a
+ * {@link CpsCallableInvocation}, a step, or any other user-defined method, and always finishes quickly.
+ * Anything else, such as loops (which need their safepoints to be interruptible), closures,
+ * method calls on untyped receivers, property access, implicit {@code this} calls, constructors, or
+ * {@code switch}/{@code try}/{@code assert}, makes the method ineligible.
+ *
+ * <p>
+ * If this analysis is ever wrong, the method behaves as if it had been explicitly annotated with {@link NonCPS},
+ * and the usual mismatch detection in {@link CpsCallableInvocation#checkMismatch} reports it.
+ *
+ * @see TransformerConfiguration#withNonCpsInference(boolean)
+ */
+class NonCpsInference {
+    /**
+     * Final JDK types whose operators never dispatch to user code.
+     */
+    private static final Set<String> VALUE_TYPES = Set.of(
+            "java.lang.String", "java.lang.Boolean", "java.lang.Character",
+            "java.lang.Byte", "java.lang.Short", "java.lang.Integer", "java.lang.Long",
+            "java.lang.Float", "java.lang.Double");
+
+    /**
+     * Classes whose static methods never call back into user code when given value type arguments.
+     */
+    private static final Set<String> STATIC_RECEIVERS = Set.of("java.lang.Math", "java.lang.String", "java.lang.Integer", "java.lang.Long");
+
+    private final MethodNode method;
+
+    NonCpsInference(MethodNode method) {
+        this.method = method;
+    }
+
+    /**
+     * Returns true if the method cannot suspend and so does not need to be CPS-transformed.
+     */
+    boolean cannotSuspend() {
+        if (method.getDeclaringClass().isScript() && method.getName().equals("run") && method.getParameters().length == 0) {
+            return false; // the script body is where the program starts, it must always be transformed
+        }
+        for (Parameter p : method.getParameters()) {
+            if (p.hasInitialExpression()) {
+                return false;
+            }
+        }
+        return method.getCode() != null && statement(method.getCode(), true);
+    }
+
+    /**
+     * @param tail
+     *      Whether the statement is in tail position, where the value of an expression statement
+     *      becomes the implicit return value of the method.
+     */
+    private boolean statement(Statement s, boolean tail) {
+        if (s instanceof BlockStatement) {
+            List<Statement> statements = ((BlockStatement) s).getStatements();
+            for (int i = 0; i < statements.size(); i++) {
+                if (!statement(statements.get(i), tail && i == statements.size() - 1)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (s instanceof ExpressionStatement) {
+            Expression e = ((ExpressionStatement) s).getExpression();
+            return tail ? assignable(method.getReturnType(), e) : evaluable(e);
+        }
+        if (s instanceof ReturnStatement) {
+            return assignable(method.getReturnType(), ((ReturnStatement) s).getExpression());
+        }
+        if (s instanceof IfStatement) {
+            IfStatement is = (IfStatement) s;
+            return valueType(is.getBooleanExpression()) != null && statement(is.getIfBlock(), tail) && statement(is.getElseBlock(), tail);
+        }
+        // Loops are never inferred: compiled as NonCPS they would lose their safepoints and run uninterruptibly.
+        return s instanceof EmptyStatement;
+    }
+
+    /**
+     * Can the expression be evaluated without possibly calling user code?
+     */
+    private boolean evaluable(Expression e) {
+        if (e instanceof ConstantExpression || e instanceof ClassExpression) {
+            return true;
+        }
+        if (e instanceof VariableExpression) {
+            return local((VariableExpression) e) != null;
+        }
+        if (e instanceof DeclarationExpression) {
+            DeclarationExpression de = (DeclarationExpression) e;
+            if (de.isMultipleAssignmentDeclaration()) {
+                return false;
+            }
+            VariableExpression v = de.getVariableExpression();
+            return de.getRightExpression() instanceof EmptyExpression || assignable(v.getOriginType(), de.getRightExpression());
+        }
+        if (e instanceof BinaryExpression && ((BinaryExpression) e).getOperation().getType() == Types.ASSIGN) {
+            BinaryExpression be = (BinaryExpression) e;
+            if (!(be.getLeftExpression() instanceof VariableExpression)) {
+                return false;
+            }
+            Variable v = local((VariableExpression) be.getLeftExpression());
+            return v != null && assignable(v.getOriginType(), be.getRightExpression());
+        }
+        if (e instanceof TernaryExpression) { // including ElvisOperatorExpression
+            TernaryExpression te = (TernaryExpression) e;
+            return valueType(te.getBooleanExpression()) != null && evaluable(te.getTrueExpression()) && evaluable(te.getFalseExpression());
+        }
+        if (e instanceof ListExpression) {
+            return all(((ListExpression) e).getExpressions());
+        }
+        if (e instanceof MapExpression) {
+            for (MapEntryExpression me : ((MapExpression) e).getMapEntryExpressions()) {
+                if (!(me.getKeyExpression() instanceof ConstantExpression) || !evaluable(me.getValueExpression())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (e instanceof RangeExpression) {
+            RangeExpression re = (RangeExpression) e;
+            return valueType(re.getFrom()) != null && valueType(re.getTo()) != null;
+        }
+        if (e instanceof GStringExpression) {
+            for (Expression v : ((GStringExpression) e).getValues()) {
+                if (valueType(v) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (e instanceof MethodCallExpression) {
+            MethodCallExpression mce = (MethodCallExpression) e;
+            if (mce.isImplicitThis() || mce.isSpreadSafe() || !(mce.getMethod() instanceof ConstantExpression)) {
+                return false;
+            }
+            Expression receiver = mce.getObjectExpression();
+            boolean knownReceiver = receiver instanceof ClassExpression
+                    ? STATIC_RECEIVERS.contains(receiver.getType().getName())
+                    : valueType(receiver) != null;
+            if (!knownReceiver || !(mce.getArguments() instanceof ArgumentListExpression)) {
+                return false;
+            }
+            for (Expression a : ((TupleExpression) mce.getArguments()).getExpressions()) {
+                if (valueType(a) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return valueType(e) != null;
+    }
+
+    /**
+     * Computes the static type of an expression whose evaluation cannot call user code,
+     * when that type is a JDK value type, so that operators applied to it cannot call user code either.
+     *
+     * @return null if the expression is not known to evaluate to a value type.
+     */
+    private ClassNode valueType(Expression e) {
+        if (e instanceof ConstantExpression) {
+            Object v = ((ConstantExpression) e).getValue();
+            return v == null ? null : valueType(ClassHelper.make(v.getClass()));
+        }
+        if (e instanceof VariableExpression) {
+            Variable v = local((VariableExpression) e);
+            return v == null || v.isDynamicTyped() ? null : valueType(v.getOriginType());
+        }
+        if (e instanceof BooleanExpression || e instanceof NotExpression) {
+            Expression inner = e instanceof BooleanExpression ? ((BooleanExpression) e).getExpression() : ((NotExpression) e).getExpression();
+            return valueType(inner) == null ? null : ClassHelper.boolean_TYPE;
+        }
+        if (e instanceof UnaryMinusExpression) {
+            return numeric(valueType(((UnaryMinusExpression) e).getExpression()));
+        }
+        if (e instanceof UnaryPlusExpression) {
+            return numeric(valueType(((UnaryPlusExpression) e).getExpression()));
+        }
+        if (e instanceof BitwiseNegationExpression) {
+            return numeric(valueType(((BitwiseNegationExpression) e).getExpression()));
+        }
+        if (e instanceof PrefixExpression) {
+            return incrementable(((PrefixExpression) e).getExpression());
+        }
+        if (e instanceof PostfixExpression) {
+            return incrementable(((PostfixExpression) e).getExpression());
+        }
+        if (e instanceof CastExpression) {
+            CastExpression ce = (CastExpression) e;
+            ClassNode target = valueType(ce.getType());
+            return target != null && valueType(ce.getExpression()) != null ? target : null;
+        }
+        if (e instanceof TernaryExpression) {
+            TernaryExpression te = (TernaryExpression) e;
+            ClassNode t = valueType(te.getTrueExpression());
+            ClassNode f = valueType(te.getFalseExpression());
+            return valueType(te.getBooleanExpression()) != null && t != null && f != null && t.getName().equals(f.getName()) ? t : null;
+        }
+        if (e instanceof BinaryExpression) {
+            BinaryExpression be = (BinaryExpression) e;
+            int op = be.getOperation().getType();
+            int compound = compoundBase(op);
+            if (compound != -1) { // x += y
+                if (local(be.getLeftExpression()) == null) {
+                    return null;
+                }
+                op = compound;
+            }
+            ClassNode lhs = valueType(be.getLeftExpression());
+            ClassNode rhs = valueType(be.getRightExpression());
+            if (lhs == null || rhs == null) {
+                return null;
+            }
+            if (isComparison(op) || op == Types.LOGICAL_AND || op == Types.LOGICAL_OR) {
+                return ClassHelper.boolean_TYPE;
+            }
+            if (op == Types.PLUS && (isString(lhs) || isString(rhs))) {
+                return ClassHelper.STRING_TYPE;
+            }
+            if (isArithmetic(op) && !isString(lhs) && !isString(rhs)) {
+                return ClassHelper.Number_TYPE;
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private ClassNode incrementable(Expression operand) {
+        return local(operand) != null ? numeric(valueType(operand)) : null;
+    }
+
+    private boolean assignable(ClassNode target, Expression e) {
+        if (!evaluable(e)) {
+            return false;
+        }
+        if (target == null || target.equals(ClassHelper.DYNAMIC_TYPE) || target.equals(ClassHelper.OBJECT_TYPE) || target.equals(ClassHelper.VOID_TYPE)) {
+            return true; // no coercion needed
+        }
+        if (e instanceof ConstantExpression && ((ConstantExpression) e).isNullExpression()) {
+            return !ClassHelper.isPrimitiveType(target);
+        }
+        // coercing anything else could call toString(), asType(), etc.
+        return valueType(target) != null && valueType(e) != null;
+    }
+
+    private boolean all(List<Expression> expressions) {
+        for (Expression e : expressions) {
+            if (!evaluable(e)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the local variable or parameter referenced by the expression, or null if it's anything else
+     *      such as a field, a property, a binding variable, or {@code this}.
+     */
+    private static Variable local(Expression e) {
+        if (!(e instanceof VariableExpression)) {
+            return null;
+        }
+        VariableExpression ve = (VariableExpression) e;
+        if (ve.isThisExpression() || ve.isSuperExpression()) {
+            return null;
+        }
+        Variable v = ve.getAccessedVariable();
+        return v instanceof Parameter || v instanceof VariableExpression ? v : null;
+    }
+
+    /**
+     * Checks a declared type. {@link Number}, which arithmetic on value types is inferred to produce,
+     * is not accepted here, since a variable or cast of that type may hold a script-defined subclass.
+     */
+    private static ClassNode valueType(ClassNode type) {
+        if (type == null) {
+            return null;
+        }
+        ClassNode wrapper = ClassHelper.isPrimitiveType(type) ? ClassHelper.getWrapper(type) : type;
+        return VALUE_TYPES.contains(wrapper.getName()) ? type : null;
+    }
+
+    private static ClassNode numeric(ClassNode type) {
+        return type == null || isString(type) ? null : type;
+    }
+
+    private static boolean isString(ClassNode type) {
+        return type.getName().equals(ClassHelper.STRING_TYPE.getName());
+    }
+
+    private static boolean isComparison(int op) {
+        switch (op) {
+        case Types.COMPARE_EQUAL:
+        case Types.COMPARE_NOT_EQUAL:
+        case Types.COMPARE_LESS_THAN:
+        case Types.COMPARE_LESS_THAN_EQUAL:
+        case Types.COMPARE_GREATER_THAN:
+        case Types.COMPARE_GREATER_THAN_EQUAL:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the arithmetic operator that a compound assignment operator applies, or -1.
+     */
+    private static int compoundBase(int op) {
+        switch (op) {
+        case Types.PLUS_EQUAL:      return Types.PLUS;
+        case Types.MINUS_EQUAL:     return Types.MINUS;
+        case Types.MULTIPLY_EQUAL:  return Types.MULTIPLY;
+        case Types.DIVIDE_EQUAL:    return Types.DIVIDE;
+        case Types.INTDIV_EQUAL:    return Types.INTDIV;
+        case Types.MOD_EQUAL:       return Types.MOD;
+        case Types.POWER_EQUAL:     return Types.POWER;
+        default:                    return -1;
+        }
+    }
+
+    private static boolean isArithmetic(int op) {
+        switch (op) {
+        case Types.PLUS:
+        case Types.MINUS:
+        case Types.MULTIPLY:
+        case Types.DIVIDE:
+        case Types.INTDIV:
+        case Types.MOD:
+        case Types.POWER:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.util.List;
 public class TransformerConfiguration {
     private ClassNode closureType = new ClassNode(CpsClosure.class);
     private List<Safepoint> safepoints = new ArrayList<>();
+    private boolean nonCpsInference;
 
     public ClassNode getClosureType() {
         return closureType;
@@ -25,6 +26,10 @@ public class TransformerConfiguration {
         return safepoints;
     }
 
+    public boolean isNonCpsInference() {
+        return nonCpsInference;
+    }
+
     public TransformerConfiguration withClosureType(ClassNode closureType) {
         this.closureType = closureType;
         return this;
@@ -51,4 +56,18 @@ public class TransformerConfiguration {
         safepoints.add(new Safepoint(clazz,methodName));
         return this;
     }
+
+    /**
+     * Compiles methods that provably cannot suspend as if they were annotated with {@link NonCPS}.
+     *
+     * <p>
+     * Such methods run as native bytecode, which is much faster than interpreting them.
+     * The analysis is conservative; see {@link NonCpsInference} for what qualifies.
+     * Each inferred method is logged, and reported as a compiler warning at the
+     * {@link org.codehaus.groovy.control.messages.WarningMessage#PARANOIA} level.
+     */
+    public TransformerConfiguration withNonCpsInference(boolean b) {
+        this.nonCpsInference = b;
+        return this;
+    }
 }
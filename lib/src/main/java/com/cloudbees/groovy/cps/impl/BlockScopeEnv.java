@@ -1,10 +1,10 @@
 package com.cloudbees.groovy.cps.impl;
 
 import com.cloudbees.groovy.cps.Env;
-import com.google.common.collect.Maps;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Map;
 
 /**
@@ -14,10 +14,17 @@ import java.util.Map;
  */
 // TODO: should be package local once all the impls move into this class
 public class BlockScopeEnv extends ProxyEnv {
-    /** To conserve memory, lazily declared using {@link Collections#EMPTY_MAP} until we declare variables, then converted to a (small) {@link HashMap} */
-    private Map<String,Object> locals;
+    /** Variables declared in this block. To conserve memory, lazily created when the first variable is declared. */
+    @CheckForNull
+    private LocalVariableSlots slots;
 
-    /** To conserve memory, lazily declared using {@link Collections#EMPTY_MAP} until we declare variables, then converted to a (small) {@link HashMap} */
+    /**
+     * Local variables and their types as serialized before {@link LocalVariableSlots} were introduced.
+     * Only ever non-null while an old program is being deserialized.
+     */
+    @Deprecated
+    private Map<String,Object> locals;
+    @Deprecated
     private Map<String, Class> types;
 
     public BlockScopeEnv(Env parent) {
@@ -26,52 +33,47 @@ public class BlockScopeEnv extends ProxyEnv {
 
     public BlockScopeEnv(Env parent, int localsSize) {
         super(parent);
-        if (localsSize <= 0) {
-            // Lazily declare using EMPTY_MAP to conserve memory until we actually declare some variables
-            locals = Collections.EMPTY_MAP;
-            types = Collections.EMPTY_MAP;
-        } else {
-            locals = Maps.newHashMapWithExpectedSize(localsSize);
-            types = Maps.newHashMapWithExpectedSize(localsSize);
+        if (localsSize > 0) {
+            slots = new LocalVariableSlots(localsSize);
         }
     }
 
-    public void declareVariable(Class type, String name) {
-        if (locals == Collections.EMPTY_MAP) {
-            this.locals = new HashMap<>(2);
-        }
-        locals.put(name, null);
+    private int slotOf(String name) {
+        return slots==null ? -1 : slots.slotOf(name);
+    }
 
-        if (types == null || types == Collections.EMPTY_MAP) {
-            types = new HashMap<>(2);
+    public void declareVariable(Class type, String name) {
+        if (slots==null) {
+            slots = new LocalVariableSlots(2);
         }
-        types.put(name, type);
+        slots.declare(type, name);
     }
 
     public Object getLocalVariable(String name) {
-        if (locals.containsKey(name))
-            return locals.get(name);
-        else
-            return parent.getLocalVariable(name);
-    }
-
-    /** Because might deserialize old version of class with null value for field */
-    private Map<String, Class> getTypes() {
-        if (types == null) {
-            this.types = Collections.EMPTY_MAP;
-        }
-        return this.types;
+        int slot = slotOf(name);
+        return slot<0 ? parent.getLocalVariable(name) : slots.get(slot);
     }
 
     public Class getLocalVariableType(String name) {
-        return (locals.containsKey(name)) ? getTypes().get(name) : parent.getLocalVariableType(name);
+        int slot = slotOf(name);
+        return slot<0 ? parent.getLocalVariableType(name) : slots.getType(slot);
     }
 
     public void setLocalVariable(String name, Object value) {
-        if (locals.containsKey(name))
-            locals.put(name,value);
-        else
+        int slot = slotOf(name);
+        if (slot<0)
             parent.setLocalVariable(name, value);
+        else
+            slots.set(slot, value);
+    }
+
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ois.defaultReadObject();
+        if (locals!=null) {
+            slots = locals.isEmpty() ? null : LocalVariableSlots.fromMaps(locals, types);
+        }
+        locals = null;
+        types = null;
     }
 
     private static final long serialVersionUID = 1L;
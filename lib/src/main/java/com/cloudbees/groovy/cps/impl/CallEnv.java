@@ -5,10 +5,7 @@ import com.cloudbees.groovy.cps.DepthTrackingEnv;
 import com.cloudbees.groovy.cps.Env;
 import com.cloudbees.groovy.cps.Next;
 import com.cloudbees.groovy.cps.sandbox.Invoker;
-import com.google.common.collect.Maps;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -20,7 +17,16 @@ import java.util.Map;
 /*package*/ abstract class CallEnv implements DepthTrackingEnv {
     private final Continuation returnAddress;
 
-    /** To conserve memory, lazily declared using {@link Collections#EMPTY_MAP} until we declare variables, then converted to a (small) {@link HashMap} */
+    /** Variables declared in this call. To conserve memory, lazily created when the first variable is declared. */
+    @CheckForNull
+    LocalVariableSlots slots;
+
+    /**
+     * Declared types of the variables, as serialized before {@link #slots} were introduced.
+     * Only ever non-null while an old program is being deserialized.
+     * @see #migrateLegacyLocals
+     */
+    @Deprecated
     private Map<String, Class> types;
 
     /**
@@ -54,32 +60,47 @@ import java.util.Map;
         this.callSiteLoc = loc;
         this.invoker = caller==null ? Invoker.INSTANCE : caller.getInvoker();
         assert returnAddress!=null;
-        if (localsCount <= 0) {
-            types = Collections.EMPTY_MAP;
-        } else {
-            types = Maps.newHashMapWithExpectedSize(localsCount);
+        if (localsCount > 0) {
+            slots = new LocalVariableSlots(localsCount);
         }
         depth = (caller instanceof DepthTrackingEnv) ? ((DepthTrackingEnv) caller).getDepth() + 1 : 1;
     }
 
-    /** Because might deserialize old version of class with null value for field */
-    protected Map<String, Class> getTypes() {
-        if (types == null) {
-            this.types = Collections.EMPTY_MAP;
+    /**
+     * @return the slot of the variable declared in this call, or -1 if there's no such variable.
+     */
+    final int slotOf(String name) {
+        return slots==null ? -1 : slots.slotOf(name);
+    }
+
+    /**
+     * Declares a variable in this call.
+     * @return the slot of the variable.
+     */
+    final int declareSlot(Class type, String name) {
+        if (slots==null) {
+            slots = new LocalVariableSlots(2);
         }
-        return this.types;
+        return slots.declare(type, name);
     }
 
-    /** Used when we are actually going to mutate the types info */
-    protected Map<String,Class> getTypesForMutation() {
-        if (types == null || types == Collections.EMPTY_MAP) {
-            this.types = new HashMap<>(2);
+    /**
+     * Called by subtypes during deserialization to convert their map of local variables,
+     * as written before {@link #slots} were introduced, together with {@link #types}.
+     *
+     * @param legacyLocals
+     *      null if the object was serialized in the current form, in which case this is a no-op.
+     */
+    final void migrateLegacyLocals(@CheckForNull Map<String,Object> legacyLocals) {
+        if (legacyLocals!=null) {
+            slots = LocalVariableSlots.fromMaps(legacyLocals, types);
         }
-        return this.types;
+        types = null;
     }
 
     public Class getLocalVariableType(String name) {
-        return getTypes().get(name);
+        int slot = slotOf(name);
+        return slot<0 ? null : slots.getType(slot);
     }
 
     /**
@@ -1,6 +1,8 @@
 package com.cloudbees.groovy.cps.impl;
 
+import com.cloudbees.groovy.cps.sandbox.CachingInvoker;
 import com.cloudbees.groovy.cps.sandbox.CallSiteTag;
+import com.cloudbees.groovy.cps.sandbox.DefaultInvoker;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.util.Collection;
@@ -18,6 +20,12 @@ public abstract class CallSiteBlockSupport implements CallSiteBlock {
      */
     private final Collection<CallSiteTag> tags;
 
+    /**
+     * Inline cache of the calls made from this call site through {@link DefaultInvoker}.
+     * Lazily created, and never persisted.
+     */
+    private transient volatile CachingInvoker cachingInvoker;
+
     public CallSiteBlockSupport(Collection<CallSiteTag> tags) {
         if (tags.isEmpty())     tags = null;
         this.tags = tags;
@@ -29,5 +37,14 @@ public abstract class CallSiteBlockSupport implements CallSiteBlock {
         return Collections.unmodifiableCollection(tags);
     }
 
+    @NonNull
+    public CachingInvoker getCachingInvoker() {
+        CachingInvoker i = cachingInvoker;
+        if (i==null) {
+            cachingInvoker = i = new CachingInvoker();
+        }
+        return i;
+    }
+
     private static final long serialVersionUID = 1L;
 }
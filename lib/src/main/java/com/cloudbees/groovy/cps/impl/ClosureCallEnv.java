@@ -2,10 +2,9 @@ package com.cloudbees.groovy.cps.impl;
 
 import com.cloudbees.groovy.cps.Continuation;
 import com.cloudbees.groovy.cps.Env;
-import com.google.common.collect.Maps;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Map;
 
 /**
@@ -14,8 +13,12 @@ import java.util.Map;
  * @author Kohsuke Kawaguchi
  */
 class ClosureCallEnv extends CallEnv {
-    /** Lazily declared using {@link Collections#EMPTY_MAP} until we declare variables, then converted to a (small) {@link HashMap} *//** To conserve memory, lazily declared using {@link Collections#EMPTY_MAP} until we declare variables, then converted to a (small) {@link HashMap} */
-    Map<String,Object> locals;
+    /**
+     * Local variables as serialized before {@link LocalVariableSlots} were introduced.
+     * Only ever non-null while an old program is being deserialized.
+     */
+    @Deprecated
+    private Map<String,Object> locals;
 
     final CpsClosure closure;
 
@@ -32,42 +35,39 @@ class ClosureCallEnv extends CallEnv {
         super(caller,returnAddress,loc, localsSize);
         this.closure = closure;
         this.captured = captured;
-        if (localsSize <= 0) {
-            locals = Collections.EMPTY_MAP;
-        } else {
-            locals = Maps.newHashMapWithExpectedSize(localsSize);
-        }
     }
 
     public void declareVariable(Class type, String name) {
-        if (locals == Collections.EMPTY_MAP) {
-            locals = new HashMap<>(2);
-        }
-        locals.put(name, null);
-        getTypesForMutation().put(name, type);
+        declareSlot(type, name);
     }
 
     public Object getLocalVariable(String name) {
-        if (locals.containsKey(name))
-            return locals.get(name);
-        else
-            return captured.getLocalVariable(name);
+        int slot = slotOf(name);
+        return slot<0 ? captured.getLocalVariable(name) : slots.get(slot);
     }
 
     public void setLocalVariable(String name, Object value) {
-        if (locals.containsKey(name))
-            locals.put(name, value);
-        else
+        int slot = slotOf(name);
+        if (slot<0)
             captured.setLocalVariable(name, value);
+        else
+            slots.set(slot, value);
     }
 
     public Class getLocalVariableType(String name) {
-        return (locals.containsKey(name)) ? getTypes().get(name) : captured.getLocalVariableType(name);
+        int slot = slotOf(name);
+        return slot<0 ? captured.getLocalVariableType(name) : slots.getType(slot);
     }
 
     public Object closureOwner() {
         return closure;
     }
 
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ois.defaultReadObject();
+        migrateLegacyLocals(locals);
+        locals = null;
+    }
+
     private static final long serialVersionUID = 1L;
 }
@@ -9,8 +9,14 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Used to bind an instance method to a {@link Continuation} object.
@@ -24,11 +30,17 @@ import java.lang.reflect.Method;
  * parameter is given to the {@link #bind(Object)} method. This allows {@link ContinuationPtr}s to be
  * created as static singletons.
  *
+ * <p>
+ * The method is not invoked reflectively. Instead, it is bound once to a {@link Dispatcher} generated through
+ * {@link LambdaMetafactory}, so resuming a continuation is a plain interface call.
+ * Only the declaring class and the method name are serialized, so the serial form is unaffected.
+ *
  * @see ContinuationGroup#then(Block, Env, ContinuationPtr)
  * @author Kohsuke Kawaguchi
  */
 class ContinuationPtr implements Serializable {
     private transient  /*final except serialization*/ Method m;
+    private transient  /*final except serialization*/ Dispatcher dispatcher;
 
     ContinuationPtr(Class<?> type, String methodName) {
         resolveMethod(type, methodName);
@@ -40,6 +52,7 @@ class ContinuationPtr implements Serializable {
         } catch (NoSuchMethodException e) {
             throw new AssertionError(e);
         }
+        dispatcher = DISPATCHERS.computeIfAbsent(m, ContinuationPtr::createDispatcher);
     }
 
     /**
@@ -60,6 +73,49 @@ class ContinuationPtr implements Serializable {
         oos.writeUTF(m.getName());
     }
 
+    /**
+     * Calls a continuation method on a receiver without going through {@link Method#invoke}.
+     */
+    @FunctionalInterface
+    interface Dispatcher {
+        Next receive(Object target, Object o);
+    }
+
+    /**
+     * Generates a {@link Dispatcher} that directly calls the given method.
+     * Continuation methods are public methods of classes in this package, so our own lookup can always see them.
+     * If the lambda cannot be spun for some reason, we still avoid reflection by going through a {@link MethodHandle}.
+     */
+    private static Dispatcher createDispatcher(Method m) {
+        MethodHandle mh;
+        try {
+            mh = LOOKUP.unreflect(m);
+        } catch (IllegalAccessException e) {
+            throw (IllegalAccessError)new IllegalAccessError().initCause(e);
+        }
+        try {
+            return (Dispatcher) LambdaMetafactory.metafactory(LOOKUP, "receive",
+                    MethodType.methodType(Dispatcher.class),
+                    MethodType.methodType(Next.class, Object.class, Object.class),
+                    mh, mh.type()).getTarget().invoke();
+        } catch (LambdaConversionException e) {
+            MethodHandle generic = mh.asType(MethodType.methodType(Next.class, Object.class, Object.class));
+            return (target, o) -> {
+                try {
+                    return (Next) generic.invokeExact(target, o);
+                } catch (Error | RuntimeException x) {
+                    throw x;
+                } catch (Throwable x) {
+                    throw new Error(x);
+                }
+            };
+        } catch (Error | RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new Error(e);
+        }
+    }
+
     private class ContinuationImpl implements Continuation {
         private final Object target;
 
@@ -68,22 +124,18 @@ class ContinuationPtr implements Serializable {
         }
 
         public Next receive(Object o) {
-            try {
-                return (Next)m.invoke(target,o);
-            } catch (IllegalAccessException e) {
-                throw (IllegalAccessError)new IllegalAccessError().initCause(e);
-            } catch (InvocationTargetException e) {
-                Throwable t = e.getTargetException();
-                if (t instanceof Error)
-                    throw (Error) t;
-                if (t instanceof RuntimeException)
-                    throw (RuntimeException) t;
-                throw new Error(e);
-            }
+            return dispatcher.receive(target,o);
         }
 
         private static final long serialVersionUID = 1L;
     }
 
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /**
+     * Dispatchers are shared by all pointers to the same method, including the ones recreated by deserialization.
+     */
+    private static final ConcurrentMap<Method,Dispatcher> DISPATCHERS = new ConcurrentHashMap<>();
+
     private static final long serialVersionUID = 1L;
 }
@@ -2,10 +2,9 @@ package com.cloudbees.groovy.cps.impl;
 
 import com.cloudbees.groovy.cps.Continuation;
 import com.cloudbees.groovy.cps.Env;
-import com.google.common.collect.Maps;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Map;
 
 /**
@@ -13,8 +12,12 @@ import java.util.Map;
  */
 // TODO: should be package local once all the impls move into this class
 public class FunctionCallEnv extends CallEnv {
-    /** To conserve memory, lazily declared using {@link Collections#EMPTY_MAP} until we declare variables, then converted to a (small) {@link HashMap} */
-    Map<String,Object> locals;
+    /**
+     * Local variables as serialized before {@link LocalVariableSlots} were introduced.
+     * Only ever non-null while an old program is being deserialized.
+     */
+    @Deprecated
+    private Map<String,Object> locals;
 
     /**
      * @param caller
@@ -25,27 +28,36 @@ public class FunctionCallEnv extends CallEnv {
     }
 
     public FunctionCallEnv(Env caller, Continuation returnAddress, SourceLocation loc, Object _this, int localsCount) {
-        super(caller,returnAddress,loc, localsCount);
-        locals = (localsCount <= 0) ? new HashMap<>(2) : Maps.<String,Object>newHashMapWithExpectedSize(localsCount+1);
-        locals.put("this", _this);
+        super(caller,returnAddress,loc, localsCount+1);
+        int slot = declareSlot(null, "this");
+        slots.set(slot, _this);
     }
 
     public void declareVariable(Class type, String name) {
-        locals.put(name, null);
-        getTypes().put(name, type);
+        declareSlot(type, name);
     }
 
     public Object getLocalVariable(String name) {
-        return locals.get(name);
+        int slot = slotOf(name);
+        return slot<0 ? null : slots.get(slot);
     }
 
     public void setLocalVariable(String name, Object value) {
-        locals.put(name,value);
+        int slot = slotOf(name);
+        if (slot<0)
+            slot = declareSlot(null, name);
+        slots.set(slot, value);
     }
 
     public Object closureOwner() {
         return getLocalVariable("this");
     }
 
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ois.defaultReadObject();
+        migrateLegacyLocals(locals);
+        locals = null;
+    }
+
     private static final long serialVersionUID = 1L;
 }
@@ -9,6 +9,9 @@ import com.cloudbees.groovy.cps.Next;
 /**
  * Access to local variables and method parameters.
  *
+ * <p>
+ * The variable is looked up by name on each access, in the {@link Env} the block is evaluated in and then its parents.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class LocalVariableBlock extends LValueBlock {
@@ -0,0 +1,141 @@
+package com.cloudbees.groovy.cps.impl;
+
+import com.cloudbees.groovy.cps.Env;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Local variables declared in one {@link Env}, stored in slots rather than in a {@link Map}.
+ *
+ * <p>
+ * A scope rarely declares more than a handful of variables, so a name is resolved to its slot by a linear scan.
+ * Names normally come from string constants of the CPS-transformed class and are therefore interned,
+ * so the scan compares by identity before falling back to {@link String#equals(Object)}.
+ *
+ * <p>
+ * The serial form only contains the declared slots, which is noticeably smaller than the equivalent pair of maps.
+ *
+ * <p>
+ * Slots only change how variables are stored, not how they are found:
+ * {@link LocalVariableBlock} still looks a variable up by name in each {@link Env} of the chain, as before,
+ * since {@link Env}s are also populated by name at run time (call arguments, {@code catch} variables, {@code this}, and so on)
+ * and {@code CpsTransformer} does not resolve variables to slots.
+ * What is saved is the allocation of maps for each call and block, and the size of {@code program.dat};
+ * the cost of a variable access, such as in a tight loop, is about the same.
+ *
+ * @see CallEnv
+ * @see BlockScopeEnv
+ */
+final class LocalVariableSlots implements Serializable {
+    private transient String[] names;
+    private transient Object[] values;
+    private transient Class[] types;
+    private transient int size;
+
+    LocalVariableSlots(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate(int capacity) {
+        names = new String[capacity];
+        values = new Object[capacity];
+        types = new Class[capacity];
+    }
+
+    /**
+     * Finds the slot of a variable.
+     *
+     * @return -1 if the variable is not declared in this scope.
+     */
+    int slotOf(String name) {
+        for (int i=size-1; i>=0; i--) {
+            if (names[i]==name)
+                return i;
+        }
+        for (int i=size-1; i>=0; i--) {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Declares a variable, or re-declares it with a new type and a null value if it already exists.
+     *
+     * @return the slot of the variable.
+     */
+    int declare(Class type, String name) {
+        int slot = slotOf(name);
+        if (slot<0) {
+            if (size==names.length) {
+                int capacity = size*2;
+                names = Arrays.copyOf(names, capacity);
+                values = Arrays.copyOf(values, capacity);
+                types = Arrays.copyOf(types, capacity);
+            }
+            slot = size++;
+            names[slot] = name;
+        }
+        values[slot] = null;
+        types[slot] = type;
+        return slot;
+    }
+
+    Object get(int slot) {
+        return values[slot];
+    }
+
+    void set(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    Class getType(int slot) {
+        return types[slot];
+    }
+
+    /**
+     * Converts the map-based representation that {@link Env}s were serialized with before slots were introduced.
+     *
+     * @param locals
+     *      Variable values. May be null.
+     * @param types
+     *      Declared types of the variables. May be null or miss entries, in which case the type is unknown.
+     */
+    static LocalVariableSlots fromMaps(Map<String,Object> locals, Map<String,Class> types) {
+        LocalVariableSlots slots = new LocalVariableSlots(locals==null ? 0 : locals.size());
+        if (locals!=null) {
+            for (Map.Entry<String,Object> e : locals.entrySet()) {
+                int slot = slots.declare(types==null ? null : types.get(e.getKey()), e.getKey());
+                slots.set(slot, e.getValue());
+            }
+        }
+        return slots;
+    }
+
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+        oos.writeInt(size);
+        for (int i=0; i<size; i++) {
+            oos.writeUTF(names[i]);
+            oos.writeObject(types[i]);
+            oos.writeObject(values[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        int n = ois.readInt();
+        allocate(Math.max(n, 1));
+        for (int i=0; i<n; i++) {
+            names[i] = ois.readUTF().intern();
+            types[i] = (Class) ois.readObject();
+            values[i] = ois.readObject();
+        }
+        size = n;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
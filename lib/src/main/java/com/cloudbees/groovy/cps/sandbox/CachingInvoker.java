@@ -0,0 +1,207 @@
+package com.cloudbees.groovy.cps.sandbox;
+
+import com.cloudbees.groovy.cps.impl.CallSiteBlock;
+import com.cloudbees.groovy.cps.impl.CallSiteBlockSupport;
+import groovy.lang.GroovyObject;
+import groovy.lang.GroovyRuntimeException;
+import groovy.lang.MetaClass;
+import groovy.lang.MetaClassImpl;
+import groovy.lang.MetaMethod;
+import java.util.Arrays;
+import org.codehaus.groovy.reflection.ClassInfo;
+import org.codehaus.groovy.runtime.GroovyCategorySupport;
+import org.codehaus.groovy.runtime.MetaClassHelper;
+import org.codehaus.groovy.runtime.ScriptBytecodeAdapter;
+import org.codehaus.groovy.runtime.callsite.CallSite;
+import org.codehaus.groovy.runtime.callsite.CallSiteArray;
+
+/**
+ * {@link DefaultInvoker} for a single {@link CallSiteBlock} that remembers the Groovy {@link CallSite}s it used,
+ * so that repeated calls from the same place in the script skip the full metaclass lookup.
+ *
+ * <p>
+ * A Groovy call site is a monomorphic inline cache: once used, it replaces itself with a call site specialized for
+ * the receiver, which is reused for as long as the receiver has the same class and its metaclass has not been
+ * modified since. {@link DefaultInvoker} creates a fresh call site for every call and so never benefits from that.
+ * This class instead keeps one call site per method name and receiver class, for up to {@link #MAX_RECEIVER_TYPES}
+ * of them, beyond which the call site is considered megamorphic and calls go through a fresh call site again.
+ *
+ * <p>
+ * While a category is in use on the current thread, as it always is on the CPS VM threads of Jenkins,
+ * Groovy call sites never specialize and {@link MetaClassImpl} bypasses its own method cache, so every call
+ * would select the method from scratch. Method calls on plain Java objects are therefore resolved here instead:
+ * the {@link MetaMethod} selected for a receiver class and argument classes is remembered, guarded by
+ * the version of the receiver's {@link ClassInfo} and by the category methods of that name in effect,
+ * as {@link GroovyCategorySupport#getCategoryMethods} returns a new list whenever those change.
+ *
+ * <p>
+ * Calls from untrusted call sites in sandboxed scripts do not come here. {@link SandboxInvoker} hands them to
+ * groovy-sandbox's {@code Checker}, which must consult the interceptors on every call, since the answer depends on
+ * approvals that can change at any time, and which selects and invokes the method itself in the same step.
+ * What can be cached there is the whitelist decision, which Jenkins does per method signature.
+ *
+ * <p>
+ * Nothing here is persisted: {@link CallSiteBlockSupport} holds its instance in a transient field,
+ * so the cache is rebuilt lazily after the program is resumed.
+ *
+ * @see CallSiteBlockSupport#getCachingInvoker()
+ */
+public final class CachingInvoker extends DefaultInvoker {
+    /**
+     * Maximum number of distinct receiver classes cached per call site.
+     */
+    static final int MAX_RECEIVER_TYPES = 4;
+
+    private transient volatile Entry[] entries;
+
+    private transient volatile MethodEntry[] methods;
+
+    @Override
+    public Object methodCall(Object receiver, String method, Object[] args) throws Throwable {
+        if (receiver != null && !(receiver instanceof Class) && !(receiver instanceof GroovyObject)
+                && GroovyCategorySupport.hasCategoryInCurrentThread()) {
+            Object[] arguments = args == null ? new Object[0] : args;
+            MetaMethod m = metaMethod(receiver, method, arguments);
+            if (m != null) {
+                try {
+                    return m.doMethodInvoke(receiver, arguments);
+                } catch (GroovyRuntimeException gre) {
+                    throw ScriptBytecodeAdapter.unwrap(gre);
+                }
+            }
+        }
+        return callSite(method, receiver).call(receiver, args);
+    }
+
+    @Override
+    public Object constructorCall(Class lhs, Object[] args) throws Throwable {
+        return callSite("<init>", lhs).callConstructor(lhs, args);
+    }
+
+    @Override
+    public Object getArray(Object lhs, Object index) throws Throwable {
+        return callSite("getAt", lhs).call(lhs, index);
+    }
+
+    @Override
+    public void setArray(Object lhs, Object index, Object value) throws Throwable {
+        callSite("putAt", lhs).call(lhs, index, value);
+    }
+
+    @Override
+    public Invoker contextualize(CallSiteBlock tags) {
+        return tags instanceof CallSiteBlockSupport ? ((CallSiteBlockSupport) tags).getCachingInvoker() : this;
+    }
+
+    /**
+     * Finds the call site to use for calling the given method on the given receiver.
+     */
+    private CallSite callSite(String method, Object receiver) {
+        // calls on a Class are static calls, whose specialized call sites are tied to that class
+        Object key = receiver == null || receiver instanceof Class ? receiver : receiver.getClass();
+        Entry[] es = entries;
+        if (es == null) {
+            es = new Entry[0];
+        }
+        for (Entry e : es) {
+            if (e.key == key && e.method.equals(method)) {
+                // always read the array, as Groovy replaces the call site with a specialized one
+                return e.sites.array[0];
+            }
+        }
+        CallSite site = fakeCallSite(method);
+        if (es.length < MAX_RECEIVER_TYPES) {
+            Entry[] updated = Arrays.copyOf(es, es.length + 1);
+            updated[es.length] = new Entry(method, key, site.getArray());
+            // racing updates may drop an entry, which only costs another lookup later
+            entries = updated;
+        }
+        return site;
+    }
+
+    /**
+     * Finds the method to call on a plain Java object while categories are in use,
+     * as {@link MetaClassImpl#invokeMethod(Object, String, Object)} would.
+     *
+     * @return null if the call must go through a call site, for example to a missing method
+     *      or with a custom metaclass
+     */
+    private MetaMethod metaMethod(Object receiver, String method, Object[] args) {
+        Class<?> c = receiver.getClass();
+        Class[] types = MetaClassHelper.convertToTypeArray(args);
+        Object categoryMethods = GroovyCategorySupport.getCategoryMethods(method);
+        ClassInfo info = ClassInfo.getClassInfo(c);
+        if (info.hasPerInstanceMetaClasses()) {
+            return null;
+        }
+        int version = info.getVersion();
+        MethodEntry[] ms = methods;
+        if (ms == null) {
+            ms = new MethodEntry[0];
+        }
+        int stale = -1;
+        for (int i = 0; i < ms.length; i++) {
+            MethodEntry e = ms[i];
+            if (e.receiver == c && e.method.equals(method) && Arrays.equals(e.types, types)) {
+                if (e.version == version && e.categoryMethods == categoryMethods) {
+                    return e.metaMethod;
+                }
+                stale = i; // e.g. categories entered by another CPS VM thread
+                break;
+            }
+        }
+        MetaClass mc = info.getMetaClass();
+        if (!(mc instanceof MetaClassImpl)) {
+            return null;
+        }
+        MetaMethod m = ((MetaClassImpl) mc).getMethodWithoutCaching(c, method, types, false);
+        if (m != null && (stale != -1 || ms.length < MAX_RECEIVER_TYPES)) {
+            MethodEntry[] updated = Arrays.copyOf(ms, stale != -1 ? ms.length : ms.length + 1);
+            updated[stale != -1 ? stale : ms.length] = new MethodEntry(method, c, types, version, categoryMethods, m);
+            methods = updated; // as with entries, racing updates only cost another lookup
+        }
+        return m;
+    }
+
+    /**
+     * Number of cached call sites and methods, for tests.
+     */
+    int size() {
+        Entry[] es = entries;
+        MethodEntry[] ms = methods;
+        return (es == null ? 0 : es.length) + (ms == null ? 0 : ms.length);
+    }
+
+    private static final class Entry {
+        final String method;
+        final Object key;
+        final CallSiteArray sites;
+
+        Entry(String method, Object key, CallSiteArray sites) {
+            this.method = method;
+            this.key = key;
+            this.sites = sites;
+        }
+    }
+
+    private static final class MethodEntry {
+        final String method;
+        final Class<?> receiver;
+        final Class[] types;
+        final int version;
+        /** the category methods named {@link #method} in effect when selected, compared by identity */
+        final Object categoryMethods;
+        final MetaMethod metaMethod;
+
+        MethodEntry(String method, Class<?> receiver, Class[] types, int version, Object categoryMethods, MetaMethod metaMethod) {
+            this.method = method;
+            this.receiver = receiver;
+            this.types = types;
+            this.version = version;
+            this.categoryMethods = categoryMethods;
+            this.metaMethod = metaMethod;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
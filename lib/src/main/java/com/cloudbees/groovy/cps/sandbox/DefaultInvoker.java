@@ -1,6 +1,7 @@
 package com.cloudbees.groovy.cps.sandbox;
 
 import com.cloudbees.groovy.cps.impl.CallSiteBlock;
+import com.cloudbees.groovy.cps.impl.CallSiteBlockSupport;
 import groovy.lang.GroovyRuntimeException;
 import groovy.lang.MetaClass;
 import org.codehaus.groovy.runtime.InvokerHelper;
@@ -73,7 +74,14 @@ public class DefaultInvoker implements Invoker {
                 : ScriptBytecodeAdapter.castToType(value, type);
     }
 
+    /**
+     * Returns the {@link CachingInvoker} of the call site if it has one.
+     * Subtypes are left alone, since they may override how calls are made.
+     */
     public Invoker contextualize(CallSiteBlock tags) {
+        if (getClass() == DefaultInvoker.class && tags instanceof CallSiteBlockSupport) {
+            return ((CallSiteBlockSupport) tags).getCachingInvoker();
+        }
         return this;
     }
 
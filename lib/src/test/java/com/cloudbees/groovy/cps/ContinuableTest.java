@@ -263,4 +263,43 @@ public class ContinuableTest extends AbstractGroovyCpsTest {
         assertEquals(1+2 +16+32 +64+128, r);
     }
 
+    @Test
+    public void preemption() throws Throwable {
+        Script s = getCsh().parse(
+            "int sum = 0\n" +
+            "for (int i = 0; i < 100; i++) {\n" +
+            "    sum += i\n" +
+            "}\n" +
+            "return sum\n");
+        Continuable c = new Continuable(s);
+        int preemptions = 0;
+        Outcome o = c.run0(new Outcome(null, null), 50, 0);
+        while (o.getNormal() == Continuable.PREEMPTED) {
+            assertTrue(c.isResumable());
+            preemptions++;
+            o = c.run0(new Outcome("ignored", null), 50, 0);
+        }
+        assertEquals(4950, o.replay());
+        assertFalse(c.isResumable());
+        assertTrue("preempted " + preemptions + " times", preemptions > 10);
+    }
+
+    @Test
+    public void preemptedProgramCanBeInterruptedAndSerialized() throws Throwable {
+        Script s = getCsh().parse(
+            "int i = 0\n" +
+            "try {\n" +
+            "    while (true) {\n" +
+            "        i++\n" +
+            "    }\n" +
+            "} catch (InterruptedException x) {\n" +
+            "    return 'interrupted after ' + (i > 0)\n" +
+            "}\n");
+        Continuable c = new Continuable(s);
+        assertEquals(Continuable.PREEMPTED, c.run0(new Outcome(null, null), 100, 0).getNormal());
+        c = roundtripSerialization(c);
+        assertEquals(Continuable.PREEMPTED, c.run0(new Outcome(null, null), 0, 1000).getNormal());
+        assertEquals("interrupted after true", c.run0(new Outcome(null, new InterruptedException()), 100, 0).replay());
+    }
+
 }
@@ -0,0 +1,65 @@
+package com.cloudbees.groovy.cps;
+
+import java.lang.reflect.Method;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NonCpsInferenceTest extends AbstractGroovyCpsTest {
+    @Override
+    protected CpsTransformer createCpsTransformer() {
+        CpsTransformer t = super.createCpsTransformer();
+        t.setConfiguration(new TransformerConfiguration().withNonCpsInference(true));
+        return t;
+    }
+
+    @Test
+    public void pureMethodsAreNotTransformed() throws Throwable {
+        String script =
+            "int sum(int n) {\n" +
+            "  int total = 0\n" +
+            "  for (int i = 0; i < n; i++) {\n" +
+            "    if (i % 2 == 0) { total += i }\n" +
+            "  }\n" +
+            "  return total\n" +
+            "}\n" +
+            "int even(int n) {\n" +
+            "  if (n % 2 == 0) { return n }\n" +
+            "  return n - 1\n" +
+            "}\n" +
+            "void spin(int n) { while (n > 0) { n-- } }\n" +
+            "String greet(String name) { 'Hello, ' + name }\n" +
+            "def half(Number n) { n / 2 }\n" +
+            "def asNumber(int n) { (Number) n }\n" +
+            "def callsSomething(x) { x.foo() }\n" +
+            "def usesClosure() { [1, 2].collect { it * 2 } }\n" +
+            "def untypedMath(a, b) { a + b }\n" +
+            "sum(10) + greet('cps').length()\n";
+        assertEquals(30, evalCPSonly(script));
+
+        Class<?> c = getCsh().parse(script).getClass();
+        assertTrue("loops keep their safepoints", transformed(c, "sum", int.class));
+        assertTrue(transformed(c, "spin", int.class));
+        assertFalse(transformed(c, "even", int.class));
+        assertFalse(transformed(c, "greet", String.class));
+        assertTrue(transformed(c, "callsSomething", Object.class));
+        assertTrue(transformed(c, "usesClosure"));
+        assertTrue("declared Number may be a script class", transformed(c, "half", Number.class));
+        assertTrue(transformed(c, "asNumber", int.class));
+        assertTrue(transformed(c, "untypedMath", Object.class, Object.class));
+        assertTrue(transformed(c, "run"));
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        CpsTransformer t = new CpsTransformer();
+        assertFalse(t.config.isNonCpsInference());
+    }
+
+    private static boolean transformed(Class<?> c, String name, Class<?>... params) throws NoSuchMethodException {
+        Method m = c.getMethod(name, params);
+        return m.isAnnotationPresent(WorkflowTransformed.class);
+    }
+}
@@ -0,0 +1,54 @@
+package com.cloudbees.groovy.cps.impl;
+
+import com.cloudbees.groovy.cps.AbstractGroovyCpsTest;
+import com.cloudbees.groovy.cps.Continuation;
+import com.cloudbees.groovy.cps.Next;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class ContinuationPtrTest extends AbstractGroovyCpsTest {
+
+    static class Recorder extends ContinuationGroup {
+        Object received;
+
+        public Next record(Object o) {
+            received = o;
+            return Next.terminate(o);
+        }
+
+        public Next fail(Object o) {
+            throw new IllegalStateException(String.valueOf(o));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final ContinuationPtr record = new ContinuationPtr(Recorder.class, "record");
+    static final ContinuationPtr fail = new ContinuationPtr(Recorder.class, "fail");
+
+    @Test
+    public void dispatchesToBoundReceiver() {
+        Recorder r = new Recorder();
+        Next n = record.bind(r).receive("hello");
+        assertThat(r.received, equalTo((Object) "hello"));
+        assertThat(n.yield.getNormal(), equalTo((Object) "hello"));
+    }
+
+    @Test
+    public void exceptionsAreNotWrapped() {
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> fail.bind(new Recorder()).receive("boom"));
+        assertThat(e.getMessage(), equalTo("boom"));
+    }
+
+    @Test
+    public void serializedContinuationStillDispatches() throws Exception {
+        Recorder r = new Recorder();
+        Continuation k = roundtripSerialization(record.bind(r));
+        assertThat(k.receive(42).yield.getNormal(), equalTo((Object) 42));
+        assertThat(r.received, nullValue()); // the receiver was serialized along with the continuation
+    }
+}
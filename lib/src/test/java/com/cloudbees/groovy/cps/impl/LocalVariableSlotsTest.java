@@ -0,0 +1,147 @@
+package com.cloudbees.groovy.cps.impl;
+
+import com.cloudbees.groovy.cps.AbstractGroovyCpsTest;
+import com.cloudbees.groovy.cps.Continuation;
+import com.cloudbees.groovy.cps.Env;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class LocalVariableSlotsTest extends AbstractGroovyCpsTest {
+
+    @Test
+    public void declareGrowsAndRedeclareResets() {
+        LocalVariableSlots s = new LocalVariableSlots(1);
+        for (int i = 0; i < 10; i++) {
+            s.set(s.declare(Integer.class, "v" + i), i);
+        }
+        for (int i = 0; i < 10; i++) {
+            // deliberately not interned, to exercise the equals() fallback
+            int slot = s.slotOf(new String("v" + i));
+            assertThat(s.get(slot), equalTo((Object) i));
+            assertThat(s.getType(slot), equalTo((Object) Integer.class));
+        }
+        int slot = s.declare(String.class, "v3");
+        assertThat(slot, equalTo(s.slotOf("v3")));
+        assertThat(s.get(slot), nullValue());
+        assertThat(s.getType(slot), equalTo((Object) String.class));
+        assertThat(s.slotOf("missing"), equalTo(-1));
+    }
+
+    @Test
+    public void fromMaps() {
+        Map<String, Object> locals = new HashMap<>();
+        locals.put("this", "self");
+        locals.put("x", 42);
+        Map<String, Class> types = new HashMap<>();
+        types.put("x", int.class);
+        LocalVariableSlots s = LocalVariableSlots.fromMaps(locals, types);
+        assertThat(s.get(s.slotOf("this")), equalTo((Object) "self"));
+        assertThat(s.getType(s.slotOf("this")), nullValue());
+        assertThat(s.get(s.slotOf("x")), equalTo((Object) 42));
+        assertThat(s.getType(s.slotOf("x")), equalTo((Object) int.class));
+    }
+
+    @Test
+    public void envRoundtrip() throws Exception {
+        FunctionCallEnv f = new FunctionCallEnv(null, Continuation.HALT, null, "self", 1);
+        f.declareVariable(String.class, "a");
+        f.setLocalVariable("a", "hello");
+        BlockScopeEnv b = new BlockScopeEnv(f);
+        b.declareVariable(int.class, "i");
+        b.setLocalVariable("i", 3);
+
+        Env e = roundtripSerialization(b);
+        assertThat(e.getLocalVariable("i"), equalTo((Object) 3));
+        assertThat(e.getLocalVariableType("i"), equalTo((Object) int.class));
+        assertThat(e.getLocalVariable("a"), equalTo((Object) "hello"));
+        assertThat(e.getLocalVariableType("a"), equalTo((Object) String.class));
+        assertThat(e.closureOwner(), equalTo((Object) "self"));
+    }
+
+    /**
+     * Serializes envs with only the {@code locals} and {@code types} maps filled in, as they were written
+     * before {@link LocalVariableSlots} were introduced, and checks that deserialization migrates them.
+     */
+    @Test
+    public void legacyEnvs() throws Exception {
+        FunctionCallEnv f = new FunctionCallEnv(null, Continuation.HALT, null, "self", 1);
+        f.slots = null;
+        Map<String, Object> fLocals = new HashMap<>();
+        fLocals.put("this", "self");
+        fLocals.put("a", "hello");
+        Map<String, Class> fTypes = new HashMap<>();
+        fTypes.put("a", String.class);
+        setField(FunctionCallEnv.class, f, "locals", fLocals);
+        setField(CallEnv.class, f, "types", fTypes);
+
+        ClosureCallEnv c = new ClosureCallEnv(f, Continuation.HALT, null, f, null);
+        c.slots = null;
+        Map<String, Object> cLocals = new HashMap<>();
+        cLocals.put("n", 7);
+        Map<String, Class> cTypes = new HashMap<>();
+        cTypes.put("n", int.class);
+        setField(ClosureCallEnv.class, c, "locals", cLocals);
+        setField(CallEnv.class, c, "types", cTypes);
+
+        BlockScopeEnv b = new BlockScopeEnv(c);
+        Map<String, Object> bLocals = new HashMap<>();
+        bLocals.put("i", 3);
+        bLocals.put("untyped", null);
+        Map<String, Class> bTypes = new HashMap<>();
+        bTypes.put("i", int.class);
+        setField(BlockScopeEnv.class, b, "locals", bLocals);
+        setField(BlockScopeEnv.class, b, "types", bTypes);
+
+        // blocks declaring nothing were written with shared empty maps
+        BlockScopeEnv empty = new BlockScopeEnv(b);
+        setField(BlockScopeEnv.class, empty, "locals", Collections.EMPTY_MAP);
+        setField(BlockScopeEnv.class, empty, "types", Collections.EMPTY_MAP);
+
+        Env e = roundtripSerialization(empty);
+        assertThat(e.getLocalVariable("i"), equalTo((Object) 3));
+        assertThat(e.getLocalVariableType("i"), equalTo((Object) int.class));
+        assertThat(e.getLocalVariable("untyped"), nullValue());
+        assertThat(e.getLocalVariableType("untyped"), nullValue());
+        assertThat(e.getLocalVariable("n"), equalTo((Object) 7));
+        assertThat(e.getLocalVariableType("n"), equalTo((Object) int.class));
+        assertThat(e.getLocalVariable("a"), equalTo((Object) "hello"));
+        assertThat(e.getLocalVariableType("a"), equalTo((Object) String.class));
+        assertThat(e.getLocalVariable("this"), equalTo((Object) "self"));
+
+        // migrated variables are stored in, and updated through, the right scope
+        e.setLocalVariable("i", 4);
+        e.setLocalVariable("n", 8);
+        e.setLocalVariable("a", "bye");
+        assertThat(e.getLocalVariable("i"), equalTo((Object) 4));
+        assertThat(e.getLocalVariable("n"), equalTo((Object) 8));
+        assertThat(e.getLocalVariable("a"), equalTo((Object) "bye"));
+
+        // and the legacy fields are gone, so the next save uses the current form
+        BlockScopeEnv e2 = (BlockScopeEnv) e;
+        assertThat(getField(BlockScopeEnv.class, e2, "locals"), nullValue());
+        assertThat(getField(BlockScopeEnv.class, e2, "types"), nullValue());
+        Env reread = roundtripSerialization(e);
+        assertThat(reread.getLocalVariable("i"), equalTo((Object) 4));
+        assertThat(reread.getLocalVariable("n"), equalTo((Object) 8));
+        assertThat(reread.getLocalVariable("a"), equalTo((Object) "bye"));
+    }
+
+    private static void setField(Class<?> c, Object o, String name, Object value) throws Exception {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(o, value);
+    }
+
+    private static Object getField(Class<?> c, Object o, String name) throws Exception {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(o);
+    }
+}
@@ -0,0 +1,156 @@
+package com.cloudbees.groovy.cps.sandbox;
+
+import com.cloudbees.groovy.cps.AbstractGroovyCpsTest;
+import com.cloudbees.groovy.cps.Continuable;
+import groovy.lang.Closure;
+import groovy.lang.MissingMethodException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.codehaus.groovy.runtime.GroovyCategorySupport;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class CachingInvokerTest extends AbstractGroovyCpsTest {
+
+    private static final Logger LOGGER = Logger.getLogger(CachingInvokerTest.class.getName());
+
+    @Test
+    public void polymorphicReceivers() throws Throwable {
+        CachingInvoker inv = new CachingInvoker();
+        List<Object> receivers = Arrays.<Object>asList("abc", new StringBuilder("abcd"), new ArrayList<>(Arrays.asList(1, 2)),
+                new LinkedList<>(Arrays.asList(1)), Arrays.asList(1, 2, 3, 4, 5, 6), "ab");
+        int[] expected = {3, 4, 2, 1, 6, 2};
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < receivers.size(); i++) {
+                Object r = receivers.get(i);
+                Object size = r instanceof CharSequence ? inv.methodCall(r, "length", new Object[0]) : inv.methodCall(r, "size", new Object[0]);
+                assertThat(size, equalTo((Object) expected[i]));
+            }
+        }
+        assertThat(inv.size(), equalTo(CachingInvoker.MAX_RECEIVER_TYPES));
+    }
+
+    @Test
+    public void staticCallsAreKeyedByClass() throws Throwable {
+        CachingInvoker inv = new CachingInvoker();
+        for (int i = 0; i < 3; i++) {
+            assertThat(inv.methodCall(Integer.class, "valueOf", new Object[] {"42"}), equalTo((Object) 42));
+            assertThat(inv.methodCall(Long.class, "valueOf", new Object[] {"42"}), equalTo((Object) 42L));
+            assertThat(inv.constructorCall(StringBuilder.class, new Object[] {"x"}).toString(), equalTo("x"));
+            assertThat(inv.getArray(Arrays.asList(1, 2), 1), equalTo((Object) 2));
+        }
+        assertThat(inv.size(), equalTo(4));
+    }
+
+    @Test
+    public void scriptResults() throws Throwable {
+        assertEvaluate(16,
+                "def total = 0\n" +
+                "for (x in ['a', [1, 2], 'abc', [3] as Set, 'de', [k: 1, v: 2], [1, 2, 3, 4, 5]]) {\n" +
+                "  total += x.size()\n" +
+                "}\n" +
+                "return total");
+    }
+
+    @Test
+    public void underCategories() throws Throwable {
+        CachingInvoker inv = new CachingInvoker();
+        use(Arrays.<Class>asList(Shout.class), () -> {
+            for (int i = 0; i < 3; i++) {
+                assertThat(inv.methodCall("abc", "shout", new Object[0]), equalTo((Object) "ABC!"));
+                assertThat(inv.methodCall(Arrays.asList(1, 2), "size", new Object[0]), equalTo((Object) 2));
+                assertThat(inv.methodCall("abc", "substring", new Object[] {1}), equalTo((Object) "bc"));
+                assertThat(inv.methodCall("abc", "substring", new Object[] {1, 2}), equalTo((Object) "b"));
+            }
+            assertThat(inv.size(), equalTo(4));
+            // exceptions are not wrapped
+            assertThrows(StringIndexOutOfBoundsException.class, () -> inv.methodCall("abc", "substring", new Object[] {5}));
+            // entering another category replaces what was selected before
+            use(Arrays.<Class>asList(Whisper.class), () -> {
+                assertThat(inv.methodCall("abc", "shout", new Object[0]), equalTo((Object) "abc..."));
+                return null;
+            });
+            assertThat(inv.methodCall("abc", "shout", new Object[0]), equalTo((Object) "ABC!"));
+            return null;
+        });
+        assertThat(inv.size(), equalTo(4));
+        assertThrows(MissingMethodException.class, () -> inv.methodCall("abc", "shout", new Object[0]));
+    }
+
+    @Test
+    public void scriptResultsUnderCpsCategories() throws Throwable {
+        // Next.run(int) already uses Continuable.categories; nesting them as Jenkins does makes no difference
+        use(Continuable.categories, () -> {
+            assertEvaluate(Arrays.asList(2, 4, 6),
+                    "def r = []\n" +
+                    "for (int i = 1; i <= 3; i++) {\n" +
+                    "  r.add([i, i].sum())\n" +
+                    "}\n" +
+                    "return r.collect { it }");
+            return null;
+        });
+    }
+
+    /**
+     * Compares the cost of method calls through {@link DefaultInvoker} and {@link CachingInvoker} with the CPS categories in use:
+     * {@code mvn -pl lib test -Dtest=CachingInvokerTest#benchmark -Dbenchmark}
+     */
+    @Test
+    public void benchmark() throws Throwable {
+        Assume.assumeNotNull(System.getProperty("benchmark"));
+        List<Object> receivers = Arrays.<Object>asList("abc", new ArrayList<>(Arrays.asList(1, 2)), new StringBuilder("x"));
+        use(Continuable.categories, () -> {
+            for (Invoker inv : new Invoker[] {new DefaultInvoker(), new CachingInvoker(), new DefaultInvoker(), new CachingInvoker()}) {
+                long start = System.nanoTime();
+                int n = 1_000_000;
+                for (int i = 0; i < n; i++) {
+                    Object r = receivers.get(i % receivers.size());
+                    inv.methodCall(r, "toString", new Object[0]);
+                    inv.methodCall(r, "hashCode", new Object[0]);
+                }
+                double perCall = (System.nanoTime() - start) / (2.0 * n);
+                LOGGER.log(Level.INFO, () -> String.format("%s: %.1f ns/call", inv.getClass().getSimpleName(), perCall));
+            }
+            return null;
+        });
+    }
+
+    private interface Body<T> {
+        T call() throws Throwable;
+    }
+
+    private static <T> T use(List<Class> categories, Body<T> body) {
+        return GroovyCategorySupport.use(categories, new Closure<T>(null) {
+            @Override
+            public T call() {
+                try {
+                    return body.call();
+                } catch (RuntimeException | Error x) {
+                    throw x;
+                } catch (Throwable x) {
+                    throw new AssertionError(x);
+                }
+            }
+        });
+    }
+
+    public static class Shout {
+        public static String shout(String self) {
+            return self.toUpperCase() + "!";
+        }
+    }
+
+    public static class Whisper {
+        public static String shout(String self) {
+            return self + "...";
+        }
+    }
+}
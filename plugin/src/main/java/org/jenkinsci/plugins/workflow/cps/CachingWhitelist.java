@@ -0,0 +1,289 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import com.cloudbees.jenkins.support.api.Component;
+import com.cloudbees.jenkins.support.api.Container;
+import com.cloudbees.jenkins.support.api.Content;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.Permission;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.EnumeratingWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.ProxyWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.StaticWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+
+/**
+ * Consults the installed {@link Whitelist}s, remembering the decisions of those known to decide by signature alone,
+ * so that sandboxed scripts calling the same members over and over (typically in a loop)
+ * do not walk the whole chain of whitelists every time.
+ *
+ * <p>
+ * Only {@link EnumeratingWhitelist}s (such as {@link StaticWhitelist}) and the static whitelists bundled with Script Security
+ * are cached; their decisions are keyed by the kind of access and the member.
+ * Any other whitelist may look at receivers, arguments, or the current user, so it is asked again on every call.
+ * {@link CpsWhitelist}, which looks at receivers and arguments, is consulted separately.
+ *
+ * <p>
+ * Decisions are kept per declaring class of the member, so they do not keep any class loader from being collected,
+ * and are discarded whenever script approvals are saved or the set of installed whitelists changes.
+ */
+final class CachingWhitelist extends Whitelist {
+
+    private static final Logger LOGGER = Logger.getLogger(CachingWhitelist.class.getName());
+
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean DISABLED = SystemProperties.getBoolean(CachingWhitelist.class.getName() + ".DISABLED");
+
+    /**
+     * Whitelists bundled with Script Security which are {@link ProxyWhitelist}s of {@link StaticWhitelist}s.
+     * Not {@code ScriptApproval.ApprovedWhitelist}, whose decisions depend on the current user.
+     */
+    private static final Set<String> STATIC_PROXY_WHITELISTS = Set.of(
+        "org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.GenericWhitelist",
+        "org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.JenkinsWhitelist");
+
+    /** Incremented by {@link #invalidateAll}; decisions made under an older generation are dropped. */
+    private static final AtomicLong generation = new AtomicLong();
+
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+    static final LongAdder invalidations = new LongAdder();
+
+    private final Iterable<? extends Whitelist> whitelists;
+    private volatile Partition partition;
+    private final ClassValue<Decisions> decisions = new ClassValue<>() {
+        @Override protected Decisions computeValue(Class<?> type) {
+            return new Decisions();
+        }
+    };
+
+    /**
+     * @param whitelists the installed whitelists, such as the live {@link ExtensionList} of them
+     */
+    CachingWhitelist(Iterable<? extends Whitelist> whitelists) {
+        this.whitelists = whitelists;
+    }
+
+    /**
+     * Discards the decisions of all instances.
+     */
+    static void invalidateAll() {
+        generation.incrementAndGet();
+        invalidations.increment();
+    }
+
+    static boolean isSignatureBased(Whitelist w) {
+        return w instanceof EnumeratingWhitelist || STATIC_PROXY_WHITELISTS.contains(w.getClass().getName());
+    }
+
+    /** The installed whitelists as of some generation, split by whether their decisions may be cached. */
+    private static final class Partition {
+        final long generation;
+        final Whitelist cached;
+        final Whitelist uncached;
+        Partition(long generation, Iterable<? extends Whitelist> whitelists) {
+            this.generation = generation;
+            List<Whitelist> c = new ArrayList<>();
+            List<Whitelist> u = new ArrayList<>();
+            for (Whitelist w : whitelists) {
+                (isSignatureBased(w) ? c : u).add(w);
+            }
+            cached = new ProxyWhitelist(c);
+            uncached = new ProxyWhitelist(u);
+        }
+    }
+
+    /** Decisions about members of one class. */
+    private static final class Decisions {
+        volatile long generation = -1;
+        final Map<Key, Boolean> map = new ConcurrentHashMap<>();
+    }
+
+    private Partition partition(long g) {
+        Partition p = partition;
+        if (p == null || p.generation != g) {
+            p = new Partition(g, whitelists);
+            partition = p;
+        }
+        return p;
+    }
+
+    @Override public boolean permitsMethod(Method method, Object receiver, Object[] args) {
+        Partition p = partition(generation.get());
+        return decide(p, Kind.METHOD, method, () -> p.cached.permitsMethod(method, receiver, args)) || p.uncached.permitsMethod(method, receiver, args);
+    }
+
+    @Override public boolean permitsConstructor(Constructor<?> constructor, Object[] args) {
+        Partition p = partition(generation.get());
+        return decide(p, Kind.CONSTRUCTOR, constructor, () -> p.cached.permitsConstructor(constructor, args)) || p.uncached.permitsConstructor(constructor, args);
+    }
+
+    @Override public boolean permitsStaticMethod(Method method, Object[] args) {
+        Partition p = partition(generation.get());
+        return decide(p, Kind.STATIC_METHOD, method, () -> p.cached.permitsStaticMethod(method, args)) || p.uncached.permitsStaticMethod(method, args);
+    }
+
+    @Override public boolean permitsFieldGet(Field field, Object receiver) {
+        Partition p = partition(generation.get());
+        return decide(p, Kind.FIELD_GET, field, () -> p.cached.permitsFieldGet(field, receiver)) || p.uncached.permitsFieldGet(field, receiver);
+    }
+
+    @Override public boolean permitsFieldSet(Field field, Object receiver, Object value) {
+        Partition p = partition(generation.get());
+        return decide(p, Kind.FIELD_SET, field, () -> p.cached.permitsFieldSet(field, receiver, value)) || p.uncached.permitsFieldSet(field, receiver, value);
+    }
+
+    @Override public boolean permitsStaticFieldGet(Field field) {
+        Partition p = partition(generation.get());
+        return decide(p, Kind.STATIC_FIELD_GET, field, () -> p.cached.permitsStaticFieldGet(field)) || p.uncached.permitsStaticFieldGet(field);
+    }
+
+    @Override public boolean permitsStaticFieldSet(Field field, Object value) {
+        Partition p = partition(generation.get());
+        return decide(p, Kind.STATIC_FIELD_SET, field, () -> p.cached.permitsStaticFieldSet(field, value)) || p.uncached.permitsStaticFieldSet(field, value);
+    }
+
+    private boolean decide(Partition p, Kind kind, Member member, BooleanSupplier delegateDecision) {
+        if (DISABLED) {
+            return delegateDecision.getAsBoolean();
+        }
+        long g = p.generation;
+        Decisions d = decisions.get(member.getDeclaringClass());
+        if (d.generation != g) {
+            synchronized (d) {
+                if (d.generation != g) {
+                    d.map.clear();
+                    d.generation = g;
+                }
+            }
+        }
+        Key k = new Key(kind, member);
+        Boolean cached = d.map.get(k);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        boolean decision = delegateDecision.getAsBoolean();
+        if (generation.get() == g) {
+            d.map.put(k, decision);
+            if (generation.get() != g) {
+                // approvals or plugins changed while deciding; do not keep a possibly stale answer
+                d.map.remove(k);
+            }
+        }
+        return decision;
+    }
+
+    @Override public String toString() {
+        return super.toString() + "[" + whitelists + "]";
+    }
+
+    private enum Kind {
+        METHOD, CONSTRUCTOR, STATIC_METHOD, FIELD_GET, FIELD_SET, STATIC_FIELD_GET, STATIC_FIELD_SET
+    }
+
+    private static final class Key {
+        private final Kind kind;
+        private final Member member;
+
+        Key(Kind kind, Member member) {
+            this.kind = kind;
+            this.member = member;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return kind == other.kind && member.equals(other.member);
+        }
+
+        @Override public int hashCode() {
+            return kind.hashCode() * 31 + member.hashCode();
+        }
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void listenForWhitelistChanges() {
+        ExtensionList.lookup(Whitelist.class).addListener(new ExtensionListListener() {
+            @Override public void onChange() {
+                LOGGER.fine("installed whitelists changed");
+                invalidateAll();
+            }
+        });
+        invalidateAll();
+    }
+
+    @Extension public static final class ApprovalListener extends SaveableListener {
+        @Override public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof ScriptApproval) {
+                invalidateAll();
+                // ScriptApproval may reconfigure its whitelist only after saving, while still holding its lock,
+                // so discard anything decided in between once it is done.
+                Timer.get().submit(() -> {
+                    synchronized (o) {
+                        invalidateAll();
+                    }
+                });
+            }
+        }
+    }
+
+    @Extension(optional = true) public static class Statistics extends Component {
+
+        @Override public Set<Permission> getRequiredPermissions() {
+            return Set.of(Jenkins.ADMINISTER);
+        }
+
+        @Override public String getDisplayName() {
+            return "Pipeline sandbox decision cache statistics";
+        }
+
+        @Override public ComponentCategory getCategory() {
+            return ComponentCategory.BUILDS;
+        }
+
+        @Override public void addContents(Container container) {
+            container.add(new Content("nodes/master/pipeline-sandbox-decision-cache.txt") {
+                @Override public void writeTo(OutputStream outputStream) throws IOException {
+                    PrintWriter pw = new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                    pw.println("Enabled: " + !DISABLED);
+                    pw.println("Hits: " + hits.longValue());
+                    pw.println("Misses: " + misses.longValue());
+                    pw.println("Invalidations: " + invalidations.longValue());
+                    pw.flush();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.flow.FlowDurabilityHint;
+
+/**
+ * Decides how often the program of a build is saved while it runs.
+ *
+ * <p>
+ * With a {@link FlowDurabilityHint} which {@linkplain FlowDurabilityHint#isPersistWithEveryStep persists with every step},
+ * the program is by default saved every time it stops running to wait for steps.
+ * A policy may put that off, in which case the program is saved once the delay it asked for has passed
+ * (unless it was saved sooner anyway).
+ * Pausing the build, shutting down Jenkins, and steps explicitly saving the program always save it immediately.
+ * A policy should not defer saving for {@link FlowDurabilityHint#MAX_SURVIVABILITY},
+ * which asks for every step to be persisted even at some cost.
+ * The first policy found is used.
+ */
+public abstract class CheckpointPolicy implements ExtensionPoint {
+
+    /**
+     * Called on the CPS VM thread when the program could be saved.
+     * @param execution the build
+     * @param sinceLastSave nanoseconds since the program was last saved, or {@link Long#MAX_VALUE} if it has not been in this session
+     * @param changes number of times the program could have been saved since it last was, including this one
+     * @param saveCost recent average nanoseconds taken to save the program on the CPS VM thread, or zero if unknown
+     * @return zero or less to save now, else a delay in nanoseconds after which to save
+     */
+    public abstract long delay(CpsFlowExecution execution, long sinceLastSave, int changes, long saveCost);
+
+    static long delayFor(CpsFlowExecution execution, long sinceLastSave, int changes, long saveCost) {
+        for (CheckpointPolicy policy : ExtensionList.lookup(CheckpointPolicy.class)) {
+            return policy.delay(execution, sinceLastSave, changes, saveCost);
+        }
+        return 0;
+    }
+
+    /**
+     * Saves the program often enough to spend at most {@link #MAX_OVERHEAD_PERCENT} of the time doing so,
+     * but never leaving it unsaved for longer than {@link #MAX_INTERVAL_SECONDS} or {@link #MAX_CHANGES}.
+     * Only applies to {@link FlowDurabilityHint#SURVIVABLE_NONATOMIC}.
+     * Disabled by default.
+     */
+    @Extension(ordinal = -100) public static final class Adaptive extends CheckpointPolicy {
+
+        /** Longest time a program may go unsaved; zero or less to save every time. */
+        @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+        static long MAX_INTERVAL_SECONDS = SystemProperties.getLong(Adaptive.class.getName() + ".MAX_INTERVAL_SECONDS", 0L);
+
+        /** Number of changes after which a program is saved regardless of time; zero or less for no limit. */
+        @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+        static int MAX_CHANGES = SystemProperties.getInteger(Adaptive.class.getName() + ".MAX_CHANGES", 0);
+
+        /** Share of time to spend saving the program, as measured by its recent cost. */
+        @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+        static int MAX_OVERHEAD_PERCENT = SystemProperties.getInteger(Adaptive.class.getName() + ".MAX_OVERHEAD_PERCENT", 10);
+
+        @Override public long delay(CpsFlowExecution execution, long sinceLastSave, int changes, long saveCost) {
+            if (execution.getDurabilityHint() != FlowDurabilityHint.SURVIVABLE_NONATOMIC) {
+                return 0;
+            }
+            return delay(sinceLastSave, changes, saveCost);
+        }
+
+        static long delay(long sinceLastSave, int changes, long saveCost) {
+            if (MAX_INTERVAL_SECONDS <= 0) {
+                return 0;
+            }
+            if (MAX_CHANGES > 0 && changes >= MAX_CHANGES) {
+                return 0;
+            }
+            long interval = Math.min(TimeUnit.SECONDS.toNanos(MAX_INTERVAL_SECONDS), saveCost * 100 / Math.max(MAX_OVERHEAD_PERCENT, 1));
+            return sinceLastSave >= interval ? 0 : interval - sinceLastSave;
+        }
+
+    }
+
+}
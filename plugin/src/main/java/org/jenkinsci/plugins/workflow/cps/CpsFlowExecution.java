@@ -48,7 +48,9 @@ import groovy.lang.GroovyShell;
 import hudson.ExtensionList;
 import hudson.model.Action;
 import hudson.model.Result;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.Iterators;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.CauseOfInterruption;
 import jenkins.model.Jenkins;
 import org.jboss.marshalling.Unmarshaller;
@@ -69,7 +71,6 @@ import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.jenkinsci.plugins.workflow.support.concurrent.Futures;
-import org.jenkinsci.plugins.workflow.support.concurrent.Timeout;
 import org.jenkinsci.plugins.workflow.support.pickles.serialization.PickleResolver;
 import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverReader;
 import org.jenkinsci.plugins.workflow.support.storage.FlowNodeStorage;
@@ -88,9 +89,12 @@ import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -110,6 +114,7 @@ import hudson.Functions;
 import hudson.init.Terminator;
 import hudson.model.Item;
 import hudson.model.Job;
+import hudson.model.PeriodicWork;
 import hudson.model.Queue;
 import hudson.model.Run;
 import hudson.model.Saveable;
@@ -121,7 +126,9 @@ import java.beans.Introspector;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -244,10 +251,41 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
     @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
     public static boolean OPTIMIZE_STORAGE_UPON_COMPLETION = SystemProperties.getBoolean(CpsFlowExecution.class.getName() + ".OPTIMIZE_STORAGE_UPON_COMPLETION", true);
 
+    /**
+     * How long a {@link CpsThread} may run Groovy code without suspending before it yields the CPS VM thread,
+     * so that interrupts, other branches and listeners get a chance to run.
+     * Zero or negative for no limit, the default:
+     * with a limit, Groovy code between steps in {@code parallel} branches no longer runs atomically,
+     * so for example a read-modify-write of a map shared between branches may interleave.
+     * @see #setTimeSlice
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    public static long TIME_SLICE_MILLIS = SystemProperties.getLong(CpsFlowExecution.class.getName() + ".TIME_SLICE_MILLIS", 0L);
+
+    /**
+     * How many interpreter steps a {@link CpsThread} may run without suspending before it yields the CPS VM thread.
+     * Zero or negative for no limit.
+     * @see #setTimeSlice
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    public static long TIME_SLICE_STEPS = SystemProperties.getLong(CpsFlowExecution.class.getName() + ".TIME_SLICE_STEPS", 0L);
+
+    /**
+     * How many builds {@link #suspendAll} checkpoints at once when Jenkins shuts down.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    public static int SUSPEND_ALL_THREADS = SystemProperties.getInteger(CpsFlowExecution.class.getName() + ".SUSPEND_ALL_THREADS", 1);
+
+    /**
+     * How long {@link #suspendAll} may take in total; builds not checkpointed by then are abandoned.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    public static long SUSPEND_ALL_TIMEOUT_SECONDS = SystemProperties.getLong(CpsFlowExecution.class.getName() + ".SUSPEND_ALL_TIMEOUT_SECONDS", 180L);
+
     /**
      * Groovy script of the main source file (that the user enters in the GUI)
      */
-    private final String script;
+    private /*almost final*/ String script;
 
     /**
      * Any additional scripts {@linkplain CpsGroovyShell#parse(GroovyCodeSource) parsed} afterward, keyed by
@@ -255,6 +293,22 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
      */
     /*package*/ /*final*/ Map<String,String> loadedScripts = new LinkedHashMap<>();
 
+    /**
+     * {@link ScriptStore} hashes of {@link #script} and {@link #loadedScripts} as read from {@code build.xml},
+     * until they are needed.
+     */
+    private transient volatile @CheckForNull String scriptRef;
+    private transient @CheckForNull Map<String,String> loadedScriptRefs;
+
+    /**
+     * {@link ScriptStore} hashes of {@link #script} and {@link #loadedScripts} known to be in the store,
+     * so that saving {@code build.xml} need not hash them again; cleared by {@link #addLoadedScript}.
+     */
+    private transient @CheckForNull String storedScriptRef;
+    private transient @CheckForNull Map<String,String> storedLoadedScriptRefs;
+    /** Incremented by {@link #addLoadedScript}, to tell whether {@link #storedLoadedScriptRefs} is still current. */
+    private transient int loadedScriptsVersion;
+
     private final boolean sandbox;
     private transient /*almost final*/ FlowExecutionOwner owner;
 
@@ -293,6 +347,10 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
     /** Subdirectory string where we store {@link FlowNode}s */
     private String storageDir = null;
 
+    /** Overrides of {@link #TIME_SLICE_MILLIS} and {@link #TIME_SLICE_STEPS} for this build, if any. */
+    private @CheckForNull Long timeSliceMillis;
+    private @CheckForNull Long timeSliceSteps;
+
 
     /**
      * Start nodes that have been created, whose {@link BlockEndNode} is not yet created.
@@ -353,6 +411,9 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
      */
     private transient CpsGroovyShell trusted;
 
+    /** Set while the script is running if {@link ScriptClassCache#ENABLED}. */
+    private transient volatile ScriptClassCache classCache;
+
     /** Class of the {@link CpsScript}; its loader is a {@link groovy.lang.GroovyClassLoader.InnerLoader}, not the same as {@code shell.getClassLoader()}. */
     private transient Class<?> scriptClass;
 
@@ -391,14 +452,72 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
          * @see CpsThreadGroup#saveProgram(File)
          */
         saveProgram,
+        /**
+         * Serializing the program on the CPS VM thread, as part of {@link #saveProgram}.
+         */
+        saveProgramSnapshot,
+        /**
+         * Computing what needs to be written of a serialized program, when using {@link DeltaCheckpoints}.
+         * @see ProgramWriter
+         */
+        saveProgramEncode,
+        /**
+         * Writing a serialized program to disk, which may be done in the background.
+         * @see ProgramWriter
+         */
+        saveProgramWrite,
+        /**
+         * Loading the program of a resumed build: parsing scripts and reading {@code program.dat}, but not waiting for pickles.
+         * @see #loadProgramAsync
+         */
+        load,
+        /**
+         * Waiting for a turn to {@link #load} when Jenkins starts.
+         * @see ResumptionScheduler
+         */
+        loadQueue,
         /**
          * Loading or saving flow nodes.
          * @see FlowNodeStorage
          */
-        flowNode
+        flowNode,
+        /**
+         * Threads waiting for the CPS VM thread after becoming runnable, summed over all threads.
+         * @see CpsThread#getRunQueueWaitNanos
+         */
+        runQueue,
+        /**
+         * Finding which environment variables are sensitive before a step with recorded arguments starts.
+         * @see org.jenkinsci.plugins.workflow.steps.EnvironmentExpander#getSensitiveVariables
+         */
+        stepSensitiveVariables,
+        /**
+         * Computing the environment before a step with recorded arguments starts, when some variables are sensitive.
+         */
+        stepEnvironment,
+        /**
+         * Obtaining the environment of the agent, to exclude it from {@link #stepEnvironment}; may involve a remote call.
+         * @see hudson.model.Computer#getEnvironment
+         */
+        stepComputerEnvironment
     }
 
-    /** accumulated time in ns of a given {@link TimingKind#name}; {@link String} key for pretty XStream form */
+    /**
+     * Sizes recorded alongside {@link TimingKind}s, summed over all occurrences.
+     */
+    enum SizeKind {
+        /**
+         * Bytes of program state serialized, when it was then compressed.
+         * @see ProgramCompression
+         */
+        saveProgramRaw,
+        /**
+         * Bytes of compressed program state corresponding to {@link #saveProgramRaw}.
+         */
+        saveProgramCompressed
+    }
+
+    /** accumulated time in ns of a given {@link TimingKind#name}, or bytes of a {@link SizeKind#name}; {@link String} key for pretty XStream form */
     transient @NonNull Map<String, LongAdder> liveTimings = new ConcurrentHashMap<>();
     /** XStream simplified form of {@link #liveTimings} */
     private Map<String, Long> timings;
@@ -434,8 +553,34 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
         }
 
         @Override public void close() {
-            liveTimings.computeIfAbsent(kind.name(), k -> new LongAdder()).add(System.nanoTime() - start);
+            recordTiming(kind, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record time taken during a certain class of operation in this build, when it was measured separately.
+     */
+    void recordTiming(TimingKind kind, long nanos) {
+        liveTimings.computeIfAbsent(kind.name(), k -> new LongAdder()).add(nanos);
+    }
+
+    /**
+     * Record the size of something produced in this build.
+     */
+    void recordSize(SizeKind kind, long bytes) {
+        liveTimings.computeIfAbsent(kind.name(), k -> new LongAdder()).add(bytes);
+    }
+
+    /**
+     * Formats an entry of {@link #liveTimings} for display.
+     */
+    static String formatTiming(String key, long value) {
+        for (SizeKind kind : SizeKind.values()) {
+            if (kind.name().equals(key)) {
+                return value / 1024 + "KiB";
+            }
         }
+        return value / 1000 / 1000 + "ms";
     }
 
     /**
@@ -452,7 +597,7 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
     void logTimings() {
         if (TIMING_LOGGER.isLoggable(Level.FINE)) {
             Map<String, String> formatted = new TreeMap<>();
-            liveTimings.forEach((k, v) -> formatted.put(k, v.longValue() / 1000 / 1000 + "ms"));
+            liveTimings.forEach((k, v) -> formatted.put(k, formatTiming(k, v.longValue())));
             TIMING_LOGGER.log(Level.FINE, "timings for {0}: {1}", new Object[] {owner, formatted});
         }
     }
@@ -492,14 +637,76 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
         return storage;
     }
 
+    /**
+     * @throws UncheckedIOException if the script is in a {@link ScriptStore} and cannot be read from it
+     */
     public String getScript() {
+        resolveScriptsUnchecked();
         return script;
     }
 
+    /**
+     * @throws UncheckedIOException if the scripts are in a {@link ScriptStore} and cannot be read from it
+     */
     public Map<String,String> getLoadedScripts() {
+        resolveScriptsUnchecked();
         return Map.copyOf(loadedScripts);
     }
 
+    /**
+     * Reads {@link #script} and {@link #loadedScripts} from the {@link ScriptStore} if {@code build.xml} only referred to them.
+     */
+    private void resolveScripts() throws IOException {
+        String ref = scriptRef;
+        if (ref == null) {
+            return;
+        }
+        ScriptStore store = ScriptStore.of(owner);
+        if (store == null) {
+            throw new IOException("Cannot find script store for " + owner);
+        }
+        Map<String,String> refs = loadedScriptRefs;
+        Map<String,String> resolved = new LinkedHashMap<>();
+        String text;
+        try {
+            if (refs != null) {
+                for (Entry<String,String> e : refs.entrySet()) {
+                    resolved.put(e.getKey(), store.get(e.getValue()));
+                }
+            }
+            text = store.get(ref);
+        } catch (IOException x) {
+            throw new AbortException("Cannot read the Pipeline scripts of " + owner + ": " + x.getMessage());
+        }
+        synchronized (this) {
+            if (scriptRef != null) {
+                loadedScripts = resolved;
+                script = text;
+                storedScriptRef = ref;
+                storedLoadedScriptRefs = refs != null ? refs : new LinkedHashMap<>();
+                loadedScriptRefs = null;
+                scriptRef = null;
+            }
+        }
+    }
+
+    /**
+     * Records the text of a script parsed after the main one.
+     */
+    synchronized void addLoadedScript(String name, String text) {
+        loadedScripts.put(name, text);
+        loadedScriptsVersion++;
+        storedLoadedScriptRefs = null;
+    }
+
+    private void resolveScriptsUnchecked() {
+        try {
+            resolveScripts();
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
     /**
      * True if executing with groovy-sandbox, false if executing with approval.
      */
@@ -512,6 +719,25 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
         return owner;
     }
 
+    /**
+     * Overrides {@link #TIME_SLICE_MILLIS} and {@link #TIME_SLICE_STEPS} for this build.
+     * @param millis maximum time slice in milliseconds, or null to use the default
+     * @param steps maximum time slice in interpreter steps, or null to use the default
+     */
+    @Restricted(NoExternalUse.class)
+    public void setTimeSlice(@CheckForNull Long millis, @CheckForNull Long steps) {
+        timeSliceMillis = millis;
+        timeSliceSteps = steps;
+    }
+
+    long getTimeSliceNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(timeSliceMillis != null ? timeSliceMillis : TIME_SLICE_MILLIS);
+    }
+
+    long getTimeSliceSteps() {
+        return timeSliceSteps != null ? timeSliceSteps : TIME_SLICE_STEPS;
+    }
+
     private TimingFlowNodeStorage createStorage() throws IOException {
         FlowNodeStorage wrappedStorage;
 
@@ -626,11 +852,34 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
     }
 
     private CpsScript parseScript() throws IOException {
+        if (ScriptClassCache.ENABLED) {
+            ScriptClassCache cache = ScriptClassCache.load(this, isSandbox());
+            try {
+                CpsScript s = parseScript(cache);
+                classCache = cache;
+                saveScriptClassCache();
+                return s;
+            } catch (ScriptClassCache.StaleException x) {
+                LOGGER.log(Level.WARNING, "Recompiling scripts of " + owner, x);
+                ScriptClassCache.delete(this);
+                cache = ScriptClassCache.load(this, isSandbox());
+                CpsScript s = parseScript(cache);
+                classCache = cache;
+                saveScriptClassCache();
+                return s;
+            }
+        }
+        return parseScript(null);
+    }
+
+    private CpsScript parseScript(@CheckForNull ScriptClassCache cache) throws IOException {
+        resolveScripts();
         // classloader hierarchy. See doc/classloader.md
         CpsScript s;
         try {
             trusted = new CpsGroovyShellFactory(this).forTrusted().build();
             shell = new CpsGroovyShellFactory(this).withParent(trusted).build();
+            shell.setClassCache(cache);
 
             s = (CpsScript) shell.reparse("WorkflowScript",script);
 
@@ -646,6 +895,20 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
         return s;
     }
 
+    /**
+     * Writes out {@link ScriptClassCache} if in use, after scripts have been parsed.
+     */
+    void saveScriptClassCache() {
+        ScriptClassCache cache = classCache;
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "failed to save compiled scripts of " + owner, x);
+            }
+        }
+    }
+
     /**
      * Assigns a new ID.
      */
@@ -816,7 +1079,14 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                 }
             } else {  // See if we can/should resume build
                 if (canResume()) {
-                    loadProgramAsync(getProgramDataFile());
+                    File programDataFile = getProgramDataFile();
+                    if (ResumptionScheduler.isEnabled()) {
+                        SettableFuture<CpsThreadGroup> result = SettableFuture.create();
+                        programPromise = result;
+                        ResumptionScheduler.get().submit(this, programDataFile, result, () -> loadProgram(programDataFile, result));
+                    } else {
+                        loadProgramAsync(programDataFile);
+                    }
                 } else {
                     // TODO if possible, consider trying to close out unterminated blocks to keep existing graph history
                     // That way we can visualize the graph in some error cases.
@@ -844,11 +1114,27 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
     public void loadProgramAsync(File programDataFile) {
         final SettableFuture<CpsThreadGroup> result = SettableFuture.create();
         programPromise = result;
+        loadProgram(programDataFile, result);
+    }
 
+    /**
+     * Implementation of {@link #loadProgramAsync}.
+     * @param result already set as {@link #programPromise}
+     */
+    private void loadProgram(File programDataFile, SettableFuture<CpsThreadGroup> result) {
+        File decompressed = null;
         try {
-            scriptClass = parseScript().getClass();
+            final RiverReader r;
+            try (Timing t = time(TimingKind.load)) {
+                scriptClass = parseScript().getClass();
 
-            final RiverReader r = new RiverReader(programDataFile, scriptClass.getClassLoader(), owner);
+                decompressed = DeltaCheckpoints.replay(programDataFile);
+                if (decompressed == null) {
+                    decompressed = ProgramCompression.decompressed(programDataFile);
+                }
+                r = new RiverReader(decompressed != null ? decompressed : programDataFile, scriptClass.getClassLoader(), owner);
+            }
+            final File temporary = decompressed;
             Futures.addCallback(
                     r.restorePickles(pickleFutures = new ArrayList<>()),
 
@@ -858,7 +1144,7 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                             try {
                             CpsFlowExecution old = PROGRAM_STATE_SERIALIZATION.get();
                             PROGRAM_STATE_SERIALIZATION.set(CpsFlowExecution.this);
-                            try {
+                            try (Timing t = time(TimingKind.load)) {
                                 CpsThreadGroup g = (CpsThreadGroup) u.readObject();
                                 result.set(g);
                                 pausedWhenLoaded = g.isPaused();
@@ -870,6 +1156,7 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                             }
                             } finally {
                                 r.close();
+                                ProgramCompression.deleteDecompressed(temporary);
                             }
                         }
 
@@ -879,11 +1166,13 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                                 loadProgramFailed(t, result);
                             } finally {
                                 r.close();
+                                ProgramCompression.deleteDecompressed(temporary);
                             }
                         }
                     });
 
         } catch (Exception | GroovyBugError e) {
+            ProgramCompression.deleteDecompressed(decompressed);
             loadProgramFailed(e, result);
         }
     }
@@ -972,12 +1261,29 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
 
             @Override
             public void onSuccess(final CpsThreadGroup g) {
-                g.runner.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.onSuccess(g);
+                if (g.hibernated) {
+                    // program was dropped since; wait for it to be loaded again
+                    runInCpsVmThread(callback);
+                    return;
+                }
+                try {
+                    g.runner.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (g.hibernated) {
+                                runInCpsVmThread(callback);
+                            } else {
+                                callback.onSuccess(g);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException x) {
+                    if (g.hibernated) {
+                        runInCpsVmThread(callback);
+                    } else {
+                        throw x;
                     }
-                });
+                }
             }
 
             /**
@@ -990,8 +1296,97 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
         });
     }
 
+    /**
+     * Drops the program from memory if {@link Hibernation} is enabled and it has been waiting long enough.
+     */
+    void hibernateIfIdle() {
+        ListenableFuture<CpsThreadGroup> p = programPromise;
+        if (p == null || !p.isDone() || pickleFutures != null || isComplete()) {
+            return;
+        }
+        runInCpsVmThread(new FutureCallback<>() {
+            @Override public void onSuccess(CpsThreadGroup g) {
+                try {
+                    Hibernation.hibernateIfIdle(g);
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "failed to hibernate " + owner, x);
+                }
+            }
+            @Override public void onFailure(Throwable t) {
+                LOGGER.log(Level.FINE, "could not check whether to hibernate " + owner, t);
+            }
+        });
+    }
+
+    /**
+     * Called from {@link Hibernation} on the CPS VM thread once the program has been saved.
+     */
+    @CpsVmThreadOnly
+    void hibernate(CpsThreadGroup g, Hibernation.Dormant dormant) {
+        programPromise = dormant;
+        g.hibernated = true;
+        cleanUpHeap();
+        g.shutdown();
+    }
+
+    /**
+     * Loads the program of a hibernated execution.
+     */
+    void wake(Hibernation.Dormant dormant) {
+        SettableFuture<CpsThreadGroup> loaded = SettableFuture.create();
+        try {
+            loadProgram(getProgramDataFile(), loaded);
+        } catch (IOException x) {
+            loadProgramFailed(x, loaded);
+        }
+        Futures.addCallback(loaded, new FutureCallback<>() {
+            @Override public void onSuccess(CpsThreadGroup g) {
+                try {
+                    g.runner.submit(() -> {
+                        dormant.loaded(g);
+                        if (!pausedWhenLoaded) {
+                            g.unpause();
+                        }
+                    });
+                } catch (RejectedExecutionException x) {
+                    dormant.failed(x);
+                }
+            }
+            @Override public void onFailure(Throwable t) {
+                dormant.failed(t);
+            }
+        });
+    }
+
+    /**
+     * Whether {@link CheckpointPolicy} has put off saving the loaded program.
+     */
+    private boolean isCheckpointDeferred() {
+        ListenableFuture<CpsThreadGroup> p = programPromise;
+        if (p == null || !p.isDone() || p instanceof Hibernation.Dormant) {
+            return false;
+        }
+        try {
+            return p.get().isCheckpointDeferred();
+        } catch (InterruptedException | ExecutionException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether the program has been dropped from memory by {@link Hibernation}, and not yet requested.
+     */
+    boolean isHibernated() {
+        ListenableFuture<CpsThreadGroup> p = programPromise;
+        return p instanceof Hibernation.Dormant && ((Hibernation.Dormant) p).isAsleep();
+    }
+
     /** See JENKINS-22941 for why this exists. */
     @Override public boolean blocksRestart() {
+        if (isHibernated()) {
+            // program is already saved
+            return false;
+        }
         if (programPromise == null || !programPromise.isDone()) {
             // Can't restart cleanly while trying to set up the build
             return true;
@@ -1057,6 +1452,14 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
         if (programPromise == null || isComplete()) {
             return Futures.immediateFuture(Collections.<StepExecution>emptyList());
         }
+        ListenableFuture<CpsThreadGroup> p = programPromise;
+        if (p instanceof Hibernation.Dormant) {
+            // do not wake the program just to list its steps; those kept live are all innermost
+            List<StepExecution> live = ((Hibernation.Dormant) p).getLiveSteps();
+            if (live != null) {
+                return Futures.immediateFuture(live);
+            }
+        }
 
         final SettableFuture<List<StepExecution>> r = SettableFuture.create();
         runInCpsVmThread(new FutureCallback<>() {
@@ -1109,6 +1512,9 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
         if (programPromise == null || isComplete()) {
             return CpsThreadDump.EMPTY;
         }
+        if (isHibernated()) {
+            return CpsThreadDump.fromText("Program is hibernated until a step completes");
+        }
         if (!programPromise.isDone()) {
             // CpsThreadGroup state isn't ready yet, but this is probably one of the common cases
             // when one wants to obtain the stack trace. Cf. JENKINS-26130.
@@ -1367,6 +1773,7 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
     }
 
     private void closeShells() {
+        classCache = null;
         try {
             if (shell != null) {
                 LOGGER.fine(() -> "closing main class loader from " + owner);
@@ -1673,47 +2080,94 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
     @Restricted(DoNotUse.class)
     @Terminator(attains = FlowExecutionList.EXECUTIONS_SUSPENDED)
     public static void suspendAll() {
-        try (Timeout t = Timeout.limit(3, TimeUnit.MINUTES)) { // TODO some complicated sequence of calls to Futures could allow all of them to run in parallel
-            LOGGER.fine("starting to suspend all executions");
-            for (FlowExecution execution : FlowExecutionList.get()) {
-                if (execution instanceof CpsFlowExecution) {
-                    CpsFlowExecution cpsExec = (CpsFlowExecution) execution;
-                    try {
-                        cpsExec.checkAndAbortNonresumableBuild();
+        long start = System.nanoTime();
+        LOGGER.fine("starting to suspend all executions");
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        List<CpsFlowExecution> executions = new ArrayList<>();
+        for (FlowExecution execution : FlowExecutionList.get()) {
+            if (execution instanceof CpsFlowExecution) {
+                CpsFlowExecution cpsExec = (CpsFlowExecution) execution;
+                executions.add(cpsExec);
+                tasks.add(cpsExec::suspendForShutdown);
+            }
+        }
+        if (executions.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(SUSPEND_ALL_THREADS, executions.size())),
+            new NamingThreadFactory(new DaemonThreadFactory(), "CpsFlowExecution.suspendAll"));
+        int clean = 0;
+        try {
+            List<Future<Boolean>> results = pool.invokeAll(tasks, SUSPEND_ALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            for (int i = 0; i < results.size(); i++) {
+                Future<Boolean> result = results.get(i);
+                if (result.isCancelled()) {
+                    LOGGER.log(Level.WARNING, "Timed out persisting Pipeline execution at shutdown: {0}", executions.get(i).owner);
+                    continue;
+                }
+                try {
+                    if (result.get()) {
+                        clean++;
+                    }
+                } catch (ExecutionException x) {
+                    LOGGER.log(Level.WARNING, "Error persisting Pipeline execution at shutdown: " + executions.get(i).owner, x.getCause());
+                }
+            }
+        } catch (InterruptedException x) {
+            LOGGER.log(Level.WARNING, "Interrupted while suspending Pipeline executions", x);
+        } finally {
+            pool.shutdownNow();
+        }
+        LOGGER.log(clean == executions.size() ? Level.INFO : Level.WARNING, "Suspended {0} of {1} Pipeline builds cleanly in {2}ms",
+            new Object[] {clean, executions.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+    }
 
-                        LOGGER.log(Level.FINE, "waiting to suspend {0}", execution);
-                        // Like waitForSuspension but with a timeout:
-                        if (cpsExec.programPromise != null) {
-                            LOGGER.log(Level.FINER, "Waiting for Pipeline to go to sleep for shutdown: "+execution);
-                            try {
-                                cpsExec.programPromise.get(1, TimeUnit.MINUTES).scheduleRun().get(1, TimeUnit.MINUTES);
-                                LOGGER.log(Level.FINER, " Pipeline went to sleep OK: "+execution);
-                            } catch (InterruptedException | TimeoutException ex) {
-                                LOGGER.log(Level.WARNING, "Error waiting for Pipeline to suspend: " + cpsExec, ex);
-                            }
-                        }
-                        cpsExec.checkpoint(true);
-                        if (cpsExec.programPromise != null) {
-                            cpsExec.runInCpsVmThread(new FutureCallback<>() {
-                                @Override public void onSuccess(CpsThreadGroup g) {
-                                    LOGGER.fine(() -> "shutting down CPS VM threadin for " + cpsExec);
-                                    g.shutdown();
-                                }
-                                @Override public void onFailure(Throwable t) {
-                                    LOGGER.log(Level.WARNING, null, t);
-                                }
-                            });
-                        }
-                        if (cpsExec.owner != null) {
-                            cpsExec.owner.getListener().getLogger().close();
-                        }
-                    } catch (Exception ex) {
-                        LOGGER.log(Level.WARNING, "Error persisting Pipeline execution at shutdown: " + cpsExec.owner, ex);
+    /**
+     * Checkpoints this build and stops its program as part of {@link #suspendAll}.
+     * @return whether it was checkpointed cleanly
+     */
+    private boolean suspendForShutdown() throws IOException {
+        checkAndAbortNonresumableBuild();
+
+        LOGGER.log(Level.FINE, "waiting to suspend {0}", this);
+        boolean hibernated = isHibernated();
+        boolean clean = true;
+        // Like waitForSuspension but with a timeout:
+        if (programPromise != null && !hibernated) {
+            LOGGER.log(Level.FINER, "Waiting for Pipeline to go to sleep for shutdown: {0}", this);
+            try {
+                programPromise.get(1, TimeUnit.MINUTES).scheduleRun().get(1, TimeUnit.MINUTES);
+                LOGGER.log(Level.FINER, " Pipeline went to sleep OK: {0}", this);
+            } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+                LOGGER.log(Level.WARNING, "Error waiting for Pipeline to suspend: " + this, ex);
+                clean = false;
+            }
+        }
+        clean &= checkpoint(true);
+        if (programPromise != null && !hibernated) {
+            runInCpsVmThread(new FutureCallback<>() {
+                @Override public void onSuccess(CpsThreadGroup g) {
+                    LOGGER.fine(() -> "shutting down CPS VM threadin for " + CpsFlowExecution.this);
+                    try {
+                        g.flushProgram();
+                    } catch (IOException | InterruptedException x) {
+                        LOGGER.log(Level.WARNING, "Error saving program for: " + CpsFlowExecution.this, x);
                     }
+                    g.shutdown();
+                }
+                @Override public void onFailure(Throwable t) {
+                    LOGGER.log(Level.WARNING, null, t);
                 }
+            });
+        }
+        if (owner != null) {
+            PrintStream logger = owner.getListener().getLogger();
+            if (!isComplete()) {
+                logger.println(clean ? "Saved state for Jenkins shutdown" : "Could not fully save state for Jenkins shutdown; this build may not resume");
             }
-            LOGGER.fine("finished suspending all executions");
+            logger.close();
         }
+        return clean;
     }
 
     // TODO: write a custom XStream Converter so that while we are writing CpsFlowExecution, it holds that lock
@@ -1739,8 +2193,10 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
             CpsFlowExecution e = (CpsFlowExecution) source;
 
             writeChild(w, context, "result", e.result, Result.class);
-            writeChild(w, context, "script", e.script, String.class);
-            writeChild(w, context, "loadedScripts", e.loadedScripts, Map.class);
+            if (!writeScriptRefs(w, context, e)) {
+                writeChild(w, context, "script", e.script, String.class);
+                writeChild(w, context, "loadedScripts", e.loadedScripts, Map.class);
+            }
             if (e.persistedClean != null) {
                 writeChild(w, context, "persistedClean", e.persistedClean, Boolean.class);
             }
@@ -1782,6 +2238,65 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
             if (e.storageDir != null) {
                 writeChild(w, context, "storageDir", e.storageDir, String.class);
             }
+            if (e.timeSliceMillis != null) {
+                writeChild(w, context, "timeSliceMillis", e.timeSliceMillis, Long.class);
+            }
+            if (e.timeSliceSteps != null) {
+                writeChild(w, context, "timeSliceSteps", e.timeSliceSteps, Long.class);
+            }
+        }
+
+        /**
+         * Writes hashes of scripts in place of their text, if using {@link ScriptStore} or if the text was never read.
+         * @return false to write the text
+         */
+        private boolean writeScriptRefs(HierarchicalStreamWriter w, MarshallingContext context, CpsFlowExecution e) {
+            String ref;
+            Map<String,String> refs;
+            synchronized (e) {
+                ref = e.scriptRef;
+                refs = e.loadedScriptRefs;
+            }
+            if (ref == null) {
+                if (!ScriptStore.ENABLED) {
+                    return false;
+                }
+                Map<String,String> loadedScripts;
+                int version;
+                synchronized (e) {
+                    ref = e.storedScriptRef;
+                    refs = e.storedLoadedScriptRefs;
+                    loadedScripts = new LinkedHashMap<>(e.loadedScripts);
+                    version = e.loadedScriptsVersion;
+                }
+                if (ref == null || refs == null) {
+                    try {
+                        ScriptStore store = ScriptStore.of(e.owner);
+                        if (store == null) {
+                            return false;
+                        }
+                        if (ref == null) {
+                            ref = store.put(e.script);
+                        }
+                        refs = new LinkedHashMap<>();
+                        for (Entry<String,String> loaded : loadedScripts.entrySet()) {
+                            refs.put(loaded.getKey(), store.put(loaded.getValue()));
+                        }
+                    } catch (IOException x) {
+                        LOGGER.log(Level.WARNING, "Failed to store scripts of " + e.owner + "; saving them inline", x);
+                        return false;
+                    }
+                    synchronized (e) {
+                        e.storedScriptRef = ref;
+                        if (e.loadedScriptsVersion == version) {
+                            e.storedLoadedScriptRefs = refs;
+                        }
+                    }
+                }
+            }
+            writeChild(w, context, "scriptRef", ref, String.class);
+            writeChild(w, context, "loadedScriptRefs", refs != null ? refs : new LinkedHashMap<String,String>(), Map.class);
+            return true;
         }
 
         private <T> void writeChild(HierarchicalStreamWriter w, MarshallingContext context, String name, @NonNull T v, Class<T> staticType) {
@@ -1824,6 +2339,10 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                         } else if (nodeName.equals("loadedScripts")) {
                             Map loadedScripts = readChild(reader, context, Map.class, result);
                             setField(result, "loadedScripts", loadedScripts);
+                        } else if (nodeName.equals("scriptRef")) {
+                            result.scriptRef = readChild(reader, context, String.class, result);
+                        } else if (nodeName.equals("loadedScriptRefs")) {
+                            result.loadedScriptRefs = readChild(reader, context, Map.class, result);
                         } else if (nodeName.equals("timings")) {
                             Map timings = readChild(reader, context, Map.class, result);
                             setField(result, "timings", timings);
@@ -1864,6 +2383,12 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                         } else if (nodeName.equals("storageDir")) {
                             String val = readChild(reader, context, String.class, result);
                             setField(result, "storageDir", val);
+                        } else if (nodeName.equals("timeSliceMillis")) {
+                            Long val = readChild(reader, context, Long.class, result);
+                            setField(result, "timeSliceMillis", val);
+                        } else if (nodeName.equals("timeSliceSteps")) {
+                            Long val = readChild(reader, context, Long.class, result);
+                            setField(result, "timeSliceSteps", val);
                         }
 
                         reader.moveUp();
@@ -2054,7 +2579,7 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                                     if (exec instanceof CpsFlowExecution) {
                                         Map<String, LongAdder> sortedTimings = new TreeMap<>(((CpsFlowExecution) exec).liveTimings);
                                         pw.println("Timings for " + run + ":");
-                                        sortedTimings.forEach((k, v) -> pw.println("  " + k + "\t" + v.longValue() / 1000 / 1000 + "ms"));
+                                        sortedTimings.forEach((k, v) -> pw.println("  " + k + "\t" + formatTiming(k, v.longValue())));
                                         pw.println("Approximate graph size: " + ((CpsFlowExecution) exec).approximateNodeCount());
                                         pw.println();
                                     }
@@ -2062,6 +2587,9 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                             }
                         }
                     }
+                    if (ResumptionScheduler.isEnabled()) {
+                        ResumptionScheduler.get().writeStatus(pw);
+                    }
                     pw.flush();
                 }
             });
@@ -2069,6 +2597,26 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
 
     }
 
+    @Restricted(DoNotUse.class)
+    @Extension public static final class HibernationSweeper extends PeriodicWork {
+
+        @Override public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override protected void doRun() throws Exception {
+            if (!Hibernation.isEnabled()) {
+                return;
+            }
+            for (FlowExecution execution : FlowExecutionList.get()) {
+                if (execution instanceof CpsFlowExecution) {
+                    ((CpsFlowExecution) execution).hibernateIfIdle();
+                }
+            }
+        }
+
+    }
+
     @Extension(optional=true) public static class PipelineInternalCalls extends Component {
 
         @Override public Set<Permission> getRequiredPermissions() {
@@ -2151,11 +2699,16 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
     /**
      * Save everything we can to disk - program, run, flownodes.
      * @param shuttingDown True if this checkpoint is happening because Jenkins is shutting down, false if it is happening because execution was paused.
+     * @return whether everything was saved
      */
-    private void checkpoint(boolean shuttingDown) {
-        if (isComplete() || this.getDurabilityHint().isPersistWithEveryStep()) {
-            // Nothing to persist OR we've already persisted it along the way.
-            return;
+    private boolean checkpoint(boolean shuttingDown) {
+        if (isComplete()) {
+            // Nothing to persist
+            return true;
+        }
+        if (this.getDurabilityHint().isPersistWithEveryStep() && !isCheckpointDeferred()) {
+            // We've already persisted it along the way, but perhaps not finished writing it.
+            return flushProgram();
         }
         LOGGER.log(Level.INFO, "Attempting to save a checkpoint of all data for {0}{1}", new Object[] {
             this, shuttingDown ? " before shutdown" : ""
@@ -2174,13 +2727,16 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
             try {
                 final CompletableFuture<Void> myOutcome = new CompletableFuture<>();
                 LOGGER.log(Level.FINE, "About to try to checkpoint the program for: {0}", this);
-                if (programPromise != null && programPromise.isDone()) {
+                if (isHibernated()) {
+                    LOGGER.log(Level.FINE, "Program already saved when hibernated for: {0}", this);
+                } else if (programPromise != null && programPromise.isDone()) {
                     runInCpsVmThread(new FutureCallback<>() {
                         @Override
                         public void onSuccess(CpsThreadGroup result) {
                             try {
                                 LOGGER.log(Level.FINE, "Trying to save program for: {0}", CpsFlowExecution.this);
                                 result.saveProgramIfPossible(true);
+                                result.flushProgram();
                                 LOGGER.log(Level.FINE, "Finished saving program for: {0}", CpsFlowExecution.this);
                                 myOutcome.complete(null);
                             } catch (Exception ex) {
@@ -2238,6 +2794,30 @@ public class CpsFlowExecution extends FlowExecution implements BlockableResume {
                 this, (shuttingDown ? " before shutdown, so this build will probably fail when Jenkins restarts" : "")
             });
         }
+        return persistOk;
+    }
+
+    /**
+     * Waits for the loaded program, if any, to finish being written by {@link ProgramWriter}.
+     * @return whether the program state last saved is on disk
+     */
+    private boolean flushProgram() {
+        ListenableFuture<CpsThreadGroup> p = programPromise;
+        if (p == null || !p.isDone() || p instanceof Hibernation.Dormant) {
+            return true; // nothing written in the background
+        }
+        try {
+            p.get().flushProgram();
+            return true;
+        } catch (ExecutionException x) {
+            return true; // never loaded, so never saved
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Error saving program for: " + this, x);
+            return false;
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     /** Abort any running builds at Jenkins shutdown if they don't support resuming at next startup. */
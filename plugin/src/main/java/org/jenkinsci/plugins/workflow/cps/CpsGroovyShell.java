@@ -10,6 +10,8 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.URL;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
@@ -22,10 +24,12 @@ import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.codehaus.groovy.ast.ClassNode;
 import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.control.CompilationUnit;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.GroovySandbox;
 
@@ -46,6 +50,11 @@ class CpsGroovyShell extends GroovyShell {
      */
     private final @CheckForNull CpsFlowExecution execution;
 
+    /**
+     * If set, classes compiled by {@link #reparse} are looked up here first, and newly compiled ones recorded.
+     */
+    private @CheckForNull ScriptClassCache classCache;
+
     /**
      * Use {@link CpsGroovyShellFactory} to instantiate it.
      */
@@ -75,10 +84,59 @@ class CpsGroovyShell extends GroovyShell {
      */
     private static final class CleanGroovyClassLoader extends GroovyClassLoader {
 
+        /**
+         * While compiling a script for {@link ScriptClassCache}, the bytecode of classes defined from it, else null.
+         * Only set during parsing, which happens on one thread at a time.
+         */
+        private @CheckForNull Map<String, byte[]> recording;
+        /** set if the script being recorded also compiled other sources, so its bytecode alone does not suffice */
+        private boolean recordingIncomplete;
+        /** bytecode from {@link ScriptClassCache} being defined */
+        private final Map<String, byte[]> predefined = new LinkedHashMap<>();
+
         CleanGroovyClassLoader(ClassLoader loader, CompilerConfiguration config) {
             super(loader, config);
         }
 
+        @Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytecode = predefined.remove(name);
+            if (bytecode != null) {
+                Class<?> c = defineClass(name, bytecode, 0, bytecode.length,
+                    new GroovyCodeSource("", name, DEFAULT_CODE_BASE).getCodeSource());
+                setClassCacheEntry(c);
+                return c;
+            }
+            return super.findClass(name);
+        }
+
+        /**
+         * Defines classes previously compiled from one script.
+         * @param classes bytecode by class name, starting with the script class
+         * @return the script class
+         */
+        synchronized Class<?> define(Map<String, byte[]> classes) throws ClassNotFoundException {
+            predefined.putAll(classes);
+            try {
+                Class<?> main = null;
+                for (String name : classes.keySet()) {
+                    // go through loadClass rather than findClass, as a class may already have been defined as the superclass of another
+                    Class<?> c = loadClass(name, false, true, false);
+                    if (c.getClassLoader() != this) {
+                        throw new ClassNotFoundException(name + " was already defined in " + c.getClassLoader());
+                    }
+                    if (main == null) {
+                        main = c;
+                    }
+                }
+                if (main == null) {
+                    throw new ClassNotFoundException("no classes");
+                }
+                return main;
+            } finally {
+                predefined.clear();
+            }
+        }
+
         @Override protected ClassCollector createCollector(CompilationUnit unit, SourceUnit su) {
             // Super implementation is what creates the InnerLoader.
             return new CleanClassCollector(unit, su);
@@ -126,9 +184,24 @@ class CpsGroovyShell extends GroovyShell {
 
         private final class CleanClassCollector extends ClassCollector {
 
+            private final SourceUnit su;
+
             CleanClassCollector(CompilationUnit unit, SourceUnit su) {
                 // Cannot override {@code final cl} field so have to do it this way.
                 super(null, unit, su);
+                this.su = su;
+            }
+
+            @Override protected Class createClass(byte[] code, ClassNode classNode) {
+                Map<String, byte[]> r = recording;
+                if (r != null) {
+                    if (classNode.getModule() != null && classNode.getModule().getContext() == su) {
+                        r.put(classNode.getName(), code);
+                    } else {
+                        recordingIncomplete = true;
+                    }
+                }
+                return super.createClass(code, classNode);
             }
 
             @Override public GroovyClassLoader getDefiningClassLoader() {
@@ -158,9 +231,10 @@ class CpsGroovyShell extends GroovyShell {
      */
     @Override
     public Script parse(GroovyCodeSource codeSource) throws CompilationFailedException {
-        Script s = doParse(codeSource);
+        Script s = compile(codeSource);
         if (execution!=null) {
-            execution.loadedScripts.put(s.getClass().getSimpleName(), codeSource.getScriptText());
+            execution.addLoadedScript(s.getClass().getSimpleName(), codeSource.getScriptText());
+            execution.saveScriptClassCache();
             execution.saveExecutionIfDurable();
         }
         prepareScript(s);
@@ -172,7 +246,55 @@ class CpsGroovyShell extends GroovyShell {
      * (therefore we don't want to record this.)
      */
     /*package*/ Script reparse(String className, String text) throws CompilationFailedException {
-        return doParse(new GroovyCodeSource(text,className,DEFAULT_CODE_BASE));
+        ScriptClassCache cache = classCache;
+        GroovyClassLoader loader = getClassLoader();
+        if (execution != null && cache != null && loader instanceof CleanGroovyClassLoader) {
+            Map<String, byte[]> cached = cache.get(className, text);
+            if (cached != null) {
+                try (CpsFlowExecution.Timing t = execution.time(CpsFlowExecution.TimingKind.parse)) {
+                    LOGGER.log(Level.FINE, "defining cached classes of {0}", className);
+                    return InvokerHelper.createScript(((CleanGroovyClassLoader) loader).define(cached), getContext());
+                } catch (ClassNotFoundException | LinkageError x) {
+                    throw new ScriptClassCache.StaleException(className, x);
+                }
+            }
+        }
+        return compile(new GroovyCodeSource(text,className,DEFAULT_CODE_BASE));
+    }
+
+    /**
+     * Parses a script, recording its classes in {@link #classCache} if set.
+     */
+    private Script compile(GroovyCodeSource codeSource) throws CompilationFailedException {
+        ScriptClassCache cache = classCache;
+        GroovyClassLoader loader = getClassLoader();
+        if (cache == null || !(loader instanceof CleanGroovyClassLoader)) {
+            return doParse(codeSource);
+        }
+        CleanGroovyClassLoader cleanLoader = (CleanGroovyClassLoader) loader;
+        int urls = cleanLoader.getURLs().length;
+        Map<String, byte[]> recorded = new LinkedHashMap<>();
+        cleanLoader.recording = recorded;
+        cleanLoader.recordingIncomplete = false;
+        Script s;
+        try {
+            s = doParse(codeSource);
+        } finally {
+            cleanLoader.recording = null;
+        }
+        // Skip scripts which pulled in other sources or added to the classpath (@Grab), since their bytecode alone would not reproduce them.
+        String main = s.getClass().getName();
+        if (!cleanLoader.recordingIncomplete && cleanLoader.getURLs().length == urls && recorded.containsKey(main)) {
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            classes.put(main, recorded.remove(main));
+            classes.putAll(recorded);
+            cache.put(s.getClass().getSimpleName(), codeSource.getScriptText(), classes);
+        }
+        return s;
+    }
+
+    void setClassCache(@CheckForNull ScriptClassCache classCache) {
+        this.classCache = classCache;
     }
 
     private Script doParse(GroovyCodeSource codeSource) throws CompilationFailedException {
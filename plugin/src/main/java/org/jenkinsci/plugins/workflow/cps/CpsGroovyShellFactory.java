@@ -4,8 +4,10 @@ import com.cloudbees.groovy.cps.CpsTransformer;
 import com.cloudbees.groovy.cps.NonCPS;
 import com.cloudbees.groovy.cps.SandboxCpsTransformer;
 import com.cloudbees.groovy.cps.TransformerConfiguration;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import groovy.lang.GroovyShell;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.GroovySandbox;
@@ -21,6 +23,13 @@ import java.util.List;
  * @author Kohsuke Kawaguchi
  */
 class CpsGroovyShellFactory {
+    /**
+     * Whether methods that provably cannot suspend are compiled as if they were {@link NonCPS}.
+     * @see TransformerConfiguration#withNonCpsInference(boolean)
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean INFER_NON_CPS = SystemProperties.getBoolean(CpsGroovyShellFactory.class.getName() + ".INFER_NON_CPS");
+
     private final @CheckForNull CpsFlowExecution execution;
     private boolean sandbox;
     private List<GroovyShellDecorator> decorators;
@@ -79,7 +88,8 @@ class CpsGroovyShellFactory {
         CpsTransformer t = sandbox ? new SandboxCpsTransformer() : new CpsTransformer();
         t.setConfiguration(new TransformerConfiguration()
                 .withClosureType(CpsClosure2.class)
-                .withSafepoint(Safepoint.class,"safepoint"));
+                .withSafepoint(Safepoint.class,"safepoint")
+                .withNonCpsInference(INFER_NON_CPS));
         return t;
     }
 
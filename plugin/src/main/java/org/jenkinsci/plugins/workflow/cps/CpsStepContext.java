@@ -252,6 +252,18 @@ public class CpsStepContext extends DefaultStepContext { // TODO add XStream cla
         return threadGroup;
     }
 
+    /**
+     * Lets go of the program when it is dropped by {@link Hibernation}, while this context is kept alive.
+     */
+    synchronized void hibernate() {
+        threadGroup = null;
+        loadingThreadGroup = false;
+        if (body != null) {
+            // do not hold on to the closure from the old program
+            body = new HandleBodyReference(body.id);
+        }
+    }
+
     // As in c16a522, using jenkins.util.Timer for this could deadlock. TODO would like a standard unbounded executor service.
     private static final ExecutorService isReadyExecutorService = new ContextResettingExecutorService(Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "CpsStepContext.isReady")));
     @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
@@ -28,6 +28,7 @@ import com.cloudbees.groovy.cps.Continuable;
 import com.cloudbees.groovy.cps.Outcome;
 import com.google.common.util.concurrent.FutureCallback;
 import java.io.IOException;
+import org.jenkinsci.plugins.workflow.cps.actions.SecretMasker;
 import org.jenkinsci.plugins.workflow.cps.persistence.PersistIn;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 
@@ -109,6 +110,24 @@ public final class CpsThread implements Serializable {
      */
     private StepExecution step;
 
+    /**
+     * Whether this thread is in the {@linkplain CpsThreadGroup#enqueue run queue} of its group,
+     * and since when per {@link System#nanoTime}.
+     */
+    transient boolean queued;
+    transient long queuedSince;
+
+    /**
+     * Total time this thread has spent in the run queue, waiting for the CPS VM thread, since it was loaded.
+     */
+    private transient long runQueueWaitNanos;
+
+    /**
+     * Masker for the secrets in scope when this thread last recorded step arguments,
+     * reused by {@link DSL} while those stay the same, as for steps inside a credentials binding block.
+     */
+    transient SecretMasker secretMasker;
+
     /**
      * Gets called when the thread is done.
      */
@@ -152,6 +171,17 @@ public final class CpsThread implements Serializable {
         return resumeValue!=null;
     }
 
+    /**
+     * Total time this thread has spent runnable but waiting for other threads to get off the CPS VM thread.
+     */
+    public long getRunQueueWaitNanos() {
+        return runQueueWaitNanos;
+    }
+
+    void addRunQueueWait(long nanos) {
+        runQueueWaitNanos += nanos;
+    }
+
     public StepExecution getStep() {
         return step;
     }
@@ -177,7 +207,16 @@ public final class CpsThread implements Serializable {
             LOGGER.fine(() -> "runNextChunk on " + resumeValue);
             final Outcome o = resumeValue;
             resumeValue = null;
-            outcome = program.run0(o);
+            CpsFlowExecution execution = group.getExecution();
+            outcome = program.run0(o, execution.getTimeSliceSteps(), execution.getTimeSliceNanos());
+            if (outcome.getNormal() == Continuable.PREEMPTED) {
+                // used up its time slice; let others use the CPS VM thread, then carry on from the same point.
+                // the promise is left alone, since as far as the caller of resume() is concerned this chunk is not over yet
+                LOGGER.fine(() -> this + " used up its time slice");
+                resumeValue = new Outcome(null, null);
+                group.enqueue(this);
+                return outcome;
+            }
             if (outcome.getAbnormal() != null) {
                 LOGGER.log(FINE, "ran and produced error", outcome.getAbnormal());
             } else {
@@ -192,6 +231,7 @@ public final class CpsThread implements Serializable {
                 if (r.resume!=null) {
                     // yield, then keep evaluating the CPS code
                     resumeValue = r.resume;
+                    group.enqueue(this);
                 } else {
                     // break but with a different value
                     outcome = r.suspend;
@@ -283,6 +323,7 @@ public final class CpsThread implements Serializable {
         }
         resumeValue = v;
         promise = new CompletableFuture<>();
+        group.enqueue(this);
         group.scheduleRun();
         return promise;
     }
@@ -33,6 +33,7 @@ public final class CpsThreadDump {
     public static final class ThreadInfo {
         private final String headline;
         private final List<StackTraceElement> stack = new ArrayList<>();
+        private long runQueueWaitNanos;
 
         private static final int MAX_STATUS_LENGTH = 1000;
 
@@ -47,6 +48,7 @@ public final class CpsThreadDump {
             ListIterator<CpsThread> itr = e.listIterator(e.size());
             while (itr.hasPrevious()) {
                 CpsThread t = itr.previous();
+                runQueueWaitNanos += t.getRunQueueWaitNanos();
 
                 StepExecution s = t.getStep();
                 if (s !=null) {
@@ -89,6 +91,14 @@ public final class CpsThreadDump {
             return headline;
         }
 
+        /**
+         * Time this logical thread has spent waiting for the CPS VM thread while runnable.
+         * @see CpsThread#getRunQueueWaitNanos
+         */
+        public long getRunQueueWaitNanos() {
+            return runQueueWaitNanos;
+        }
+
         public void print(PrintWriter w) {
             w.println(headline);
             for (StackTraceElement e : stack) {
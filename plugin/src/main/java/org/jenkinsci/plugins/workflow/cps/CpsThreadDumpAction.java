@@ -92,6 +92,21 @@ public final class CpsThreadDumpAction implements Action {
         pw.flush();
     }
 
+    @WebMethod(name = "programProfile.txt") public void doProgramProfileDotTxt(StaplerRequest req, StaplerResponse rsp) throws Exception {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        ProgramStateProfile profile;
+        try {
+            profile = ProgramStateProfile.of(execution);
+        } catch (Exception x) {
+            HttpResponses.error(x).generateResponse(req, rsp, this);
+            return;
+        }
+        rsp.setContentType("text/plain;charset=UTF-8");
+        PrintWriter pw = rsp.getWriter();
+        profile.writeTo(pw);
+        pw.flush();
+    }
+
     @Extension(optional=true) public static class PipelineThreadDump extends Component {
 
         @Override public Set<Permission> getRequiredPermissions() {
@@ -56,8 +56,6 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -65,14 +63,17 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -116,6 +117,13 @@ public final class CpsThreadGroup implements Serializable {
      */
     private transient NavigableMap<Integer, CpsThread> runtimeThreads;
 
+    /**
+     * Member threads which have something to run, in the order in which they became runnable.
+     * Threads are added by {@link #enqueue} and taken off one at a time by {@link #run()},
+     * so that waking up does not require looking at every thread.
+     */
+    private transient Queue<CpsThread> runQueue;
+
     /**
      * Unique thread ID generator.
      */
@@ -127,9 +135,22 @@ public final class CpsThreadGroup implements Serializable {
      */
     transient ExecutorService runner;
 
+    /**
+     * The promise of a run submitted by {@link #scheduleRun} to {@link #runner} which has not started yet, if any.
+     */
+    private transient AtomicReference<CompletableFuture<Void>> pendingRun;
+
     /** Set while {@link #runner} is doing something. */
     transient boolean busy;
 
+    /** {@link System#nanoTime} when the program last ran. */
+    private transient volatile long lastActive;
+
+    /**
+     * Set once this program has been dropped by {@link Hibernation}; the execution will load a new copy when needed.
+     */
+    transient volatile boolean hibernated;
+
     /**
      * True if the build was automatically paused because quiet mode is enabled.
      * Used to avoid printing more than one pause message or scheduling more than one resumption task per build.
@@ -185,6 +206,11 @@ public final class CpsThreadGroup implements Serializable {
         setupTransients();
         assert execution!=null;
         runtimeThreads.putAll(threads);
+        for (CpsThread t : runtimeThreads.values()) {
+            if (t.isRunnable()) {
+                enqueue(t);
+            }
+        }
         if (/* compatibility: the field will be null in old programs */ scripts != null && !scripts.isEmpty()) {
             GroovyShell shell = execution.getShell();
             // Take the canonical bindings from the main script and relink that object with that of the shell and all other loaded scripts which kept the same bindings.
@@ -201,8 +227,11 @@ public final class CpsThreadGroup implements Serializable {
 
     private void setupTransients() {
         runtimeThreads = new ConcurrentSkipListMap<>();
+        runQueue = new ConcurrentLinkedQueue<>();
+        pendingRun = new AtomicReference<>();
         runner = new CpsVmExecutorService(this);
         pausedByQuietMode = new AtomicBoolean();
+        lastActive = System.nanoTime();
     }
 
     private Object writeReplace() {
@@ -218,6 +247,18 @@ public final class CpsThreadGroup implements Serializable {
         return t;
     }
 
+    /**
+     * Puts a thread which became {@linkplain CpsThread#isRunnable runnable} at the end of the run queue,
+     * unless it is already there.
+     */
+    void enqueue(@NonNull CpsThread t) {
+        if (!t.queued) {
+            t.queued = true;
+            t.queuedSince = System.nanoTime();
+            runQueue.add(t);
+        }
+    }
+
     /**
      * Ensures that the current thread is running from {@link CpsVmExecutorService}
      *
@@ -286,15 +327,26 @@ public final class CpsThreadGroup implements Serializable {
     /**
      * Schedules the execution of all the runnable threads.
      *
+     * <p>
+     * If a run is already scheduled but has not started yet, no other is scheduled and its {@link Future} is returned,
+     * since that run will pick up whatever made the caller want to run.
+     *
      * @return
      *      {@link Future} object that represents when the CPS VM is executed.
+     *      It completes only after any task submitted to {@link #runner} before this call has completed.
      */
     public Future<?> scheduleRun() {
         final CompletableFuture<Void> f = new CompletableFuture<>();
+        CompletableFuture<Void> pending = pendingRun.compareAndExchange(null, f);
+        if (pending != null) {
+            return pending;
+        }
         try {
             runner.submit(new Callable<Void>() {
                 @SuppressFBWarnings(value="RV_RETURN_VALUE_IGNORED_BAD_PRACTICE", justification="runner.submit() result")
                 public Void call() throws Exception {
+                    // from now on, callers of scheduleRun() need another run
+                    pendingRun.compareAndSet(f, null);
                     Jenkins j = Jenkins.getInstanceOrNull();
                     if (j != null && !j.isQuietingDown() && execution != null && pausedByQuietMode.compareAndSet(true, false)) {
                         try {
@@ -324,14 +376,20 @@ public final class CpsThreadGroup implements Serializable {
                         // by doing the pause check inside, we make sure that scheduleRun() returns a
                         // future that waits for any previously scheduled tasks to be completed.
                         saveProgramIfPossible(true);
-                        f.complete(null);
+                        // callers which joined this run after other tasks were submitted expect those to be done as well
+                        try {
+                            runner.submit(() -> f.complete(null));
+                        } catch (RejectedExecutionException x) {
+                            f.complete(null);
+                        }
                         return null;
                     }
 
                     boolean stillRunnable = run();
                     try {
                         if (stillRunnable) {
-                            // we can run more.
+                            // we can run more; let callers of scheduleRun() meanwhile join that rather than schedule yet another run
+                            pendingRun.compareAndSet(null, f);
                             runner.submit(this);
                         } else {
                             // we ensure any tasks submitted during run() will complete before we declare us complete
@@ -350,12 +408,14 @@ public final class CpsThreadGroup implements Serializable {
                         }
                     } catch (RejectedExecutionException x) {
                         // Was shut down by a prior task?
+                        pendingRun.compareAndSet(f, null);
                         f.completeExceptionally(x);
                     }
                     return null;
                 }
             });
         } catch (RejectedExecutionException x) {
+            pendingRun.compareAndSet(f, null);
             return Futures.immediateFuture(null);
         }
 
@@ -392,6 +452,23 @@ public final class CpsThreadGroup implements Serializable {
         }
     }
 
+    /**
+     * Checks whether all threads have been waiting on steps, with nothing to run, since some time.
+     * @param since a {@link System#nanoTime}
+     */
+    @CpsVmThreadOnly
+    boolean isIdleSince(long since) {
+        if (runtimeThreads.isEmpty() || !runQueue.isEmpty() || pendingRun.get() != null || paused.get() || lastActive - since > 0) {
+            return false;
+        }
+        for (CpsThread t : runtimeThreads.values()) {
+            if (t.isRunnable() || t.getStep() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns true if pausing has been requested.
      */
@@ -415,11 +492,20 @@ public final class CpsThreadGroup implements Serializable {
     private boolean run() {
         boolean changed = false;
         boolean ending = false;
-        boolean stillRunnable = false;
 
-        // TODO: maybe instead of running all the thread, run just one thread in round robin
-        for (CpsThread t : runtimeThreads.values().toArray(new CpsThread[runtimeThreads.size()])) {
-            if (t.isRunnable()) {
+        // run each thread which was runnable when we started once, for at most its time slice, in the order they became runnable;
+        // threads which are still runnable afterward, or became runnable meanwhile, go to the end of the queue for the next round
+        long waited = 0;
+        for (int remaining = runQueue.size(); remaining > 0; remaining--) {
+            CpsThread t = runQueue.poll();
+            if (t == null) {
+                break;
+            }
+            t.queued = false;
+            long wait = System.nanoTime() - t.queuedSince;
+            t.addRunQueueWait(wait);
+            waited += wait;
+            if (t.isRunnable() && runtimeThreads.get(t.id) == t) {
                 Outcome o = t.runNextChunk();
                 if (o.isFailure()) {
                     assert !t.isAlive();    // failed thread is non-resumable
@@ -452,12 +538,15 @@ public final class CpsThreadGroup implements Serializable {
                         }
                         ending = true;
                     }
-                } else {
-                    stillRunnable |= t.isRunnable();
                 }
                 changed = true;
             }
         }
+        if (changed) {
+            execution.recordTiming(CpsFlowExecution.TimingKind.runQueue, waited);
+        }
+        lastActive = System.nanoTime();
+        boolean stillRunnable = !runQueue.isEmpty();
 
         if (changed && !stillRunnable) {
             execution.persistedClean = null;
@@ -473,7 +562,14 @@ public final class CpsThreadGroup implements Serializable {
                 closures.clear();
             }
             try {
-                Util.deleteFile(execution.getProgramDataFile());
+                File f = execution.getProgramDataFile();
+                if (writer != null) {
+                    writer.delete(f);
+                } else {
+                    Util.deleteFile(f);
+                    DeltaCheckpoints.discardDeltas(f);
+                }
+                ScriptClassCache.delete(execution);
             } catch (IOException x) {
                 LOGGER.log(Level.WARNING, "Failed to delete program.dat in " + execution, x);
             }
@@ -527,6 +623,15 @@ public final class CpsThreadGroup implements Serializable {
         if (this.getExecution() != null && (this.getExecution().getDurabilityHint().isPersistWithEveryStep()
                 || enteringQuietState)) {
 
+            if (!enteringQuietState) {
+                changesSinceSave++;
+                long delay = CheckpointPolicy.delayFor(execution, lastSaved == 0 ? Long.MAX_VALUE : System.nanoTime() - lastSaved, changesSinceSave, saveCost);
+                if (delay > 0) {
+                    deferCheckpoint(delay);
+                    return;
+                }
+            }
+
             try {  // Program may depend on flownodes being saved, so save nodes
                 FlowNodeStorage storage = this.execution.getStorage();
                 if (storage != null) {
@@ -537,30 +642,96 @@ public final class CpsThreadGroup implements Serializable {
             }
 
             try {
-                saveProgram();
+                saveProgram(!enteringQuietState && ProgramWriter.ASYNC);
             } catch (IOException x) {
                 LOGGER.log(Level.WARNING, "program state save failed", x);
             }
         }
     }
 
+    /** Writes what {@link #saveProgram(File)} serializes. */
+    private transient volatile ProgramWriter writer;
+
+    /**
+     * Waits until the program state last saved is on disk, even if it was left to be written in the background.
+     * @throws IOException if it could not be written
+     */
+    void flushProgram() throws IOException, InterruptedException {
+        ProgramWriter w = writer;
+        if (w != null) {
+            w.flush();
+        }
+    }
+
+    /** {@link System#nanoTime} when the program was last saved, or zero. */
+    private transient long lastSaved;
+    /** Number of times {@link #saveProgramIfPossible} was called since the program was last saved. */
+    private transient int changesSinceSave;
+    /** Moving average of nanoseconds spent in {@link #saveProgram(File, boolean)}. */
+    private transient long saveCost;
+    /** Whether {@link CheckpointPolicy} put off saving the program, which has changed since. */
+    private transient volatile boolean checkpointDeferred;
+
+    /**
+     * Whether the program has changed since it was last saved, because {@link CheckpointPolicy} put off saving it.
+     */
+    boolean isCheckpointDeferred() {
+        return checkpointDeferred;
+    }
+
+    @CpsVmThreadOnly
+    private void deferCheckpoint(long delay) {
+        if (checkpointDeferred) {
+            return; // already scheduled
+        }
+        checkpointDeferred = true;
+        Timer.get().schedule(() -> {
+            try {
+                runner.submit(() -> {
+                    if (checkpointDeferred && !runtimeThreads.isEmpty()) {
+                        saveProgramIfPossible(true);
+                    }
+                });
+            } catch (RejectedExecutionException x) {
+                // program ended or was hibernated
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /** Whether {@link ProgramStateProfile#checkSize} has warned about this program. */
+    transient boolean programSizeWarned;
+
     /**
      * Persists the current state of {@link CpsThreadGroup}.
      */
     @CpsVmThreadOnly
     void saveProgram() throws IOException {
+        saveProgram(false);
+    }
+
+    /**
+     * @param async if true, return once the program has been serialized into a temporary file,
+     *      leaving encoding, {@code fsync} and the move into place to {@link ProgramWriter}; see {@link #flushProgram}
+     */
+    @CpsVmThreadOnly
+    private void saveProgram(boolean async) throws IOException {
         if (execution.isResumeBlocked()) {
             // In case flag added after start, also consider: Util.deleteFile(execution.getProgramDataFile());
             return;
         }
         File f = execution.getProgramDataFile();
-        saveProgram(f);
+        saveProgram(f, async);
     }
 
     @CpsVmThreadOnly
     public void saveProgram(File f) throws IOException {
-        File dir = f.getParentFile();
-        File tmpFile = File.createTempFile("atomic",null, dir);
+        saveProgram(f, false);
+    }
+
+    @CpsVmThreadOnly
+    private void saveProgram(File f, boolean async) throws IOException {
+        // serialized outside the build directory, which is only written by the ProgramWriter
+        File tmpFile = File.createTempFile("program", ".dat");
 
         assertVmThread();
 
@@ -573,26 +744,41 @@ public final class CpsThreadGroup implements Serializable {
             return;
         }
 
-        boolean serializedOK = false;
+        if (writer == null) {
+            writer = new ProgramWriter(this);
+        }
+        ProgramWriter.Snapshot snapshot = null;
+        long start = System.nanoTime();
         try (CpsFlowExecution.Timing t = execution.time(CpsFlowExecution.TimingKind.saveProgram);
                 WithThreadName diag = new WithThreadName("saving " + f)) {
-            try (RiverWriter w = new RiverWriter(tmpFile, execution.getOwner(), pickleFactories)) {
+            try (CpsFlowExecution.Timing t2 = execution.time(CpsFlowExecution.TimingKind.saveProgramSnapshot);
+                    RiverWriter w = new RiverWriter(tmpFile, execution.getOwner(), pickleFactories)) {
                 w.writeObject(this);
             }
-            serializedOK = true;
-            Files.move(tmpFile.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-            LOGGER.log(Level.FINE, "program state saved");
+            ProgramStateProfile.checkSize(this, tmpFile.length());
+            snapshot = writer.snapshot(f, tmpFile);
+            if (async) {
+                writer.submit(snapshot);
+            } else {
+                writer.write(snapshot);
+            }
+            lastSaved = System.nanoTime();
+            saveCost = saveCost == 0 ? lastSaved - start : (saveCost * 3 + lastSaved - start) / 4;
+            changesSinceSave = 0;
+            checkpointDeferred = false;
         } catch (RuntimeException e) {
             propagateErrorToWorkflow(e);
             throw new IOException("Failed to persist "+f,e);
         } catch (IOException e) {
-            if (!serializedOK) {
+            if (snapshot == null) {
                 propagateErrorToWorkflow(e);
             } // JENKINS-29656: otherwise just send the I/O error to caller and move on
             throw new IOException("Failed to persist "+f,e);
         } finally {
             CpsFlowExecution.PROGRAM_STATE_SERIALIZATION.set(old);
-            Util.deleteFile(tmpFile);
+            if (snapshot == null) {
+                Util.deleteFile(tmpFile);
+            }
         }
     }
 
@@ -642,6 +828,20 @@ public final class CpsThreadGroup implements Serializable {
         }
     }
 
+    /**
+     * Like {@link #propagateErrorToWorkflow} but may be called from any thread.
+     */
+    void propagateErrorToWorkflowLater(Throwable t) {
+        try {
+            runner.submit(() -> {
+                propagateErrorToWorkflow(t);
+                scheduleRun();
+            });
+        } catch (RejectedExecutionException x) {
+            LOGGER.log(Level.WARNING, "encountered error but could not pass it to the flow", t);
+        }
+    }
+
     void shutdown() {
         runner.shutdown();
     }
@@ -12,6 +12,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import groovy.lang.Closure;
 import hudson.model.TaskListener;
 import hudson.util.DaemonThreadFactory;
@@ -25,6 +26,7 @@ import jenkins.security.ImpersonatingExecutorService;
 import jenkins.util.ContextResettingExecutorService;
 import jenkins.util.ErrorLoggingExecutorService;
 import jenkins.util.InterceptingExecutorService;
+import jenkins.util.SystemProperties;
 import org.codehaus.groovy.runtime.GroovyCategorySupport;
 import org.jenkinsci.plugins.workflow.cps.persistence.IteratorHack;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
@@ -57,21 +59,73 @@ class CpsVmExecutorService extends InterceptingExecutorService {
         });
     }
 
-    private static final ExecutorService threadPool = new ContextResettingExecutorService(
-        new ImpersonatingExecutorService(
-            new ErrorLoggingExecutorService(
-                Executors.newCachedThreadPool(
-                    categoryThreadFactory(
-                        new ExceptionCatchingThreadFactory(
-                            new NamingThreadFactory(
-                                new DaemonThreadFactory(),
-                                "CpsVmExecutorService"))))),
-            ACL.SYSTEM2));
+    private static ExecutorService newThreadPool(ThreadFactory core) {
+        return new ContextResettingExecutorService(
+            new ImpersonatingExecutorService(
+                new ErrorLoggingExecutorService(
+                    Executors.newCachedThreadPool(
+                        categoryThreadFactory(
+                            new ExceptionCatchingThreadFactory(
+                                new NamingThreadFactory(
+                                    core,
+                                    "CpsVmExecutorService"))))),
+                ACL.SYSTEM2));
+    }
+
+    private static final ExecutorService threadPool = newThreadPool(new DaemonThreadFactory());
+
+    /**
+     * Whether new executions run their CPS VM on virtual threads rather than platform threads.
+     * Has no effect on JDKs without virtual threads.
+     * Threads are still pooled so that the Groovy categories are only set up once per thread,
+     * but an idle or blocked virtual thread does not hold on to a platform thread.
+     * (Blocking inside a {@code synchronized} block may still pin a platform thread on some JDKs.)
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean USE_VIRTUAL_THREADS = SystemProperties.getBoolean(CpsVmExecutorService.class.getName() + ".USE_VIRTUAL_THREADS");
+
+    /** Lazily creates the pool of virtual threads, if supported. */
+    private static final class VirtualThreadPool {
+        static final @CheckForNull ExecutorService INSTANCE = create();
+
+        private static @CheckForNull ExecutorService create() {
+            ThreadFactory factory = virtualThreadFactory();
+            if (factory == null) {
+                LOGGER.warning("Virtual threads are not available in this JDK; running CPS VM on platform threads");
+                return null;
+            }
+            return newThreadPool(factory);
+        }
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual().factory()} reflectively, since we still run on JDKs predating it.
+     * @return null if virtual threads are unavailable (or a preview feature which was not enabled)
+     */
+    static @CheckForNull ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException x) {
+            LOGGER.log(Level.FINE, "virtual threads unavailable", x);
+            return null;
+        }
+    }
+
+    private static ExecutorService threadPool() {
+        if (USE_VIRTUAL_THREADS) {
+            ExecutorService virtualThreadPool = VirtualThreadPool.INSTANCE;
+            if (virtualThreadPool != null) {
+                return virtualThreadPool;
+            }
+        }
+        return threadPool;
+    }
 
     private CpsThreadGroup cpsThreadGroup;
 
     CpsVmExecutorService(CpsThreadGroup cpsThreadGroup) {
-        super(new SingleLaneExecutorService(threadPool));
+        super(new SingleLaneExecutorService(threadPool()));
         this.cpsThreadGroup = cpsThreadGroup;
     }
 
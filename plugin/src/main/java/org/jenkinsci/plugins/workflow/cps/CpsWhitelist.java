@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.workflow.cps;
 
 import com.cloudbees.groovy.cps.Continuable;
+import hudson.ExtensionList;
 import hudson.model.Run;
 import java.io.IOException;
 import org.codehaus.groovy.runtime.GStringImpl;
@@ -139,6 +140,7 @@ class CpsWhitelist extends AbstractWhitelist {
 
     /**
      * Stuff we whitelist specifically for CPS, with the rest of the installed rules combined.
+     * {@link CachingWhitelist} consults the installed rules, caching those decided by signature; ours depend on receivers and arguments.
      */
     private static final Map<Jenkins,Whitelist> wrappedByJenkins = new WeakHashMap<>();
 
@@ -150,7 +152,7 @@ class CpsWhitelist extends AbstractWhitelist {
         }
         Whitelist wrapped = wrappedByJenkins.get(j);
         if (wrapped == null) {
-            wrapped = new ProxyWhitelist(new CpsWhitelist(), Whitelist.all());
+            wrapped = new ProxyWhitelist(new CpsWhitelist(), new CachingWhitelist(ExtensionList.lookup(Whitelist.class)));
             try {
                 if (!wrapped.permitsStaticMethod(Safepoint.class.getMethod("safepoint"), new Object[0])) {
                     throw new IllegalStateException("Broken whitelists: " + wrapped);
@@ -37,7 +37,6 @@ import hudson.EnvVars;
 import hudson.ExtensionList;
 import hudson.Util;
 import hudson.model.Computer;
-import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.Queue;
 import hudson.model.Run;
@@ -59,18 +58,18 @@ import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.groovy.reflection.CachedClass;
 import org.codehaus.groovy.reflection.ReflectionCache;
-import org.jenkinsci.Symbol;
 import org.jenkinsci.plugins.structs.SymbolLookup;
 import org.jenkinsci.plugins.structs.describable.DescribableModel;
 import org.jenkinsci.plugins.structs.describable.DescribableParameter;
 import org.jenkinsci.plugins.structs.describable.UninstantiatedDescribable;
 
 import org.jenkinsci.plugins.workflow.cps.actions.ArgumentsActionImpl;
+import org.jenkinsci.plugins.workflow.cps.actions.SecretMasker;
 import org.jenkinsci.plugins.workflow.cps.nodes.StepAtomNode;
+import org.jenkinsci.plugins.workflow.cps.nodes.StepDescriptorCache;
 import org.jenkinsci.plugins.workflow.cps.nodes.StepEndNode;
 import org.jenkinsci.plugins.workflow.cps.nodes.StepStartNode;
 import org.jenkinsci.plugins.workflow.cps.persistence.PersistIn;
@@ -91,11 +90,8 @@ import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
-import org.jvnet.hudson.annotation_indexer.Index;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
-import org.kohsuke.stapler.ClassDescriptor;
-import org.kohsuke.stapler.NoStaplerConstructorException;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -112,14 +108,6 @@ public class DSL extends GroovyObjectSupport implements Serializable {
 
     private final FlowExecutionOwner handle;
     private transient CpsFlowExecution exec;
-    private transient Map<String,StepDescriptor> functions;
-    /**
-     * Allows steps to be referenced using their fully qualified class name in case the same
-     * function name is used for multiple steps. We keep them separate from {@link #functions} so
-     * that they are not included in the error message thrown by {@link #invokeMethod} when a
-     * matching DSL method is not found.
-     */
-    private transient Map<String,StepDescriptor> stepClassNames;
     /**
      * Set of function names that are reused by distinct {@link StepDescriptor}s and for which
      * we have not yet warned the user about the ambiguity.
@@ -128,6 +116,15 @@ public class DSL extends GroovyObjectSupport implements Serializable {
 
     private static final Logger LOGGER = Logger.getLogger(DSL.class.getName());
 
+    /** Whether a subclass overrides only {@link #invokeStep(StepDescriptor, Object)}. */
+    private static final ClassValue<Boolean> OVERRIDES_DEPRECATED_INVOKE_STEP = new ClassValue<>() {
+        @Override protected Boolean computeValue(Class<?> type) {
+            Class<? extends DSL> c = type.asSubclass(DSL.class);
+            return Util.isOverridden(DSL.class, c, "invokeStep", StepDescriptor.class, Object.class) &&
+                    !Util.isOverridden(DSL.class, c, "invokeStep", StepDescriptor.class, String.class, Object.class);
+        }
+    };
+
     public DSL(FlowExecutionOwner handle) {
         this.handle = handle;
     }
@@ -164,50 +161,30 @@ public class DSL extends GroovyObjectSupport implements Serializable {
             throw new GroovyRuntimeException(e);
         }
 
-        if (functions == null) {
-            functions = new TreeMap<>();
-            stepClassNames = new TreeMap<>();
-            while (StepDescriptor.all().isEmpty()) {
-                LOGGER.warning("Jenkins does not seem to be fully started yet, waiting…");
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException x) {
-                    throw new GroovyRuntimeException(x);
-                }
-            }
-            unreportedAmbiguousFunctions = new HashSet<>(0);
-            for (StepDescriptor d : StepDescriptor.all()) {
-                // TODO consider adding metasteps here and in reportAmbiguousStepInvocation
-                String functionName = d.getFunctionName();
-                if (functions.containsKey(functionName)) {
-                    unreportedAmbiguousFunctions.add(functionName);
-                }
-                // The step descriptor with the highest value for Extension#ordinal() is used in the case of ambiguity.
-                functions.putIfAbsent(functionName, d);
-                stepClassNames.put(d.clazz.getName(), d);
-            }
+        FunctionIndex index;
+        try {
+            index = FunctionIndex.get();
+        } catch (InterruptedException x) {
+            throw new GroovyRuntimeException(x);
         }
-        final StepDescriptor sd = functions.getOrDefault(name, stepClassNames.get(name));
+        if (unreportedAmbiguousFunctions == null) {
+            unreportedAmbiguousFunctions = new HashSet<>(index.ambiguousFunctions);
+        }
+        final StepDescriptor sd = index.getStep(name);
         if (sd != null) {
-            if (Util.isOverridden(DSL.class, getClass(), "invokeStep", StepDescriptor.class, Object.class) &&
-                    !Util.isOverridden(DSL.class, getClass(), "invokeStep", StepDescriptor.class, String.class, Object.class)) {
+            if (OVERRIDES_DEPRECATED_INVOKE_STEP.get(getClass())) {
                 return invokeStep(sd, args);
             }
             return invokeStep(sd, name, args);
         }
-        if (SymbolLookup.get().findDescriptor(Describable.class, name) != null) {
+        if (index.isSymbol(name)) {
             return invokeDescribable(name,args);
         }
 
-        Set<String> symbols = new TreeSet<>();
+        Set<String> symbols = Collections.emptySet();
         Set<String> globals = new TreeSet<>();
-        // TODO SymbolLookup only lets us find a particular symbol, not enumerate them
         try {
-            for (Class<?> e : Index.list(Symbol.class, Jenkins.get().pluginManager.uberClassLoader, Class.class)) {
-                if (Descriptor.class.isAssignableFrom(e)) {
-                    symbols.addAll(SymbolLookup.getSymbolValue(e));
-                }
-            }
+            symbols = index.getSymbols();
             Queue.Executable executable = exec.getOwner().getExecutable();
             for (GlobalVariable var : GlobalVariable.forRun(executable instanceof Run ? (Run) executable : null)) {
                 globals.add(var.getName());
@@ -216,7 +193,7 @@ public class DSL extends GroovyObjectSupport implements Serializable {
             Logger.getLogger(DSL.class.getName()).log(Level.WARNING, null, x);
         }
         // TODO probably this should be throwing a subtype of groovy.lang.MissingMethodException
-        throw new NoSuchMethodError("No such DSL method '" + name + "' found among steps " + functions.keySet() + " or symbols " + symbols + " or globals " + globals);
+        throw new NoSuchMethodError("No such DSL method '" + name + "' found among steps " + index.getFunctionNames() + " or symbols " + symbols + " or globals " + globals);
     }
 
     /**
@@ -235,7 +212,8 @@ public class DSL extends GroovyObjectSupport implements Serializable {
      * @param args The arguments passed to the step.
      */
     protected Object invokeStep(StepDescriptor d, String name, Object args) {
-        final NamedArgsAndClosure ps = parseArgs(args, d);
+        StepDescriptorCache.Dispatch dispatch = StepDescriptorCache.getPublicCache().getDispatch(d);
+        final NamedArgsAndClosure ps = parseArgs(args, dispatch);
 
         CpsThread thread = CpsThread.current();
 
@@ -245,8 +223,7 @@ public class DSL extends GroovyObjectSupport implements Serializable {
         boolean hack = d instanceof ParallelStep.DescriptorImpl || d instanceof LoadStep.DescriptorImpl;
 
         if (ps.body == null && !hack) {
-            if (!(d.getClass().getName().equals("org.jenkinsci.plugins.workflow.support.steps.StageStep$DescriptorImpl"))
-                    && d.takesImplicitBlockArgument()) {
+            if (dispatch.requiresBody) {
                 throw new IllegalStateException(String.format("%s step must be called with a body", name));
             } else {
                 an = new StepAtomNode(exec, d, thread.head.get());
@@ -256,28 +233,16 @@ public class DSL extends GroovyObjectSupport implements Serializable {
         }
 
         final CpsStepContext context = new CpsStepContext(d, thread, handle, an, ps.body);
-        EnvVars allEnv = null;
-        Set<String> sensitiveVariables = Collections.emptySet();
-        try {
-            allEnv = context.get(EnvVars.class);
-            EnvironmentExpander envExpander = context.get(EnvironmentExpander.class);
-            if (envExpander != null) {
-                sensitiveVariables = new HashSet<>(envExpander.getSensitiveVariables());
-            }
-        } catch (IOException | InterruptedException e) {
-            LOGGER.log(Level.WARNING, "Unable to retrieve environment variables", e);
-        }
+        StepEnvironment env = new StepEnvironment(context);
         // Ensure ArgumentsAction is attached before we notify even synchronous listeners:
         ArgumentsActionImpl argumentsAction = null;
         try {
             // No point storing empty arguments, and ParallelStep is a special case where we can't store its closure arguments
             if (ps.namedArgs != null && !(ps.namedArgs.isEmpty()) && isKeepStepArguments() && !(d instanceof ParallelStep.DescriptorImpl)) {
-                // Get the environment variables to find ones that might be credentials bindings
-                Computer comp = context.get(Computer.class);
-                if (comp != null && allEnv != null) {
-                    allEnv.entrySet().removeAll(comp.getEnvironment().entrySet());
-                }
-                argumentsAction = new ArgumentsActionImpl(ps.namedArgs, allEnv, sensitiveVariables);
+                EnvVars allEnv = env.getNonComputerEnvironment();
+                Set<String> sensitiveVariables = env.getSensitiveVariables();
+                thread.secretMasker = SecretMasker.of(allEnv, sensitiveVariables, thread.secretMasker);
+                argumentsAction = new ArgumentsActionImpl(ps.namedArgs, allEnv, sensitiveVariables, thread.secretMasker);
                 an.addAction(argumentsAction);
             }
         } catch (Exception e) {
@@ -293,18 +258,15 @@ public class DSL extends GroovyObjectSupport implements Serializable {
         ClassLoader originalLoader = Thread.currentThread().getContextClassLoader();
         try {
             TaskListener listener = context.get(TaskListener.class);
-            logInterpolationWarnings(name, argumentsAction, ps.interpolatedStrings, allEnv, sensitiveVariables, listener);
+            if (argumentsAction != null && !ps.interpolatedStrings.isEmpty()) {
+                logInterpolationWarnings(name, argumentsAction, ps.interpolatedStrings, env.getNonComputerEnvironment(), env.getSensitiveVariables(), listener);
+            }
             if (unreportedAmbiguousFunctions.remove(name)) {
                 reportAmbiguousStepInvocation(context, d, listener);
             }
             d.checkContextAvailability(context);
             Thread.currentThread().setContextClassLoader(CpsVmExecutorService.ORIGINAL_CONTEXT_CLASS_LOADER.get());
-            if (Util.isOverridden(StepDescriptor.class, d.getClass(), "newInstance", Map.class)) {
-                s = d.newInstance(ps.namedArgs);
-            } else {
-                DescribableModel<? extends Step> stepModel = DescribableModel.of(d.clazz);
-                s = stepModel.instantiate(ps.namedArgs, listener);
-            }
+            s = dispatch.newInstance(ps.namedArgs, listener);
 
             // Persist the node - block start and end nodes do their own persistence.
             CpsFlowExecution.maybeAutoPersistNode(an);
@@ -364,6 +326,65 @@ public class DSL extends GroovyObjectSupport implements Serializable {
         }
     }
 
+    /**
+     * Environment of a step about to start, as needed to mask or warn about secrets in its arguments.
+     * Each part is computed only when first needed, as it walks {@link ContextVariableSet}
+     * and {@link DynamicContext}s and may contact the agent:
+     * nothing at all unless arguments are recorded, and no variables unless some are {@linkplain EnvironmentExpander#getSensitiveVariables sensitive}.
+     */
+    private final class StepEnvironment {
+        private final CpsStepContext context;
+        private Set<String> sensitiveVariables;
+        private boolean computedEnvironment;
+        private EnvVars environment;
+
+        StepEnvironment(CpsStepContext context) {
+            this.context = context;
+        }
+
+        @NonNull Set<String> getSensitiveVariables() {
+            if (sensitiveVariables == null) {
+                sensitiveVariables = Collections.emptySet();
+                try (CpsFlowExecution.Timing t = exec.time(CpsFlowExecution.TimingKind.stepSensitiveVariables)) {
+                    EnvironmentExpander envExpander = context.get(EnvironmentExpander.class);
+                    if (envExpander != null) {
+                        sensitiveVariables = new HashSet<>(envExpander.getSensitiveVariables());
+                    }
+                } catch (IOException | InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Unable to retrieve environment variables", e);
+                }
+            }
+            return sensitiveVariables;
+        }
+
+        /**
+         * Variables defined in the build but not by the agent, among which might be credentials bindings.
+         * @return null if there are no sensitive variables, or if they could not be computed
+         */
+        @CheckForNull EnvVars getNonComputerEnvironment() throws IOException, InterruptedException {
+            if (!computedEnvironment) {
+                computedEnvironment = true;
+                if (getSensitiveVariables().isEmpty()) {
+                    return null;
+                }
+                try (CpsFlowExecution.Timing t = exec.time(CpsFlowExecution.TimingKind.stepEnvironment)) {
+                    environment = context.get(EnvVars.class);
+                } catch (IOException | InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Unable to retrieve environment variables", e);
+                }
+                if (environment != null) {
+                    Computer comp = context.get(Computer.class);
+                    if (comp != null) {
+                        try (CpsFlowExecution.Timing t = exec.time(CpsFlowExecution.TimingKind.stepComputerEnvironment)) {
+                            environment.entrySet().removeAll(comp.getEnvironment().entrySet());
+                        }
+                    }
+                }
+            }
+            return environment;
+        }
+    }
+
     private void logInterpolationWarnings(String stepName, @CheckForNull ArgumentsActionImpl argumentsAction, Set<String> interpolatedStrings, @CheckForNull EnvVars envVars, @NonNull Set<String> sensitiveVariables, TaskListener listener) throws IOException {
         if (UNSAFE_GROOVY_INTERPOLATION.equals("ignore")) {
             return;
@@ -412,15 +433,6 @@ public class DSL extends GroovyObjectSupport implements Serializable {
         }
     }
 
-    private static String loadSoleArgumentKey(StepDescriptor d) {
-        try {
-            String[] names = new ClassDescriptor(d.clazz).loadConstructorParamNames();
-            return names.length == 1 ? names[0] : null;
-        } catch (NoStaplerConstructorException e) {
-            return null;
-        }
-    }
-
     /**
      * When {@link #invokeMethod(String, Object)} is calling a generic {@link Descriptor}
      */
@@ -630,19 +642,11 @@ public class DSL extends GroovyObjectSupport implements Serializable {
     }
 
     static NamedArgsAndClosure parseArgs(Object arg, StepDescriptor d) {
-        boolean singleArgumentOnly = false;
-        try {
-            DescribableModel<?> stepModel = DescribableModel.of(d.clazz);
-            singleArgumentOnly = stepModel.hasSingleRequiredParameter() && stepModel.getParameters().size() == 1;
-            if (singleArgumentOnly) {  // Can fetch the one argument we need
-                DescribableParameter dp = stepModel.getSoleRequiredParameter();
-                String paramName = (dp != null) ? dp.getName() : null;
-                return parseArgs(arg, d.takesImplicitBlockArgument(), paramName, singleArgumentOnly, new HashSet<>());
-            }
-        } catch (NoStaplerConstructorException e) {
-            // Ignore steps without databound constructors and treat them as normal.
-        }
-        return parseArgs(arg,d.takesImplicitBlockArgument(), loadSoleArgumentKey(d), singleArgumentOnly, new HashSet<>());
+        return parseArgs(arg, StepDescriptorCache.getPublicCache().getDispatch(d));
+    }
+
+    private static NamedArgsAndClosure parseArgs(Object arg, StepDescriptorCache.Dispatch dispatch) {
+        return parseArgs(arg, dispatch.takesImplicitBlockArgument, dispatch.soleArgumentKey, dispatch.singleArgumentOnly, new HashSet<>());
     }
 
     /**
@@ -0,0 +1,524 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverWriter;
+
+/**
+ * Stores successive serializations of a program as a base snapshot ({@code program.dat})
+ * plus an append-only log of deltas ({@code program.dat.delta}).
+ *
+ * <p>
+ * {@link RiverWriter} can only serialize the whole {@link CpsThreadGroup} at once,
+ * and the object graph cannot be split up without breaking references shared between threads,
+ * so deltas are computed on the serialized stream:
+ * it is split into content-defined chunks, so that an insertion does not shift the boundaries of later chunks,
+ * and each checkpoint only appends chunks not already stored, followed by a manifest listing the chunks of the whole stream.
+ * Once the log grows larger than some fraction of the base, the next checkpoint is written as a new base instead.
+ *
+ * <p>
+ * The stream is chunked as it is read back, and chunks which are already stored are dropped as soon as they are hashed,
+ * so memory use is bounded by the size of the delta rather than of the program.
+ * {@link RiverWriter} can only write a whole file, and goes back to patch its header once done, so it cannot be chunked as it writes.
+ * The full stream therefore passes through a temporary file, but one which {@link ProgramWriter} keeps in the default temporary directory:
+ * when a delta is written, that file is deleted without ever being synced, so it normally stays in the page cache,
+ * and what is written into the build directory is proportional to the change.
+ *
+ * <p>
+ * Chunks are taken from the uncompressed stream even if the base is written compressed by {@link ProgramCompression}.
+ * The delta log records the length and checksum of the base it applies to,
+ * and each record has a checksum, so a log left behind by an interrupted compaction or a torn append is ignored.
+ * {@link #replay} reassembles the latest checkpoint into a temporary copy when the program is loaded.
+ */
+final class DeltaCheckpoints {
+
+    /** Whether program checkpoints are written as deltas. Existing deltas are replayed regardless. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean ENABLED = SystemProperties.getBoolean(DeltaCheckpoints.class.getName() + ".ENABLED");
+
+    /** Size of the delta log, as a percentage of the base, beyond which the next checkpoint is compacted into a new base. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static int COMPACTION_PERCENT = SystemProperties.getInteger(DeltaCheckpoints.class.getName() + ".COMPACTION_PERCENT", 100);
+
+    private static final byte[] MAGIC = "CPSD".getBytes(StandardCharsets.US_ASCII);
+    private static final short VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 2 + 8 + 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static final int MIN_CHUNK = 1024;
+    static final int MAX_CHUNK = 16 * 1024;
+    /** Selects the top 12 bits of the rolling hash, for chunks of about 4KiB beyond {@link #MIN_CHUNK}. */
+    private static final long BOUNDARY_MASK = 0xFFF0000000000000L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x43505344L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    static File deltaFile(File base) {
+        return new File(base.getPath() + ".delta");
+    }
+
+    /**
+     * Deletes any delta log belonging to this base, for example because a full snapshot was just written.
+     */
+    static void discardDeltas(File base) throws IOException {
+        Files.deleteIfExists(deltaFile(base).toPath());
+    }
+
+    private final File base;
+    private final File delta;
+    /** Where each chunk already on disk may be found, keyed by digest; null until a base has been written by us. */
+    private Map<ByteBuffer, Chunk> chunks;
+    private long baseLength;
+    private long baseChecksum;
+    /** Current length of {@link #delta}, or zero if it does not exist. */
+    private long deltaLength;
+
+    DeltaCheckpoints(File base) {
+        this.base = base;
+        this.delta = deltaFile(base);
+    }
+
+    boolean isFor(File f) {
+        return base.equals(f);
+    }
+
+    /**
+     * Stores a new serialized program, either as a delta or as a new base.
+     * @param serialized a complete serialized program, anywhere; it is moved or deleted by this method
+     * @return true if a delta was written, false if the program was written as a new base
+     */
+    boolean commit(File serialized) throws IOException {
+        return write(encode(serialized), false);
+    }
+
+    /**
+     * Splits a serialized program into chunks and works out which of them need to be written.
+     * Does not modify anything on disk.
+     * Only chunks not already stored are kept in memory, and only while a delta remains possible.
+     */
+    Encoded encode(File serialized) throws IOException {
+        Chunker chunker = new Chunker();
+        try (InputStream in = Files.newInputStream(serialized.toPath())) {
+            in.transferTo(chunker);
+        }
+        chunker.close();
+        boolean compact = !chunker.retain || chunker.newBytes * 2 > chunker.length;
+        File compressed = compact && ProgramCompression.ENABLED ? ProgramCompression.compress(serialized, base.getParentFile()) : null;
+        return new Encoded(serialized, chunker.length, chunker.crc.getValue(), chunker.keys, chunker.lengths,
+            compact ? Map.of() : chunker.fresh, compact, compressed);
+    }
+
+    /**
+     * Writes the result of {@link #encode}, which must be the latest one.
+     * @param fsync whether to wait for the data to reach the disk before returning
+     * @return true if a delta was written, false if the program was written as a new base
+     */
+    boolean write(Encoded encoded, boolean fsync) throws IOException {
+        if (encoded.compact) {
+            compact(encoded, fsync);
+            return false;
+        }
+        try {
+            appendDelta(encoded, fsync);
+        } catch (IOException | RuntimeException x) {
+            // we no longer know what is in the log, so start over with the next checkpoint
+            chunks = null;
+            throw x;
+        }
+        Files.delete(encoded.serialized.toPath());
+        return true;
+    }
+
+    private void compact(Encoded encoded, boolean fsync) throws IOException {
+        chunks = null;
+        File newBase = encoded.compressed != null ? encoded.compressed : ProgramWriter.moveInto(encoded.serialized, base.getParentFile());
+        try {
+            if (fsync) {
+                ProgramWriter.fsync(newBase);
+            }
+            Files.move(newBase.toPath(), base.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(newBase.toPath());
+            Files.deleteIfExists(encoded.serialized.toPath());
+        }
+        // Were we interrupted here, the old log would not match the new base and so would be ignored.
+        discardDeltas(base);
+        Map<ByteBuffer, Chunk> index = new HashMap<>();
+        long offset = 0;
+        for (int i = 0; i < encoded.keys.size(); i++) {
+            int length = encoded.lengths.get(i);
+            index.putIfAbsent(encoded.keys.get(i), new Chunk(offset, length));
+            offset += length;
+        }
+        baseLength = encoded.length;
+        baseChecksum = encoded.checksum;
+        deltaLength = 0;
+        chunks = index;
+        LOGGER.log(Level.FINE, "wrote {0} as a new base of {1} bytes", new Object[] {base, encoded.length});
+    }
+
+    private void appendDelta(Encoded encoded, boolean fsync) throws IOException {
+        List<ByteBuffer> keys = encoded.keys;
+        long recordStart = deltaLength == 0 ? HEADER_LENGTH : deltaLength;
+        Map<ByteBuffer, Chunk> added = new HashMap<>();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        int newChunks = 0;
+        for (ByteBuffer key : keys) {
+            if (!chunks.containsKey(key) && !added.containsKey(key)) {
+                added.put(key, null);
+                newChunks++;
+            }
+        }
+        out.writeInt(newChunks);
+        // position in the log file of the next byte written to the payload, after its length prefix
+        long position = recordStart + 4 + 4;
+        for (ByteBuffer key : keys) {
+            if (added.containsKey(key) && added.get(key) == null) {
+                byte[] chunk = encoded.fresh.get(key);
+                if (chunk == null) {
+                    throw new IllegalStateException("new chunk was not retained");
+                }
+                out.writeInt(chunk.length);
+                position += 4;
+                out.write(chunk);
+                added.put(key, new Chunk(-position - 1, chunk.length));
+                position += chunk.length;
+            }
+        }
+        out.writeInt(keys.size());
+        for (ByteBuffer key : keys) {
+            Chunk c = chunks.get(key);
+            if (c == null) {
+                c = added.get(key);
+            }
+            out.writeLong(c.location);
+            out.writeInt(c.length);
+        }
+        out.flush();
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        try (FileOutputStream fos = new FileOutputStream(delta, deltaLength > 0); DataOutputStream file = new DataOutputStream(fos)) {
+            if (deltaLength == 0) {
+                writeHeader(file);
+            }
+            file.writeInt(bytes.length);
+            file.write(bytes);
+            file.writeLong(crc.getValue());
+            file.flush();
+            if (fsync) {
+                fos.getFD().sync();
+            }
+        }
+        chunks.putAll(added);
+        deltaLength = recordStart + 4 + bytes.length + 8;
+        LOGGER.log(Level.FINE, "appended {0} bytes to {1}", new Object[] {bytes.length + 12, delta});
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(baseLength);
+        out.writeLong(baseChecksum);
+    }
+
+    /**
+     * If there is a delta log for this base, reassembles the latest checkpoint it records, so that it may be read as usual.
+     * Neither the base nor the log is modified; a log which does not apply to the base is just ignored,
+     * and replaced along with the base by the next checkpoint.
+     * Chunks are copied straight from the files at their recorded offsets, so nothing is held in memory but the manifest being read.
+     * @return a temporary file in the default temporary directory, to be passed to {@link ProgramCompression#deleteDecompressed} once read;
+     *         or null if there is nothing to replay
+     */
+    static @CheckForNull File replay(File base) throws IOException {
+        File delta = deltaFile(base);
+        if (!delta.isFile()) {
+            return null;
+        }
+        if (!base.isFile()) {
+            LOGGER.log(Level.WARNING, "Ignoring {0} since {1} is missing", new Object[] {delta, base});
+            return null;
+        }
+        File decompressed = ProgramCompression.decompressed(base);
+        try {
+            File raw = decompressed != null ? decompressed : base;
+            long manifestRecord = lastRecord(delta, raw);
+            if (manifestRecord < 0) {
+                return null;
+            }
+            File tmp = File.createTempFile("program", ".dat");
+            try (FileChannel baseChannel = FileChannel.open(raw.toPath(), StandardOpenOption.READ);
+                    FileChannel deltaChannel = FileChannel.open(delta.toPath(), StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+                    InputStream manifest = Files.newInputStream(delta.toPath())) {
+                skipFully(manifest, manifestRecord);
+                DataInputStream record = new DataInputStream(new BufferedInputStream(manifest, BUFFER_SIZE));
+                int newChunks = record.readInt();
+                for (int i = 0; i < newChunks; i++) {
+                    skipFully(record, record.readInt());
+                }
+                int count = record.readInt();
+                for (int i = 0; i < count; i++) {
+                    long location = record.readLong();
+                    int length = record.readInt();
+                    FileChannel source = location >= 0 ? baseChannel : deltaChannel;
+                    long offset = location >= 0 ? location : -location - 1;
+                    if (length < 0 || offset + length > source.size()) {
+                        throw new IOException("Corrupt manifest in " + delta);
+                    }
+                    for (long copied = 0; copied < length; ) {
+                        long n = source.transferTo(offset + copied, length - copied, out);
+                        if (n <= 0) {
+                            throw new IOException("Could not copy a chunk from " + (source == baseChannel ? base : delta));
+                        }
+                        copied += n;
+                    }
+                }
+            } catch (IOException | RuntimeException x) {
+                Files.deleteIfExists(tmp.toPath());
+                throw x;
+            }
+            LOGGER.log(Level.FINE, "replayed {0} into {1}", new Object[] {delta, tmp});
+            return tmp;
+        } finally {
+            ProgramCompression.deleteDecompressed(decompressed);
+        }
+    }
+
+    /**
+     * Finds the latest intact record of a delta log, if it applies to the given uncompressed base.
+     * @return the offset in the log of the payload of that record, or -1 if there is none
+     */
+    private static long lastRecord(File delta, File raw) throws IOException {
+        long size = delta.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta.toPath()), BUFFER_SIZE))) {
+            byte[] magic = new byte[MAGIC.length];
+            long expectedLength, expectedChecksum;
+            try {
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC) || in.readShort() != VERSION) {
+                    throw new IOException("Unrecognized format of " + delta);
+                }
+                expectedLength = in.readLong();
+                expectedChecksum = in.readLong();
+            } catch (EOFException x) {
+                LOGGER.log(Level.WARNING, "Ignoring truncated {0}", delta);
+                return -1;
+            }
+            if (expectedLength != raw.length() || expectedChecksum != checksum(raw)) {
+                LOGGER.log(Level.FINE, "Ignoring {0} which belongs to an older base", delta);
+                return -1;
+            }
+            long last = -1;
+            long position = HEADER_LENGTH;
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                while (position + 4 <= size) {
+                    int length = in.readInt();
+                    if (length < 0 || position + 4 + length + 8 > size) {
+                        break;
+                    }
+                    crc.reset();
+                    for (int remaining = length; remaining > 0; ) {
+                        int n = in.read(buffer, 0, Math.min(remaining, buffer.length));
+                        if (n < 0) {
+                            throw new EOFException();
+                        }
+                        crc.update(buffer, 0, n);
+                        remaining -= n;
+                    }
+                    if (in.readLong() != crc.getValue()) {
+                        break;
+                    }
+                    last = position + 4;
+                    position += 4 + length + 8;
+                }
+            } catch (EOFException x) {
+                // truncated meanwhile; use what was read
+            }
+            return last;
+        }
+    }
+
+    private static long checksum(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(f.toPath())) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Splits a stream into chunks as it is written, using a gear rolling hash so that boundaries depend only on nearby content.
+     * Chunks already stored are only hashed; new ones are kept for {@link #appendDelta},
+     * until so many have been seen that the checkpoint will be compacted anyway.
+     */
+    private final class Chunker extends OutputStream {
+        private final byte[] buffer = new byte[MAX_CHUNK];
+        private int size;
+        private long hash;
+        private final MessageDigest digest = sha256();
+        final CRC32 crc = new CRC32();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<Integer> lengths = new ArrayList<>();
+        final Map<ByteBuffer, byte[]> fresh = new HashMap<>();
+        long length;
+        long newBytes;
+        /** whether a delta is still possible; otherwise nothing is kept */
+        boolean retain = chunks != null && !(deltaLength > 0 && delta.length() != deltaLength); // log missing or modified behind our back
+
+        @Override public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, MAX_CHUNK - size);
+                int take = n;
+                boolean boundary = false;
+                for (int j = Math.max(0, MIN_CHUNK - size); j < n; j++) {
+                    hash = (hash << 1) + GEAR[b[off + j] & 0xFF];
+                    if ((hash & BOUNDARY_MASK) == 0) {
+                        take = j + 1;
+                        boundary = true;
+                        break;
+                    }
+                }
+                System.arraycopy(b, off, buffer, size, take);
+                size += take;
+                off += take;
+                len -= take;
+                if (boundary || size == MAX_CHUNK) {
+                    endChunk();
+                }
+            }
+        }
+
+        @Override public void close() {
+            endChunk();
+        }
+
+        private void endChunk() {
+            if (size == 0) {
+                return;
+            }
+            digest.update(buffer, 0, size);
+            ByteBuffer key = ByteBuffer.wrap(Arrays.copyOf(digest.digest(), 16));
+            crc.update(buffer, 0, size);
+            keys.add(key);
+            lengths.add(size);
+            length += size;
+            if (chunks == null || !chunks.containsKey(key)) {
+                newBytes += size;
+                if (retain && (deltaLength + newBytes) * 100 > baseLength * COMPACTION_PERCENT) {
+                    retain = false;
+                    fresh.clear();
+                } else if (retain) {
+                    fresh.putIfAbsent(key, Arrays.copyOf(buffer, size));
+                }
+            }
+            size = 0;
+            hash = 0;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    /** A serialized program split into chunks. */
+    static final class Encoded {
+        final File serialized;
+        /** length of the uncompressed stream */
+        final long length;
+        /** CRC-32 of the uncompressed stream */
+        final long checksum;
+        final List<ByteBuffer> keys;
+        final List<Integer> lengths;
+        /** contents of the chunks not already stored, unless this is to be written as a new base */
+        final Map<ByteBuffer, byte[]> fresh;
+        /** whether this should be written as a new base */
+        final boolean compact;
+        /** the new base as compressed by {@link ProgramCompression}, if applicable */
+        final @CheckForNull File compressed;
+        Encoded(File serialized, long length, long checksum, List<ByteBuffer> keys, List<Integer> lengths, Map<ByteBuffer, byte[]> fresh,
+                boolean compact, @CheckForNull File compressed) {
+            this.serialized = serialized;
+            this.length = length;
+            this.checksum = checksum;
+            this.keys = keys;
+            this.lengths = lengths;
+            this.fresh = fresh;
+            this.compact = compact;
+            this.compressed = compressed;
+        }
+    }
+
+    /** A chunk stored at a nonnegative offset in the base, or at offset {@code -location - 1} in the delta log. */
+    private static final class Chunk {
+        final long location;
+        final int length;
+        Chunk(long location, int length) {
+            this.location = location;
+            this.length = length;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DeltaCheckpoints.class.getName());
+}
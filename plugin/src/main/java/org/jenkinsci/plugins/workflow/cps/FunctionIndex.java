@@ -0,0 +1,169 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkinsci.Symbol;
+import org.jenkinsci.plugins.structs.SymbolLookup;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jvnet.hudson.annotation_indexer.Index;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Names callable from {@link DSL}, shared by all builds and rebuilt when extensions change.
+ */
+@Restricted(NoExternalUse.class)
+public final class FunctionIndex {
+
+    /** Maximum number of names remembered not to be symbols. */
+    private static final int MAX_MISSES = 1000;
+
+    private static volatile FunctionIndex current;
+    /** Incremented by {@link #invalidate}, so that an index built meanwhile is not published; guarded by the class. */
+    private static long generation;
+
+    /** Steps by {@link StepDescriptor#getFunctionName}; the one with the highest ordinal in case of ambiguity. */
+    private final Map<String, StepDescriptor> functions;
+    /** Steps by {@link StepDescriptor#clazz} name. */
+    private final Map<String, StepDescriptor> stepClassNames;
+    /** Function names used by more than one step. */
+    final Set<String> ambiguousFunctions;
+    /** Names found not to be {@link Describable} symbols. */
+    private final Set<String> notSymbols = ConcurrentHashMap.newKeySet();
+    /** All symbols of descriptors, for error messages, computed on demand. */
+    private volatile Set<String> symbols;
+
+    private FunctionIndex(Iterable<StepDescriptor> descriptors) {
+        Map<String, StepDescriptor> f = new HashMap<>();
+        Map<String, StepDescriptor> c = new HashMap<>();
+        Set<String> a = new HashSet<>();
+        for (StepDescriptor d : descriptors) {
+            // TODO consider adding metasteps here and in DSL.reportAmbiguousStepInvocation
+            String functionName = d.getFunctionName();
+            if (f.putIfAbsent(functionName, d) != null) {
+                a.add(functionName);
+            }
+            c.put(d.clazz.getName(), d);
+        }
+        functions = Collections.unmodifiableMap(f);
+        stepClassNames = Collections.unmodifiableMap(c);
+        ambiguousFunctions = Collections.unmodifiableSet(a);
+    }
+
+    /**
+     * Obtains the index, waiting for Jenkins to load steps if need be.
+     */
+    static FunctionIndex get() throws InterruptedException {
+        FunctionIndex index = current;
+        if (index != null) {
+            return index;
+        }
+        while (StepDescriptor.all().isEmpty()) {
+            LOGGER.warning("Jenkins does not seem to be fully started yet, waiting…");
+            Thread.sleep(1000);
+        }
+        while (true) {
+            long building;
+            synchronized (FunctionIndex.class) {
+                if (current != null) {
+                    return current;
+                }
+                building = generation;
+            }
+            FunctionIndex built = new FunctionIndex(StepDescriptor.all());
+            synchronized (FunctionIndex.class) {
+                if (generation == building) {
+                    if (current == null) {
+                        current = built;
+                    }
+                    return current;
+                }
+            }
+            // extensions changed while building, so what we built may be stale
+        }
+    }
+
+    static void invalidate() {
+        synchronized (FunctionIndex.class) {
+            generation++;
+            current = null;
+        }
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void listen() {
+        invalidate();
+        ExtensionListListener listener = new ExtensionListListener() {
+            @Override public void onChange() {
+                invalidate();
+            }
+        };
+        StepDescriptor.all().addListener(listener);
+        ExtensionList.lookup(Descriptor.class).addListener(listener);
+    }
+
+    /**
+     * Finds a step by function name or, failing that, class name.
+     */
+    @CheckForNull StepDescriptor getStep(String name) {
+        StepDescriptor d = functions.get(name);
+        return d != null ? d : stepClassNames.get(name);
+    }
+
+    /**
+     * Whether some {@link Describable} has this symbol.
+     */
+    boolean isSymbol(String name) {
+        if (notSymbols.contains(name)) {
+            return false;
+        }
+        if (SymbolLookup.get().findDescriptor(Describable.class, name) != null) {
+            return true;
+        }
+        if (notSymbols.size() >= MAX_MISSES) {
+            notSymbols.clear();
+        }
+        notSymbols.add(name);
+        return false;
+    }
+
+    Set<String> getFunctionNames() {
+        return new TreeSet<>(functions.keySet());
+    }
+
+    /**
+     * Lists symbols of all descriptors, scanning the classpath the first time.
+     */
+    Set<String> getSymbols() throws IOException {
+        Set<String> s = symbols;
+        if (s == null) {
+            s = new TreeSet<>();
+            // TODO SymbolLookup only lets us find a particular symbol, not enumerate them
+            for (Class<?> e : Index.list(Symbol.class, Jenkins.get().pluginManager.uberClassLoader, Class.class)) {
+                if (Descriptor.class.isAssignableFrom(e)) {
+                    s.addAll(SymbolLookup.getSymbolValue(e));
+                }
+            }
+            s = Collections.unmodifiableSet(s);
+            symbols = s;
+        }
+        return s;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(FunctionIndex.class.getName());
+}
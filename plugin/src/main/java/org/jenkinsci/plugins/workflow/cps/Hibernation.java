@@ -0,0 +1,221 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import com.google.common.util.concurrent.ForwardingListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.ContextResettingExecutorService;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+/**
+ * Drops the program of a {@link CpsFlowExecution} from memory while all of its threads wait on steps for a long time,
+ * loading it back from {@code program.dat} when something needs it.
+ *
+ * <p>
+ * A hibernated execution has a {@link Dormant} {@link CpsFlowExecution#programPromise}
+ * which starts loading the program as soon as anyone waits for it,
+ * such as {@link CpsStepContext} delivering the outcome of a step, or a request to interrupt the build.
+ * Unlike resumption after a restart, step executions are not {@linkplain StepExecution#onResume resumed}:
+ * other code (timers, actions) may still be holding on to them, so those live executions
+ * (from {@link #RETAINED_STEPS}) are put back into the program once it has been reloaded.
+ * Steps merely waiting for their bodies ({@link #BLOCK_STEPS}) are taken from the reloaded program,
+ * since their executions refer to threads of the program.
+ * {@link CpsFlowExecution#getCurrentExecutions} answers from the live executions without loading the program,
+ * so for example {@link StepExecution#applyAll} does not wake every hibernated build;
+ * it omits the executions of block-scoped steps, which are not in memory until the program is loaded.
+ * A build waiting on any other step is not hibernated, as there is no telling what its execution refers to.
+ */
+final class Hibernation {
+
+    /** How long all threads of a build must have been waiting before it is hibernated; zero or less to disable. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static long IDLE_SECONDS = SystemProperties.getLong(Hibernation.class.getName() + ".IDLE_SECONDS", 0L);
+
+    /** {@link StepExecution} classes, comma-separated, which may be kept live while a build is hibernated. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static String RETAINED_STEPS = SystemProperties.getString(Hibernation.class.getName() + ".RETAINED_STEPS",
+        "org.jenkinsci.plugins.workflow.support.steps.input.InputStepExecution," +
+        "org.jenkinsci.plugins.workflow.steps.SleepStep$Execution");
+
+    /** {@link StepExecution} classes, comma-separated, of block-scoped steps which need do nothing besides wait for their bodies. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static String BLOCK_STEPS = SystemProperties.getString(Hibernation.class.getName() + ".BLOCK_STEPS",
+        "org.jenkinsci.plugins.workflow.cps.steps.ParallelStepExecution," +
+        "org.jenkinsci.plugins.workflow.support.steps.StageStepExecution");
+
+    // As in CpsStepContext, using jenkins.util.Timer for this could deadlock.
+    private static final ExecutorService wakers = new ContextResettingExecutorService(
+        Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "Hibernation")));
+
+    private Hibernation() {}
+
+    static boolean isEnabled() {
+        return IDLE_SECONDS > 0;
+    }
+
+    private static Set<String> classes(String list) {
+        Set<String> r = new TreeSet<>(Arrays.asList(list.split(",")));
+        r.remove("");
+        return r;
+    }
+
+    /**
+     * Hibernates a program if it has been idle long enough.
+     * @return whether it was hibernated
+     */
+    @CpsVmThreadOnly
+    static boolean hibernateIfIdle(CpsThreadGroup g) throws IOException {
+        CpsFlowExecution execution = g.getExecution();
+        if (!isEnabled() || execution.isComplete() || execution.isResumeBlocked() || g.hibernated) {
+            return false;
+        }
+        Jenkins j = Jenkins.getInstanceOrNull();
+        if (j == null || j.isQuietingDown()) {
+            return false;
+        }
+        if (!g.isIdleSince(System.nanoTime() - TimeUnit.SECONDS.toNanos(IDLE_SECONDS))) {
+            return false;
+        }
+        Set<String> retained = classes(RETAINED_STEPS);
+        Set<String> block = classes(BLOCK_STEPS);
+        Map<Integer, StepExecution> live = new HashMap<>();
+        for (CpsThread t : g.getThreads()) {
+            StepExecution s = t.getStep();
+            if (s == null) {
+                return false;
+            }
+            String c = s.getClass().getName();
+            if (retained.contains(c)) {
+                if (!(s.getContext() instanceof CpsStepContext)) {
+                    return false;
+                }
+                live.put(t.id, s);
+            } else if (!block.contains(c)) {
+                LOGGER.log(Level.FINER, "not hibernating {0} while running {1}", new Object[] {execution, c});
+                return false;
+            }
+        }
+        g.saveProgram();
+        try {
+            g.flushProgram();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        for (StepExecution s : live.values()) {
+            ((CpsStepContext) s.getContext()).hibernate();
+        }
+        Dormant dormant = new Dormant(execution, live);
+        execution.hibernate(g, dormant);
+        LOGGER.log(Level.FINE, "hibernated {0}", execution);
+        return true;
+    }
+
+    /**
+     * {@link CpsFlowExecution#programPromise} of a hibernated execution.
+     * Waiting on it in any way loads the program.
+     */
+    static final class Dormant extends ForwardingListenableFuture<CpsThreadGroup> {
+
+        private final CpsFlowExecution execution;
+        /** live step executions by thread id; cleared once the program has been loaded */
+        private final Map<Integer, StepExecution> live;
+        private final SettableFuture<CpsThreadGroup> delegate = SettableFuture.create();
+        private final AtomicBoolean waking = new AtomicBoolean();
+
+        Dormant(CpsFlowExecution execution, Map<Integer, StepExecution> live) {
+            this.execution = execution;
+            this.live = new ConcurrentSkipListMap<>(live);
+        }
+
+        @Override protected SettableFuture<CpsThreadGroup> delegate() {
+            return delegate;
+        }
+
+        /** Whether loading the program has not yet been requested. */
+        boolean isAsleep() {
+            return !waking.get();
+        }
+
+        /**
+         * The step executions kept live, for answering {@link CpsFlowExecution#getCurrentExecutions} without loading the program.
+         * @return null if loading the program has been requested, in which case they may no longer all be listed
+         */
+        @CheckForNull List<StepExecution> getLiveSteps() {
+            List<StepExecution> steps = List.copyOf(live.values());
+            return isAsleep() ? steps : null;
+        }
+
+        /** Starts loading the program, if not already doing so. */
+        void wake() {
+            if (waking.compareAndSet(false, true)) {
+                LOGGER.log(Level.FINE, "waking up {0}", execution);
+                wakers.submit(() -> execution.wake(this));
+            }
+        }
+
+        /**
+         * Called on the CPS VM thread once the program has been loaded, to put back live step executions.
+         */
+        @CpsVmThreadOnly
+        void loaded(CpsThreadGroup g) {
+            live.forEach((id, s) -> {
+                CpsThread t = g.getThread(id);
+                if (t != null && t.getStep() != null) {
+                    t.setStep(s);
+                }
+            });
+            live.clear();
+            delegate.set(g);
+        }
+
+        void failed(Throwable t) {
+            live.clear();
+            delegate.setException(t);
+        }
+
+        @Override public void addListener(@NonNull Runnable listener, @NonNull Executor executor) {
+            wake();
+            super.addListener(listener, executor);
+        }
+
+        @Override public CpsThreadGroup get() throws InterruptedException, ExecutionException {
+            wake();
+            return super.get();
+        }
+
+        @Override public CpsThreadGroup get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            wake();
+            return super.get(timeout, unit);
+        }
+
+        @Override public String toString() {
+            return "Dormant[" + execution + (isAsleep() ? "" : ", waking") + "]";
+        }
+
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Hibernation.class.getName());
+}
@@ -0,0 +1,178 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverReader;
+
+/**
+ * Optional compressed encoding of {@code program.dat}.
+ *
+ * <p>
+ * {@link RiverReader} needs random access to an uncompressed file, so the whole file is compressed,
+ * behind a header distinguishing it from what {@code RiverWriter} produces:
+ * a magic number, a format version, the codec, and the uncompressed length.
+ * Files are compressed by {@link ProgramWriter} before being moved into place,
+ * and {@link #decompressed} makes a temporary uncompressed copy when a program is loaded, so older files are read as before.
+ * Deltas written by {@link DeltaCheckpoints} always refer to the uncompressed form.
+ */
+final class ProgramCompression {
+
+    /** Whether {@code program.dat} is written compressed. Compressed files are read regardless. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean ENABLED = SystemProperties.getBoolean(ProgramCompression.class.getName() + ".ENABLED");
+
+    /** {@link Deflater} compression level, from 1 (fastest) to 9 (smallest). */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static int LEVEL = SystemProperties.getInteger(ProgramCompression.class.getName() + ".LEVEL", Deflater.BEST_SPEED);
+
+    private static final byte[] MAGIC = "CPSZ".getBytes(StandardCharsets.US_ASCII);
+    private static final short VERSION = 1;
+    private static final byte CODEC_DEFLATE = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ProgramCompression() {}
+
+    /**
+     * Checks whether a file was written by {@link #compress}.
+     */
+    static boolean isCompressed(File f) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = Files.newInputStream(f.toPath())) {
+            return in.readNBytes(magic, 0, magic.length) == magic.length && Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    /**
+     * Compresses a file into a new temporary file, leaving the original alone.
+     * @param dir where to create the compressed file, normally the directory it is to be moved into
+     * @return the compressed file
+     */
+    static File compress(File raw, File dir) throws IOException {
+        File compressed = File.createTempFile("atomic", null, dir);
+        Deflater deflater = new Deflater(LEVEL);
+        try (InputStream in = Files.newInputStream(raw.toPath());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compressed.toPath()), BUFFER_SIZE))) {
+            out.write(MAGIC);
+            out.writeShort(VERSION);
+            out.writeByte(CODEC_DEFLATE);
+            out.writeLong(raw.length());
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            in.transferTo(deflated);
+            deflated.finish();
+        } catch (IOException | RuntimeException x) {
+            Files.deleteIfExists(compressed.toPath());
+            throw x;
+        } finally {
+            deflater.end();
+        }
+        return compressed;
+    }
+
+    /**
+     * Opens a file for reading its uncompressed contents, whether it was compressed or not.
+     */
+    static InputStream open(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(f.toPath()), BUFFER_SIZE));
+        try {
+            in.mark(MAGIC.length);
+            byte[] magic = new byte[MAGIC.length];
+            if (in.readNBytes(magic, 0, magic.length) < magic.length || !Arrays.equals(magic, MAGIC)) {
+                in.reset();
+                return in;
+            }
+            short version = in.readShort();
+            byte codec = in.readByte();
+            if (version != VERSION || codec != CODEC_DEFLATE) {
+                throw new IOException("Unsupported format " + version + "/" + codec + " of " + f);
+            }
+            long length = in.readLong();
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                long remaining = length;
+                @Override public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        remaining -= n;
+                    } else if (n == -1 && remaining != 0) {
+                        throw new IOException("Expected " + length + " bytes in " + f + " but got " + (length - remaining));
+                    }
+                    return n;
+                }
+                @Override public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException x) {
+            in.close();
+            throw x;
+        }
+    }
+
+    /**
+     * Reads the uncompressed contents of a file, whether it was compressed or not.
+     */
+    static byte[] readAllBytes(File f) throws IOException {
+        try (InputStream in = open(f)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * If a file is compressed, decompresses it into a temporary file, so that it can be read by {@link RiverReader}.
+     * The file itself is left alone, so loading a program never changes what is on disk for the build.
+     * @return a temporary file in the default temporary directory, to be passed to {@link #deleteDecompressed} once read;
+     *         or null if the file is not compressed and can be read as is
+     */
+    static @CheckForNull File decompressed(File f) throws IOException {
+        if (!f.isFile() || !isCompressed(f)) {
+            return null;
+        }
+        File tmp = File.createTempFile("program", ".dat");
+        try (InputStream in = open(f); OutputStream out = Files.newOutputStream(tmp.toPath())) {
+            in.transferTo(out);
+        } catch (IOException | RuntimeException x) {
+            Files.deleteIfExists(tmp.toPath());
+            throw x;
+        }
+        LOGGER.log(Level.FINE, "decompressed {0} into {1}", new Object[] {f, tmp});
+        return tmp;
+    }
+
+    /**
+     * Deletes a file returned by {@link #decompressed}, if any.
+     */
+    static void deleteDecompressed(@CheckForNull File tmp) {
+        if (tmp == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(tmp.toPath());
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "could not delete " + tmp, x);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ProgramCompression.class.getName());
+}
@@ -0,0 +1,264 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import com.cloudbees.jenkins.support.api.Component;
+import com.cloudbees.jenkins.support.api.Container;
+import com.cloudbees.jenkins.support.api.Content;
+import com.google.common.util.concurrent.FutureCallback;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.security.Permission;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jboss.marshalling.Marshaller;
+import org.jboss.marshalling.Marshalling;
+import org.jboss.marshalling.MarshallingConfiguration;
+import org.jboss.marshalling.ObjectResolver;
+import org.jboss.marshalling.river.RiverMarshallerFactory;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionList;
+import org.jenkinsci.plugins.workflow.pickles.Pickle;
+import org.jenkinsci.plugins.workflow.pickles.PickleFactory;
+
+/**
+ * Breaks down what {@link CpsThreadGroup#saveProgram()} would write to {@code program.dat}.
+ *
+ * <p>
+ * The program is serialized once more, discarding the output but noting how many bytes each object accounts for.
+ * Each object is charged only for its own fields; objects it refers to are charged separately.
+ * Threads are serialized one at a time before the rest of the program,
+ * so that the state reachable from each {@link CpsThread} can be attributed to it and to the line of script it is at;
+ * state shared among threads is charged to the first.
+ */
+final class ProgramStateProfile {
+
+    /** Size in megabytes of serialized program state above which a warning is printed to the build log; zero or less to disable. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static int WARNING_THRESHOLD_MB = SystemProperties.getInteger(ProgramStateProfile.class.getName() + ".WARNING_THRESHOLD_MB", 0);
+
+    /** Number of classes listed in a report. */
+    private static final int MAX_CLASSES = 50;
+
+    private long total;
+    private final Map<String, long[]> classes = new HashMap<>();
+    private final List<ThreadEntry> threads = new ArrayList<>();
+
+    private ProgramStateProfile() {}
+
+    /**
+     * Prints a warning to the build log the first time a saved program exceeds {@link #WARNING_THRESHOLD_MB}.
+     * @param bytes size of the serialized program
+     */
+    @CpsVmThreadOnly
+    static void checkSize(CpsThreadGroup g, long bytes) {
+        if (WARNING_THRESHOLD_MB <= 0 || bytes <= WARNING_THRESHOLD_MB * 1024L * 1024L || g.programSizeWarned) {
+            return;
+        }
+        g.programSizeWarned = true;
+        CpsFlowExecution execution = g.getExecution();
+        try {
+            execution.getOwner().getListener().getLogger().printf(
+                "Warning: the state of this Pipeline takes %d MB to save, which may slow it down; see programProfile.txt under Thread Dump for details%n",
+                bytes / 1024 / 1024);
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, null, x);
+        }
+    }
+
+    /**
+     * Profiles a running program.
+     */
+    @CpsVmThreadOnly
+    static ProgramStateProfile of(CpsThreadGroup g) throws IOException {
+        ProgramStateProfile profile = new ProgramStateProfile();
+        Collection<? extends PickleFactory> pickleFactories = PickleFactory.all();
+        Counter counter = new Counter();
+        Map<Object, Boolean> seen = new IdentityHashMap<>();
+        boolean[] threadsOnly = {true};
+        Marshaller[] marshaller = new Marshaller[1];
+        Object[] current = new Object[1];
+        MarshallingConfiguration config = new MarshallingConfiguration();
+        config.setObjectResolver(new ObjectResolver() {
+            @Override public Object readResolve(Object replacement) {
+                return replacement;
+            }
+            @Override public Object writeReplace(Object original) {
+                try {
+                    marshaller[0].flush();
+                } catch (IOException x) {
+                    throw new IllegalStateException(x);
+                }
+                profile.charge(current[0], counter.reset());
+                if (original == g && threadsOnly[0]) {
+                    // counted along with the rest of the program later
+                    current[0] = null;
+                    return "CpsThreadGroup";
+                }
+                Object replacement = original;
+                for (PickleFactory f : pickleFactories) {
+                    Pickle p = f.writeReplace(original);
+                    if (p != null) {
+                        replacement = p;
+                        break;
+                    }
+                }
+                current[0] = replacement;
+                if (seen.put(replacement, Boolean.TRUE) == null) {
+                    profile.classes.computeIfAbsent(replacement.getClass().getName(), k -> new long[2])[1]++;
+                }
+                return replacement;
+            }
+        });
+        CpsFlowExecution old = CpsFlowExecution.PROGRAM_STATE_SERIALIZATION.get();
+        CpsFlowExecution.PROGRAM_STATE_SERIALIZATION.set(g.getExecution());
+        try {
+            Marshaller m = new RiverMarshallerFactory().createMarshaller(config);
+            marshaller[0] = m;
+            m.start(Marshalling.createByteOutput(counter));
+            for (CpsThread t : g.getThreads()) {
+                long before = profile.total + counter.count;
+                m.writeObject(t);
+                m.flush();
+                profile.charge(current[0], counter.reset());
+                current[0] = null;
+                List<StackTraceElement> stack = t.getStackTrace();
+                profile.threads.add(new ThreadEntry(t.toString(), stack.isEmpty() ? null : stack.get(0), profile.total - before));
+            }
+            threadsOnly[0] = false;
+            m.writeObject(g);
+            m.finish();
+            profile.charge(current[0], counter.reset());
+        } finally {
+            CpsFlowExecution.PROGRAM_STATE_SERIALIZATION.set(old);
+        }
+        return profile;
+    }
+
+    /**
+     * Profiles a running program from any thread.
+     */
+    static ProgramStateProfile of(CpsFlowExecution execution) throws Exception {
+        if (execution.isComplete() || execution.isHibernated()) {
+            throw new IOException("Program of " + execution + " is not in memory");
+        }
+        CompletableFuture<ProgramStateProfile> f = new CompletableFuture<>();
+        execution.runInCpsVmThread(new FutureCallback<>() {
+            @Override public void onSuccess(CpsThreadGroup g) {
+                try {
+                    f.complete(of(g));
+                } catch (Throwable t) {
+                    f.completeExceptionally(t);
+                }
+            }
+            @Override public void onFailure(Throwable t) {
+                f.completeExceptionally(t);
+            }
+        });
+        return f.get(1, TimeUnit.MINUTES);
+    }
+
+    private void charge(Object o, long bytes) {
+        total += bytes;
+        if (o != null && bytes > 0) {
+            classes.computeIfAbsent(o.getClass().getName(), k -> new long[2])[0] += bytes;
+        }
+    }
+
+    long getTotal() {
+        return total;
+    }
+
+    void writeTo(PrintWriter pw) {
+        pw.println("Serialized program state: " + total + " bytes");
+        pw.println("By thread (including state reachable only from it):");
+        threads.stream().sorted(Comparator.comparingLong((ThreadEntry e) -> e.bytes).reversed()).forEach(e ->
+            pw.println("  " + e.bytes + "\t" + e.name + (e.location != null ? " at " + e.location : "")));
+        pw.println("By class (bytes, instances):");
+        classes.entrySet().stream().sorted(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[0]).reversed()).limit(MAX_CLASSES).forEach(e ->
+            pw.println("  " + e.getValue()[0] + "\t" + e.getValue()[1] + "\t" + e.getKey()));
+    }
+
+    private static final class ThreadEntry {
+        final String name;
+        final StackTraceElement location;
+        final long bytes;
+        ThreadEntry(String name, StackTraceElement location, long bytes) {
+            this.name = name;
+            this.location = location;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Counter extends OutputStream {
+        long count;
+        @Override public void write(int b) {
+            count++;
+        }
+        @Override public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+        long reset() {
+            long c = count;
+            count = 0;
+            return c;
+        }
+    }
+
+    @Extension(optional=true) public static class PipelineProgramProfile extends Component {
+
+        @Override public Set<Permission> getRequiredPermissions() {
+            return Set.of(Jenkins.ADMINISTER);
+        }
+
+        @Override public String getDisplayName() {
+            return "Breakdown of program state of running Pipeline builds";
+        }
+
+        @Override public ComponentCategory getCategory() {
+            return ComponentCategory.BUILDS;
+        }
+
+        @Override public boolean isSelectedByDefault() {
+            return false;
+        }
+
+        @Override public void addContents(Container container) {
+            container.add(new Content("nodes/master/pipeline-program-profile.txt") {
+                @Override public void writeTo(OutputStream outputStream) throws IOException {
+                    PrintWriter pw = new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                    for (FlowExecution flow : FlowExecutionList.get()) {
+                        if (flow instanceof CpsFlowExecution) {
+                            pw.println("Build: " + flow.getOwner().getExecutable());
+                            try {
+                                of((CpsFlowExecution) flow).writeTo(pw);
+                            } catch (Exception x) {
+                                pw.println("Not available: " + x);
+                            }
+                            pw.println();
+                        }
+                    }
+                    pw.flush();
+                }
+            });
+        }
+
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ProgramStateProfile.class.getName());
+}
@@ -0,0 +1,302 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Util;
+import hudson.remoting.SingleLaneExecutorService;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.ErrorLoggingExecutorService;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.support.concurrent.WithThreadName;
+
+/**
+ * Writes serialized program state of one {@link CpsThreadGroup} into {@code program.dat}.
+ *
+ * <p>
+ * The program must be serialized on the CPS VM thread, since it may not be modified meanwhile.
+ * {@code RiverWriter} can only serialize into a file, so that produces a snapshot in a temporary file
+ * in the default temporary directory, which is normally local and is never synced.
+ * Everything written into the build directory ({@link DeltaCheckpoints} or {@link ProgramCompression} encoding, {@code fsync}, and the atomic move)
+ * is written by a writer thread, one at a time for each program, so a slow build directory such as one on NFS does not hold up the CPS VM thread.
+ * When {@link #ASYNC}, the CPS VM thread does not even wait for that,
+ * and only the latest snapshot matters, so one which is superseded before it is written is simply deleted.
+ * The writer threads are daemons, so anything which needs the program to be on disk must call {@link #flush} first.
+ */
+final class ProgramWriter {
+
+    /** Whether routine checkpoints of the program are written in the background. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean ASYNC = SystemProperties.getBoolean(ProgramWriter.class.getName() + ".ASYNC");
+
+    private static final ExecutorService threadPool = new ErrorLoggingExecutorService(
+        Executors.newCachedThreadPool(
+            new NamingThreadFactory(
+                new DaemonThreadFactory(),
+                "ProgramWriter")));
+
+    private final CpsThreadGroup group;
+    private final ExecutorService lane = new SingleLaneExecutorService(threadPool);
+    private final AtomicReference<Snapshot> pending = new AtomicReference<>();
+    /** sequence number of the last snapshot taken, modified only on the CPS VM thread */
+    private volatile long taken;
+    /** sequence number of the last snapshot written (or discarded as written too late); guarded by {@code this} */
+    private long written;
+    /** why the last snapshot written could not be, if it could not; guarded by {@code this} */
+    private @CheckForNull Exception failure;
+    /** set once the program has ended and its state has been deleted; guarded by {@code this} */
+    private boolean closed;
+    private @CheckForNull DeltaCheckpoints checkpoints;
+
+    ProgramWriter(CpsThreadGroup group) {
+        this.group = group;
+    }
+
+    /**
+     * Takes ownership of a serialized program.
+     * @param file the destination, normally {@code program.dat}
+     * @param serialized a temporary file, normally in the default temporary directory
+     */
+    @CpsVmThreadOnly
+    Snapshot snapshot(File file, File serialized) {
+        return new Snapshot(++taken, file, serialized);
+    }
+
+    /**
+     * Writes a snapshot in the background, unless a later one gets there first.
+     */
+    @CpsVmThreadOnly
+    void submit(Snapshot s) {
+        Snapshot superseded = pending.getAndSet(s);
+        if (superseded != null) {
+            LOGGER.log(Level.FINE, "dropping superseded snapshot of {0}", superseded.file);
+            superseded.discard();
+        }
+        try {
+            lane.submit(this::writePending);
+        } catch (RejectedExecutionException x) {
+            LOGGER.log(Level.WARNING, "could not save " + s.file, x);
+            if (pending.compareAndSet(s, null)) {
+                rejected(s, x);
+            }
+        }
+    }
+
+    /** Gives up on a snapshot which could not be handed to {@link #lane}, so that {@link #flush} does not wait for it. */
+    private synchronized void rejected(Snapshot s, RejectedExecutionException x) {
+        s.discard();
+        written = Math.max(written, s.sequence);
+        failure = x;
+        notifyAll();
+    }
+
+    private void writePending() {
+        Snapshot s = pending.getAndSet(null);
+        if (s == null) {
+            return; // written by an earlier task
+        }
+        try {
+            writeNow(s);
+        } catch (IOException x) {
+            // JENKINS-29656: as with a synchronous save, just move on
+            LOGGER.log(Level.WARNING, "program state save failed", x);
+        } catch (RuntimeException x) {
+            LOGGER.log(Level.WARNING, "program state save failed", x);
+            group.propagateErrorToWorkflowLater(x);
+        }
+    }
+
+    /**
+     * Writes a snapshot and waits for it to be written, discarding any earlier one still pending.
+     */
+    void write(Snapshot s) throws IOException {
+        Snapshot earlier = pending.get();
+        if (earlier != null && earlier.sequence < s.sequence && pending.compareAndSet(earlier, null)) {
+            earlier.discard();
+        }
+        Future<?> done;
+        try {
+            done = lane.submit(() -> {
+                writeNow(s);
+                return null;
+            });
+        } catch (RejectedExecutionException x) {
+            rejected(s, x);
+            throw new IOException("could not save " + s.file, x);
+        }
+        try {
+            done.get();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while saving " + s.file);
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Writes a snapshot in the current thread, which is always on {@link #lane}.
+     */
+    private void writeNow(Snapshot s) throws IOException {
+        CpsFlowExecution execution = group.getExecution();
+        synchronized (this) {
+            if (closed || s.sequence <= written) {
+                s.discard();
+                return;
+            }
+            written = s.sequence;
+            try (WithThreadName diag = new WithThreadName("writing " + s.file)) {
+                if (DeltaCheckpoints.ENABLED) {
+                    if (checkpoints == null || !checkpoints.isFor(s.file)) {
+                        checkpoints = new DeltaCheckpoints(s.file);
+                    }
+                    DeltaCheckpoints.Encoded encoded;
+                    try (CpsFlowExecution.Timing t = execution.time(CpsFlowExecution.TimingKind.saveProgramEncode)) {
+                        encoded = checkpoints.encode(s.serialized);
+                    }
+                    if (encoded.compressed != null) {
+                        recordSizes(execution, encoded.length, encoded.compressed.length());
+                    }
+                    try (CpsFlowExecution.Timing t = execution.time(CpsFlowExecution.TimingKind.saveProgramWrite)) {
+                        checkpoints.write(encoded, ASYNC);
+                    }
+                } else {
+                    checkpoints = null;
+                    File data;
+                    if (ProgramCompression.ENABLED) {
+                        try (CpsFlowExecution.Timing t = execution.time(CpsFlowExecution.TimingKind.saveProgramEncode)) {
+                            data = ProgramCompression.compress(s.serialized, s.file.getParentFile());
+                        }
+                        recordSizes(execution, s.serialized.length(), data.length());
+                    } else {
+                        data = moveInto(s.serialized, s.file.getParentFile());
+                    }
+                    try (CpsFlowExecution.Timing t = execution.time(CpsFlowExecution.TimingKind.saveProgramWrite)) {
+                        if (ASYNC) {
+                            fsync(data);
+                        }
+                        Files.move(data.toPath(), s.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        DeltaCheckpoints.discardDeltas(s.file);
+                    } finally {
+                        Files.deleteIfExists(data.toPath());
+                    }
+                }
+                LOGGER.log(Level.FINE, "program state saved");
+                failure = null;
+            } catch (IOException | RuntimeException x) {
+                checkpoints = null;
+                failure = x;
+                throw x;
+            } finally {
+                s.discard();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for any snapshot pending or being written in the background,
+     * so that the latest snapshot taken is on disk when this returns normally.
+     * @throws IOException if the latest snapshot could not be written
+     * @throws InterruptedException if interrupted while waiting for a background write
+     */
+    void flush() throws IOException, InterruptedException {
+        long target = taken;
+        synchronized (this) {
+            while (written < target && !closed) {
+                wait(TimeUnit.SECONDS.toMillis(1));
+            }
+            if (failure != null && !closed) {
+                throw new IOException("Failed to write program state", failure);
+            }
+        }
+    }
+
+    /**
+     * Deletes the program state once the program has ended, after any write in progress, and prevents any further writes.
+     */
+    void delete(File file) throws IOException {
+        Snapshot s = pending.getAndSet(null);
+        if (s != null) {
+            s.discard();
+        }
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            checkpoints = null;
+            Util.deleteFile(file);
+            DeltaCheckpoints.discardDeltas(file);
+        }
+    }
+
+    private static void recordSizes(CpsFlowExecution execution, long raw, long compressed) {
+        execution.recordSize(CpsFlowExecution.SizeKind.saveProgramRaw, raw);
+        execution.recordSize(CpsFlowExecution.SizeKind.saveProgramCompressed, compressed);
+    }
+
+    /**
+     * Moves a file into a new temporary file in a directory, from which it can then be atomically moved into place.
+     * This is a rename if both are in the same file system, and otherwise a copy.
+     */
+    static File moveInto(File f, File dir) throws IOException {
+        File tmp = File.createTempFile("atomic", null, dir);
+        try {
+            Files.move(f.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException x) {
+            Files.deleteIfExists(tmp.toPath());
+            throw x;
+        }
+        return tmp;
+    }
+
+    static void fsync(File f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /** A program serialized into a temporary file, waiting to be written into place. */
+    static final class Snapshot {
+        final long sequence;
+        final File file;
+        final File serialized;
+        Snapshot(long sequence, File file, File serialized) {
+            this.sequence = sequence;
+            this.file = file;
+            this.serialized = serialized;
+        }
+        void discard() {
+            try {
+                Files.deleteIfExists(serialized.toPath());
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "could not delete " + serialized, x);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ProgramWriter.class.getName());
+}
@@ -0,0 +1,167 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.support.concurrent.Futures;
+
+/**
+ * Limits how many {@link CpsFlowExecution}s load their program at once when Jenkins starts,
+ * so that many running builds do not all contend for CPU and disk and then all become responsive late.
+ *
+ * <p>
+ * Only the parsing of scripts and reading of {@code program.dat} count against the limit;
+ * waiting for pickles (such as agents coming back online) does not.
+ * Before a build is loaded there is no telling how close it is to completion,
+ * so builds with the least program state to read go first, being the quickest to get running again;
+ * otherwise builds are loaded in the order Jenkins loads them.
+ */
+final class ResumptionScheduler {
+
+    /** Maximum number of builds loading their program at once; zero or less to load each build as soon as it is loaded by Jenkins. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static int CONCURRENCY = SystemProperties.getInteger(ResumptionScheduler.class.getName() + ".CONCURRENCY", 0);
+
+    /** Number of per-build latencies to retain for {@link CpsFlowExecution.PipelineTimings}. */
+    private static final int MAX_LATENCIES = 1000;
+
+    private static final ResumptionScheduler INSTANCE = new ResumptionScheduler();
+
+    static ResumptionScheduler get() {
+        return INSTANCE;
+    }
+
+    static boolean isEnabled() {
+        return CONCURRENCY > 0;
+    }
+
+    private final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new PriorityBlockingQueue<>(),
+        new NamingThreadFactory(new DaemonThreadFactory(), "ResumptionScheduler"));
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final AtomicInteger loaded = new AtomicInteger();
+    /** when the first build currently being tracked was scheduled */
+    private volatile long startedNanos;
+    /** time from scheduling to the program being ready, by build, most recent last; guarded by {@code this} */
+    private final Map<String, Long> latencies = new LinkedHashMap<>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_LATENCIES;
+        }
+    };
+
+    private ResumptionScheduler() {
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a build to load its program.
+     * @param programDataFile used to estimate how much work it will be
+     * @param promise completed once the program has been loaded (or failed to load)
+     * @param load loads the program, completing {@code promise}
+     */
+    void submit(CpsFlowExecution execution, File programDataFile, ListenableFuture<?> promise, Runnable load) {
+        long cost = programDataFile.length() + DeltaCheckpoints.deltaFile(programDataFile).length();
+        Task task = new Task(execution, cost, sequence.incrementAndGet(), load);
+        synchronized (this) {
+            if (scheduled.get() == loaded.get()) {
+                startedNanos = task.queued;
+            }
+            scheduled.incrementAndGet();
+            int concurrency = Math.max(CONCURRENCY, 1);
+            if (pool.getMaximumPoolSize() != concurrency) {
+                if (concurrency > pool.getMaximumPoolSize()) {
+                    pool.setMaximumPoolSize(concurrency);
+                    pool.setCorePoolSize(concurrency);
+                } else {
+                    pool.setCorePoolSize(concurrency);
+                    pool.setMaximumPoolSize(concurrency);
+                }
+            }
+        }
+        Futures.addCallback(promise, new FutureCallback<Object>() {
+            @Override public void onSuccess(Object result) {
+                done(task);
+            }
+            @Override public void onFailure(Throwable t) {
+                done(task);
+            }
+        });
+        pool.execute(task);
+    }
+
+    private void done(Task task) {
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.queued);
+        String name = String.valueOf(task.execution.getOwner());
+        LOGGER.log(Level.FINE, "{0} ready {1}ms after being scheduled", new Object[] {name, latency});
+        int total;
+        int count;
+        synchronized (this) {
+            latencies.put(name, latency);
+            count = loaded.incrementAndGet();
+            total = scheduled.get();
+        }
+        if (count == total) {
+            LOGGER.log(Level.INFO, "Loaded {0} Pipeline builds in {1}ms", new Object[] {total, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos)});
+        } else if (count % Math.max(total / 10, 1) == 0) {
+            LOGGER.log(Level.INFO, "Loaded {0} of {1} Pipeline builds", new Object[] {count, total});
+        }
+    }
+
+    /**
+     * Describes progress and per-build latencies.
+     */
+    void writeStatus(PrintWriter pw) {
+        List<Map.Entry<String, Long>> snapshot;
+        synchronized (this) {
+            pw.println("Loaded " + loaded.get() + " of " + scheduled.get() + " Pipeline builds scheduled for resumption, at most " + CONCURRENCY + " at a time:");
+            snapshot = new ArrayList<>(latencies.entrySet());
+        }
+        for (Map.Entry<String, Long> e : snapshot) {
+            pw.println("  " + e.getKey() + "\t" + e.getValue() + "ms");
+        }
+    }
+
+    private static final class Task implements Runnable, Comparable<Task> {
+        final CpsFlowExecution execution;
+        final long cost;
+        final long sequence;
+        final Runnable load;
+        final long queued = System.nanoTime();
+        Task(CpsFlowExecution execution, long cost, long sequence, Runnable load) {
+            this.execution = execution;
+            this.cost = cost;
+            this.sequence = sequence;
+            this.load = load;
+        }
+        @Override public void run() {
+            execution.recordTiming(CpsFlowExecution.TimingKind.loadQueue, System.nanoTime() - queued);
+            try {
+                load.run();
+            } catch (RuntimeException | Error x) {
+                LOGGER.log(Level.WARNING, "failed to load " + execution, x);
+            }
+        }
+        @Override public int compareTo(Task o) {
+            int c = Long.compare(cost, o.cost);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ResumptionScheduler.class.getName());
+}
@@ -7,6 +7,7 @@ import hudson.MarkupText;
 import hudson.console.ConsoleAnnotator;
 import hudson.console.ConsoleNote;
 import java.io.IOException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.GroovySandbox;
@@ -24,6 +25,15 @@ class SandboxContinuable extends Continuable {
 
     @SuppressWarnings("rawtypes")
     public Outcome run0(final Outcome cn) {
+        return runInSandbox(() -> SandboxContinuable.super.run0(cn));
+    }
+
+    @Override
+    public Outcome run0(final Outcome cn, long maxSteps, long maxNanos) {
+        return runInSandbox(() -> SandboxContinuable.super.run0(cn, maxSteps, maxNanos));
+    }
+
+    private Outcome runInSandbox(Supplier<Outcome> run) {
         CpsFlowExecution e = thread.group.getExecution();
         if (e == null) {
             throw new IllegalStateException("JENKINS-50407: no loaded execution");
@@ -46,7 +56,7 @@ class SandboxContinuable extends Continuable {
             trustedShell.getClassLoader(),
             shell.getClassLoader()));
         try (GroovySandbox.Scope scope = sandbox.enter()) {
-            return SandboxContinuable.super.run0(cn);
+            return run.get();
         }
     }
 
@@ -0,0 +1,295 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import com.cloudbees.groovy.cps.Continuable;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import groovy.lang.GroovySystem;
+import hudson.PluginWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.security.HMACConfidentialKey;
+import jenkins.util.SystemProperties;
+
+/**
+ * Keeps the classes compiled from the scripts of a {@link CpsFlowExecution} in its build directory,
+ * so that they can be defined directly when the build resumes, rather than parsed and CPS-transformed again.
+ *
+ * <p>
+ * Each script is keyed by its name and text, as well as everything else which could affect how it compiles:
+ * the versions of Groovy, {@code groovy-cps}, this plugin, and any {@link GroovyShellDecorator}s,
+ * and the settings of the shell ({@link CpsGroovyShellFactory#INFER_NON_CPS}, the sandbox).
+ * A script whose key does not match is just compiled as usual, and the cache updated.
+ * The file is signed, so that it cannot be used to inject bytecode by someone able to write only to the build directory.
+ */
+final class ScriptClassCache {
+
+    /** Whether to cache compiled scripts of running builds. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean ENABLED = SystemProperties.getBoolean(ScriptClassCache.class.getName() + ".ENABLED");
+
+    private static final HMACConfidentialKey MAC = new HMACConfidentialKey(ScriptClassCache.class, "mac");
+    private static final byte[] MAGIC = "CPSC".getBytes(StandardCharsets.US_ASCII);
+    private static final short VERSION = 1;
+
+    private final File file;
+    private final String environment;
+    /** entries read from disk, by key */
+    private final Map<String, Entry> stored;
+    /** entries used by this execution so far, in order of parsing; guarded by {@code this} */
+    private final Map<String, Entry> used = new LinkedHashMap<>();
+
+    private ScriptClassCache(File file, String environment, Map<String, Entry> stored) {
+        this.file = file;
+        this.environment = environment;
+        this.stored = stored;
+    }
+
+    static File file(CpsFlowExecution execution) throws IOException {
+        return new File(execution.getOwner().getRootDir(), "script-classes.dat");
+    }
+
+    /**
+     * Loads any cache written previously for this execution.
+     * @param sandbox whether scripts are compiled for the sandbox
+     */
+    static ScriptClassCache load(CpsFlowExecution execution, boolean sandbox) throws IOException {
+        File f = file(execution);
+        String environment = environment(sandbox);
+        Map<String, Entry> stored = new HashMap<>();
+        try {
+            stored = read(f);
+        } catch (NoSuchFileException x) {
+            // new build, or built without the cache
+        } catch (IOException | RuntimeException x) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable " + f, x);
+        }
+        return new ScriptClassCache(f, environment, stored);
+    }
+
+    /**
+     * Looks for the classes previously compiled from a script.
+     * @return class names and bytecode, in the order they were defined, or null if the script needs to be compiled
+     */
+    synchronized @CheckForNull Map<String, byte[]> get(String name, String text) {
+        String key = key(name, text);
+        Entry e = stored.get(key);
+        if (e != null) {
+            used.put(key, e);
+            return e.classes;
+        }
+        return null;
+    }
+
+    /**
+     * Records the classes just compiled from a script.
+     */
+    synchronized void put(String name, String text, Map<String, byte[]> classes) {
+        String key = key(name, text);
+        used.put(key, new Entry(name, classes));
+    }
+
+    /**
+     * Writes out the scripts used by this execution, if they differ from what was loaded.
+     */
+    synchronized void save() throws IOException {
+        if (used.equals(stored)) {
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.write(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(used.size());
+            for (Map.Entry<String, Entry> kv : used.entrySet()) {
+                out.writeUTF(kv.getKey());
+                out.writeUTF(kv.getValue().name);
+                out.writeInt(kv.getValue().classes.size());
+                for (Map.Entry<String, byte[]> c : kv.getValue().classes.entrySet()) {
+                    out.writeUTF(c.getKey());
+                    out.writeInt(c.getValue().length);
+                    out.write(c.getValue());
+                }
+            }
+        }
+        byte[] data = payload.toByteArray();
+        byte[] mac = MAC.mac(data);
+        File tmp = File.createTempFile("atomic", null, file.getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp.toPath()))) {
+                out.writeShort(mac.length);
+                out.write(mac);
+                out.write(data);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        stored.clear();
+        stored.putAll(used);
+    }
+
+    /**
+     * Deletes the cache of an execution which will not be resumed again.
+     */
+    static void delete(CpsFlowExecution execution) throws IOException {
+        Files.deleteIfExists(file(execution).toPath());
+    }
+
+    private static Map<String, Entry> read(File f) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(f.toPath())))) {
+            byte[] mac = new byte[in.readUnsignedShort()];
+            in.readFully(mac);
+            byte[] data = in.readAllBytes();
+            if (!MAC.checkMac(data, mac)) {
+                throw new IOException("Signature mismatch");
+            }
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(data));
+            byte[] magic = new byte[MAGIC.length];
+            payload.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || payload.readShort() != VERSION) {
+                throw new IOException("Unrecognized format");
+            }
+            int count = payload.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = payload.readUTF();
+                String name = payload.readUTF();
+                int classCount = payload.readInt();
+                Map<String, byte[]> classes = new LinkedHashMap<>();
+                for (int j = 0; j < classCount; j++) {
+                    String className = payload.readUTF();
+                    byte[] bytecode = new byte[payload.readInt()];
+                    payload.readFully(bytecode);
+                    classes.put(className, bytecode);
+                }
+                entries.put(key, new Entry(name, classes));
+            }
+        }
+        return entries;
+    }
+
+    private String key(String name, String text) {
+        MessageDigest digest = sha256();
+        digest.update(environment.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(name.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        return hex(digest.digest());
+    }
+
+    /**
+     * Describes everything other than the script itself which affects how it is compiled.
+     */
+    static String environment(boolean sandbox) {
+        StringBuilder b = new StringBuilder();
+        b.append("format=").append(VERSION);
+        b.append(";java=").append(System.getProperty("java.specification.version"));
+        b.append(";groovy=").append(GroovySystem.getVersion());
+        b.append(";groovy-cps=").append(version(Continuable.class));
+        b.append(";workflow-cps=").append(version(CpsFlowExecution.class));
+        b.append(";sandbox=").append(sandbox);
+        b.append(";inferNonCps=").append(CpsGroovyShellFactory.INFER_NON_CPS);
+        for (GroovyShellDecorator d : GroovyShellDecorator.all()) {
+            b.append(";decorator=").append(d.getClass().getName()).append('@').append(version(d.getClass()));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Identifies the build of the code defining a class,
+     * as precisely as possible in case snapshot builds are replaced without changing their version.
+     */
+    private static String version(Class<?> c) {
+        StringBuilder b = new StringBuilder();
+        Jenkins j = Jenkins.getInstanceOrNull();
+        PluginWrapper plugin = j != null ? j.getPluginManager().whichPlugin(c) : null;
+        if (plugin != null) {
+            b.append(plugin.getShortName()).append(':').append(plugin.getVersion());
+        } else {
+            b.append(c.getPackage() != null ? c.getPackage().getImplementationVersion() : null);
+        }
+        CodeSource source = c.getProtectionDomain().getCodeSource();
+        if (source != null && source.getLocation() != null) {
+            try {
+                b.append('@').append(new File(source.getLocation().toURI()).lastModified());
+            } catch (URISyntaxException | IllegalArgumentException x) {
+                b.append('@').append(source.getLocation());
+            }
+        }
+        return b.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder b = new StringBuilder(bytes.length * 2);
+        for (byte x : bytes) {
+            b.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Thrown when cached classes could not be defined, in which case all scripts should be compiled afresh.
+     */
+    static final class StaleException extends RuntimeException {
+        StaleException(String script, Throwable cause) {
+            super("Could not define cached classes of " + script, cause);
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+        final Map<String, byte[]> classes;
+        Entry(String name, Map<String, byte[]> classes) {
+            this.name = name;
+            this.classes = classes;
+        }
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry) o;
+            if (!name.equals(e.name) || !classes.keySet().equals(e.classes.keySet())) {
+                return false;
+            }
+            for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+                if (!Arrays.equals(c.getValue(), e.classes.get(c.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        @Override public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptClassCache.class.getName());
+}
@@ -0,0 +1,210 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
+
+/**
+ * Content-addressed store of Pipeline script texts, shared by the builds of a job.
+ *
+ * <p>
+ * When {@link #ENABLED}, {@code build.xml} records only the SHA-256 hashes of
+ * {@link CpsFlowExecution#getScript} and {@link CpsFlowExecution#getLoadedScripts},
+ * so saving a build no longer rewrites the text of every script it loaded.
+ * The texts are kept as {@code scripts/<hash>.groovy} in the job directory, each written once.
+ * Builds recorded either way can be read regardless of the current setting.
+ *
+ * <p>
+ * A build whose scripts are missing from the store cannot be resumed, and fails with an error naming the missing file.
+ * Scripts are therefore kept as long as any build of the job refers to them:
+ * after builds are deleted, {@link Cleanup} deletes the scripts no longer mentioned in the {@code build.xml} of any remaining build.
+ * The store is otherwise deleted, moved, or copied along with the job directory.
+ */
+final class ScriptStore {
+
+    /** Whether newly saved builds refer to scripts in the store rather than including their text. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean ENABLED = SystemProperties.getBoolean(ScriptStore.class.getName() + ".ENABLED");
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptStore.class.getName());
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    /**
+     * How long a script written or reused by {@link #put} is kept even if no {@code build.xml} mentions it,
+     * since the build which stored it may not have finished saving.
+     */
+    private static final long GRACE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final File dir;
+
+    private ScriptStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Finds the store for the job of a build.
+     * @return null if the owner is not a build of a job
+     */
+    static @CheckForNull ScriptStore of(@CheckForNull FlowExecutionOwner owner) throws IOException {
+        if (owner == null) {
+            return null;
+        }
+        Object executable = owner.getExecutable();
+        if (!(executable instanceof Run)) {
+            return null;
+        }
+        return of(((Run<?, ?>) executable).getParent());
+    }
+
+    static ScriptStore of(Job<?, ?> job) {
+        return new ScriptStore(new File(job.getRootDir(), "scripts"));
+    }
+
+    static String hash(String text) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    private File file(String hash) throws IOException {
+        if (!HASH.matcher(hash).matches()) {
+            throw new IOException("Invalid script hash: " + hash);
+        }
+        return new File(dir, hash + ".groovy");
+    }
+
+    /**
+     * Adds a script to the store, unless it is already there.
+     * @return its hash
+     */
+    String put(String text) throws IOException {
+        String hash = hash(text);
+        File f = file(hash);
+        if (f.isFile() && f.setLastModified(System.currentTimeMillis())) {
+            return hash; // touched so that it is not deleted before the build.xml mentioning it is saved
+        }
+        Files.createDirectories(dir.toPath());
+        File tmp = File.createTempFile("atomic", null, dir);
+        try {
+            Files.write(tmp.toPath(), text.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException x) {
+                // written concurrently by another build; same content
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        return hash;
+    }
+
+    /**
+     * Reads a script from the store.
+     */
+    String get(String hash) throws IOException {
+        File f = file(hash);
+        String text;
+        try {
+            text = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException x) {
+            throw new IOException("Script " + f + " is missing from the store", x);
+        }
+        if (!hash(text).equals(hash)) {
+            throw new IOException("Corrupted script " + f);
+        }
+        return text;
+    }
+
+    /**
+     * Deletes scripts which no {@code build.xml} in a builds directory mentions.
+     * Any 64-digit hexadecimal string in those files counts as a mention, which may keep some scripts longer than needed but never too short.
+     */
+    void sweep(File buildsDir) throws IOException {
+        File[] scripts = dir.listFiles((d, name) -> name.endsWith(".groovy"));
+        if (scripts == null || scripts.length == 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+        Set<String> mentioned = new HashSet<>();
+        File[] builds = buildsDir.listFiles();
+        if (builds != null) {
+            for (File build : builds) {
+                if (Files.isSymbolicLink(build.toPath())) {
+                    continue; // lastSuccessfulBuild and the like
+                }
+                byte[] xml;
+                try {
+                    xml = Files.readAllBytes(new File(build, "build.xml").toPath());
+                } catch (NoSuchFileException x) {
+                    continue;
+                }
+                Matcher m = HASH.matcher(new String(xml, StandardCharsets.UTF_8));
+                while (m.find()) {
+                    mentioned.add(m.group());
+                }
+            }
+        }
+        for (File script : scripts) {
+            String name = script.getName();
+            if (!mentioned.contains(name.substring(0, name.length() - ".groovy".length())) && script.lastModified() < cutoff) {
+                LOGGER.fine(() -> "Deleting unused script " + script);
+                Files.deleteIfExists(script.toPath());
+            }
+        }
+    }
+
+    /**
+     * Sweeps the store of a job shortly after any of its builds is deleted,
+     * once for all the builds deleted meanwhile, as by a build discarder.
+     */
+    @Restricted(DoNotUse.class)
+    @Extension public static final class Cleanup extends RunListener<Run<?, ?>> {
+
+        private final Set<Job<?, ?>> pending = ConcurrentHashMap.newKeySet();
+
+        @Override public void onDeleted(Run<?, ?> run) {
+            Job<?, ?> job = run.getParent();
+            if (new File(job.getRootDir(), "scripts").isDirectory() && pending.add(job)) {
+                Timer.get().schedule(() -> {
+                    pending.remove(job);
+                    try {
+                        of(job).sweep(job.getBuildDir());
+                    } catch (IOException | RuntimeException x) {
+                        LOGGER.log(Level.WARNING, "Failed to delete unused scripts of " + job, x);
+                    }
+                }, 1, TimeUnit.MINUTES);
+            }
+        }
+
+    }
+
+}
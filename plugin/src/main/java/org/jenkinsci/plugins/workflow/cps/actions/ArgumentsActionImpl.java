@@ -70,11 +70,27 @@ public class ArgumentsActionImpl extends ArgumentsAction {
 
     boolean isUnmodifiedBySanitization = true;
 
+    /** Masks {@link #sensitiveVariables} in {@link #maskerVariables}; only set during sanitization, as it holds the secret values. */
+    private transient SecretMasker masker;
+    private transient EnvVars maskerVariables;
+
     private static final Logger LOGGER = Logger.getLogger(ArgumentsActionImpl.class.getName());
 
     public ArgumentsActionImpl(@NonNull Map<String, Object> stepArguments, @CheckForNull EnvVars env, @NonNull Set<String> sensitiveVariables) {
+        this(stepArguments, env, sensitiveVariables, null);
+    }
+
+    /**
+     * @param masker a masker to use if it was prepared for the same sensitive values, as when a thread calls several steps in the same environment
+     */
+    public ArgumentsActionImpl(@NonNull Map<String, Object> stepArguments, @CheckForNull EnvVars env, @NonNull Set<String> sensitiveVariables, @CheckForNull SecretMasker masker) {
         this.sensitiveVariables = new HashSet<>(sensitiveVariables);
+        this.masker = SecretMasker.of(env, sensitiveVariables, masker);
+        this.maskerVariables = env;
         this.arguments = serializationCheck(sanitizeStepArguments(stepArguments, env));
+        // do not retain the environment, nor the secrets in the masker; the caller may keep its own masker for the next step
+        this.maskerVariables = null;
+        this.masker = null;
     }
 
     /** Create a step, sanitizing strings for secured content */
@@ -94,15 +110,16 @@ public class ArgumentsActionImpl extends ArgumentsAction {
         if (variables == null || variables.size() == 0 || sensitiveVariables.size() ==0) {
             return input;
         }
-        String modded = input;
-        for (String sensitive : sensitiveVariables) {
-            String sensitiveValue = variables.get(sensitive, "");
-            if (sensitiveValue.isEmpty()) {
-                continue;
-            }
-            modded = modded.replace(variables.get(sensitive), "${" + sensitive + "}");
+        return SecretMasker.of(variables, sensitiveVariables, null).mask(input);
+    }
+
+    /** The masker for these variables, prepared once for all strings in the arguments. */
+    private SecretMasker getMasker(@NonNull EnvVars variables) {
+        if (masker == null || maskerVariables != variables) {
+            masker = SecretMasker.of(variables, sensitiveVariables, masker);
+            maskerVariables = variables;
         }
-        return modded;
+        return masker;
     }
 
     /** Restrict stored arguments to a reasonable subset of types so we don't retain totally arbitrary objects
@@ -244,7 +261,7 @@ public class ArgumentsActionImpl extends ArgumentsAction {
             this.isUnmodifiedBySanitization = false;
             return "<contains ASCII NUL>";
         } else if (modded instanceof String && vars != null && !vars.isEmpty()) {
-            String replaced = replaceSensitiveVariables((String)modded, vars, sensitiveVariables);
+            String replaced = sensitiveVariables.isEmpty() ? (String) modded : getMasker(vars).mask((String) modded);
             if (!replaced.equals(modded)) {
                 this.isUnmodifiedBySanitization = false;
             }
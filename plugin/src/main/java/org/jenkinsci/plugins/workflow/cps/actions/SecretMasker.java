@@ -0,0 +1,184 @@
+package org.jenkinsci.plugins.workflow.cps.actions;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Replaces the values of sensitive variables in strings by references to those variables,
+ * as {@link ArgumentsActionImpl#replaceSensitiveVariables} does,
+ * but finding all of them in a single scan of each string using an Aho–Corasick automaton.
+ *
+ * <p>
+ * Where values overlap, the match starting first is replaced, and of those starting at the same place, the longest.
+ * Where several variables have the same value, the first in iteration order of the sensitive variables is used.
+ * For values which neither overlap nor contain one another, this is the same as replacing each value in turn.
+ */
+@Restricted(NoExternalUse.class)
+public final class SecretMasker {
+
+    private static final SecretMasker NONE = new SecretMasker(Collections.emptyMap());
+
+    /** values by variable name, used to decide whether a masker may be reused */
+    private final Map<String, String> secrets;
+    private final String[] patterns;
+    private final String[] replacements;
+    /** sorted characters leading out of each node of the trie */
+    private final char[][] keys;
+    /** nodes reached by each of {@link #keys} */
+    private final int[][] targets;
+    /** node for the longest proper suffix of each node which is also in the trie */
+    private final int[] fail;
+    /** index of the pattern ending at each node, or -1 */
+    private final int[] output;
+    /** nearest node along {@link #fail} links with an {@link #output}, or -1 */
+    private final int[] dictionary;
+
+    private SecretMasker(Map<String, String> secrets) {
+        this.secrets = secrets;
+        Map<String, String> replacementsByValue = new LinkedHashMap<>();
+        secrets.forEach((variable, value) -> replacementsByValue.putIfAbsent(value, "${" + variable + "}"));
+        patterns = replacementsByValue.keySet().toArray(new String[0]);
+        replacements = replacementsByValue.values().toArray(new String[0]);
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        outputs.add(-1);
+        for (int p = 0; p < patterns.length; p++) {
+            int node = 0;
+            for (char c : patterns[p].toCharArray()) {
+                Integer next = trie.get(node).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    outputs.add(-1);
+                    trie.get(node).put(c, next);
+                }
+                node = next;
+            }
+            outputs.set(node, p);
+        }
+        int size = trie.size();
+        keys = new char[size][];
+        targets = new int[size][];
+        output = new int[size];
+        for (int node = 0; node < size; node++) {
+            TreeMap<Character, Integer> children = trie.get(node);
+            keys[node] = new char[children.size()];
+            targets[node] = new int[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> e : children.entrySet()) {
+                keys[node][i] = e.getKey();
+                targets[node][i++] = e.getValue();
+            }
+            output[node] = outputs.get(node);
+        }
+        fail = new int[size];
+        dictionary = new int[size];
+        dictionary[0] = -1;
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[0]) {
+            dictionary[child] = -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+            for (int i = 0; i < keys[node].length; i++) {
+                int child = targets[node][i];
+                int f = step(fail[node], keys[node][i]);
+                fail[child] = f;
+                dictionary[child] = output[f] >= 0 ? f : dictionary[f];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Prepares to mask the nonempty values of some variables.
+     * @param previous a masker to return instead if it was prepared for the same values
+     */
+    public static @NonNull SecretMasker of(@CheckForNull EnvVars variables, @NonNull Set<String> sensitiveVariables, @CheckForNull SecretMasker previous) {
+        Map<String, String> secrets = new LinkedHashMap<>();
+        if (variables != null && !variables.isEmpty()) {
+            for (String sensitive : sensitiveVariables) {
+                String value = variables.get(sensitive, "");
+                if (!value.isEmpty()) {
+                    secrets.put(sensitive, value);
+                }
+            }
+        }
+        if (previous != null && previous.secrets.equals(secrets)) {
+            return previous;
+        }
+        return secrets.isEmpty() ? NONE : new SecretMasker(secrets);
+    }
+
+    private int step(int node, char c) {
+        while (true) {
+            int i = Arrays.binarySearch(keys[node], c);
+            if (i >= 0) {
+                return targets[node][i];
+            }
+            if (node == 0) {
+                return 0;
+            }
+            node = fail[node];
+        }
+    }
+
+    /**
+     * Replaces any sensitive values in a string.
+     * @return the input itself if it contains none
+     */
+    public @NonNull String mask(@NonNull String input) {
+        if (patterns.length == 0) {
+            return input;
+        }
+        int length = input.length();
+        int[] longest = null; // 1 + index of the longest pattern starting at each position, or 0
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            node = step(node, input.charAt(i));
+            for (int m = output[node] >= 0 ? node : dictionary[node]; m >= 0; m = dictionary[m]) {
+                int p = output[m];
+                int start = i - patterns[p].length() + 1;
+                if (longest == null) {
+                    longest = new int[length];
+                }
+                if (longest[start] == 0 || patterns[p].length() > patterns[longest[start] - 1].length()) {
+                    longest[start] = p + 1;
+                }
+            }
+        }
+        if (longest == null) {
+            return input;
+        }
+        StringBuilder b = new StringBuilder(length);
+        int copied = 0;
+        int i = 0;
+        while (i < length) {
+            int p = longest[i] - 1;
+            if (p >= 0) {
+                b.append(input, copied, i).append(replacements[p]);
+                i += patterns[p].length();
+                copied = i;
+            } else {
+                i++;
+            }
+        }
+        return b.append(input, copied, length).toString();
+    }
+
+}
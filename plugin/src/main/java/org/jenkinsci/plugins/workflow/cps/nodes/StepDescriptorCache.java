@@ -26,15 +26,24 @@ package org.jenkinsci.plugins.workflow.cps.nodes;
 
 import hudson.Extension;
 import hudson.ExtensionPoint;
+import hudson.Util;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.model.Descriptor;
+import hudson.model.TaskListener;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.structs.describable.DescribableModel;
+import org.jenkinsci.plugins.structs.describable.DescribableParameter;
+import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.ClassDescriptor;
+import org.kohsuke.stapler.NoStaplerConstructorException;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -57,10 +66,22 @@ public class StepDescriptorCache implements ExtensionPoint {
 
     public void invalidateAll() {
         store.clear();
+        dispatches.clear();
     }
 
     private final ConcurrentHashMap<String, StepDescriptor> store = new ConcurrentHashMap<>();
 
+    private final ConcurrentHashMap<StepDescriptor, Dispatch> dispatches = new ConcurrentHashMap<>();
+
+    /**
+     * Obtains what is needed to invoke a step, computing it the first time.
+     */
+    @NonNull
+    public Dispatch getDispatch(@NonNull StepDescriptor d) {
+        Dispatch v = dispatches.get(d);
+        return v != null ? v : dispatches.computeIfAbsent(d, Dispatch::new);
+    }
+
     @CheckForNull
     public StepDescriptor getDescriptor(String descriptorId) {
         if (descriptorId == null) {
@@ -80,4 +101,75 @@ public class StepDescriptorCache implements ExtensionPoint {
             return null;
         }
     }
+
+    /**
+     * Facts about a {@link StepDescriptor} which the DSL would otherwise determine reflectively each time the step is called.
+     */
+    public static final class Dispatch {
+
+        public final StepDescriptor descriptor;
+        /** {@link StepDescriptor#takesImplicitBlockArgument} */
+        public final boolean takesImplicitBlockArgument;
+        /** Whether the step may not be called without a body; {@code stage} may be, for compatibility. */
+        public final boolean requiresBody;
+        /** Whether the descriptor overrides {@link StepDescriptor#newInstance(Map)}. */
+        private final boolean customNewInstance;
+        /** null if the step has no {@link org.kohsuke.stapler.DataBoundConstructor} */
+        private final @CheckForNull DescribableModel<? extends Step> model;
+        /** null unless {@link StepInstantiator#ENABLED} and the step is instantiated through {@link #model} */
+        private final @CheckForNull StepInstantiator instantiator;
+        /** Whether the step takes one argument, which is required. */
+        public final boolean singleArgumentOnly;
+        /** Name of the argument a lone unnamed argument is passed as, if any. */
+        public final @CheckForNull String soleArgumentKey;
+
+        Dispatch(StepDescriptor d) {
+            descriptor = d;
+            takesImplicitBlockArgument = d.takesImplicitBlockArgument();
+            requiresBody = takesImplicitBlockArgument && !d.getClass().getName().equals("org.jenkinsci.plugins.workflow.support.steps.StageStep$DescriptorImpl");
+            customNewInstance = Util.isOverridden(StepDescriptor.class, d.getClass(), "newInstance", Map.class);
+            DescribableModel<? extends Step> m;
+            try {
+                m = DescribableModel.of(d.clazz);
+            } catch (NoStaplerConstructorException x) {
+                m = null;
+            }
+            model = m;
+            instantiator = StepInstantiator.ENABLED && m != null && !customNewInstance ? StepInstantiator.of(d) : null;
+            singleArgumentOnly = m != null && m.hasSingleRequiredParameter() && m.getParameters().size() == 1;
+            if (singleArgumentOnly) {
+                DescribableParameter dp = m.getSoleRequiredParameter();
+                soleArgumentKey = dp != null ? dp.getName() : null;
+            } else {
+                soleArgumentKey = loadSoleArgumentKey(d);
+            }
+        }
+
+        private static String loadSoleArgumentKey(StepDescriptor d) {
+            try {
+                String[] names = new ClassDescriptor(d.clazz).loadConstructorParamNames();
+                return names.length == 1 ? names[0] : null;
+            } catch (NoStaplerConstructorException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Creates the step from its arguments.
+         */
+        public Step newInstance(Map<String, Object> arguments, TaskListener listener) throws Exception {
+            if (customNewInstance) {
+                return descriptor.newInstance(arguments);
+            }
+            if (instantiator != null) {
+                Step step = instantiator.instantiate(arguments);
+                if (step != null) {
+                    return step;
+                }
+            }
+            // if there is no model, this throws the same error as when computing it
+            return (model != null ? model : DescribableModel.of(descriptor.clazz)).instantiate(arguments, listener);
+        }
+
+    }
 }
@@ -0,0 +1,249 @@
+package org.jenkinsci.plugins.workflow.cps.nodes;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.beans.Introspector;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.structs.describable.CustomDescribableModel;
+import org.jenkinsci.plugins.structs.describable.DescribableModel;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.kohsuke.stapler.ClassDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.NoStaplerConstructorException;
+
+/**
+ * Creates a {@link Step} from named arguments through method handles bound once per class,
+ * for the common case that every argument already has the type of the constructor parameter or setter it goes to.
+ *
+ * <p>
+ * Anything else, such as a {@link Map} standing for a nested describable, a {@link String} for an enum,
+ * a {@code null}, an unknown or deprecated parameter, a class with {@code readResolve},
+ * or a descriptor implementing {@link CustomDescribableModel},
+ * is left to {@link DescribableModel#instantiate}, which also reports errors in the arguments.
+ */
+final class StepInstantiator {
+
+    /** Whether {@link StepDescriptorCache.Dispatch#newInstance} tries this before {@link DescribableModel}. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for modification via script console")
+    static boolean ENABLED = SystemProperties.getBoolean(StepInstantiator.class.getName() + ".ENABLED");
+
+    private final Class<? extends Step> type;
+    /** constructor taking {@code Object[]} and returning {@code Object} */
+    private final MethodHandle constructor;
+    private final String[] names;
+    /** boxed types of constructor parameters, or null for those which always need coercion */
+    private final Class<?>[] types;
+    /** values of constructor parameters not passed */
+    private final Object[] defaults;
+    private final Map<String, Setter> setters;
+
+    private static final class Setter {
+        final Class<?> type;
+        /** {@code (Object, Object)void} */
+        final MethodHandle handle;
+        Setter(Class<?> type, MethodHandle handle) {
+            this.type = type;
+            this.handle = handle;
+        }
+    }
+
+    private StepInstantiator(Class<? extends Step> type, MethodHandle constructor, String[] names, Class<?>[] types, Object[] defaults, Map<String, Setter> setters) {
+        this.type = type;
+        this.constructor = constructor;
+        this.names = names;
+        this.types = types;
+        this.defaults = defaults;
+        this.setters = setters;
+    }
+
+    /**
+     * Binds method handles for the class of a step.
+     * @return null if this step must always go through {@link DescribableModel}
+     */
+    static @CheckForNull StepInstantiator of(StepDescriptor d) {
+        if (d instanceof CustomDescribableModel) {
+            return null; // DescribableModel.instantiate applies customInstantiate
+        }
+        return of(d.clazz);
+    }
+
+    /**
+     * Binds method handles for a step class whose descriptor is not a {@link CustomDescribableModel}.
+     * @return null if this class must always go through {@link DescribableModel}
+     */
+    static @CheckForNull StepInstantiator of(Class<? extends Step> clazz) {
+        try {
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredMethod("readResolve");
+                    return null;
+                } catch (NoSuchMethodException x) {
+                    // OK
+                }
+            }
+            Constructor<?> dbc = null;
+            for (Constructor<?> c : clazz.getConstructors()) {
+                if (c.isAnnotationPresent(DataBoundConstructor.class)) {
+                    dbc = c;
+                    break;
+                }
+            }
+            if (dbc == null) {
+                return null;
+            }
+            String[] names = new ClassDescriptor(clazz).loadConstructorParamNames();
+            Class<?>[] parameterTypes = dbc.getParameterTypes();
+            if (names.length != parameterTypes.length) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?>[] types = new Class<?>[names.length];
+            Object[] defaults = new Object[names.length];
+            for (int i = 0; i < names.length; i++) {
+                types[i] = simpleType(parameterTypes[i]);
+                defaults[i] = defaultValue(parameterTypes[i]);
+            }
+            MethodHandle constructor = lookup.unreflectConstructor(dbc)
+                .asType(MethodType.genericMethodType(names.length))
+                .asSpreader(Object[].class, names.length);
+            Map<String, Setter> setters = new HashMap<>();
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (f.isAnnotationPresent(DataBoundSetter.class) && !f.isAnnotationPresent(Deprecated.class)) {
+                        Class<?> type = simpleType(f.getType());
+                        if (type != null) {
+                            f.setAccessible(true);
+                            setters.putIfAbsent(f.getName(), new Setter(type, lookup.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, Object.class))));
+                        }
+                    }
+                }
+                for (Method m : c.getDeclaredMethods()) {
+                    if (m.isAnnotationPresent(DataBoundSetter.class) && !m.isAnnotationPresent(Deprecated.class)
+                            && m.getName().startsWith("set") && m.getParameterCount() == 1) {
+                        Class<?> type = simpleType(m.getParameterTypes()[0]);
+                        if (type != null) {
+                            m.setAccessible(true);
+                            setters.putIfAbsent(Introspector.decapitalize(m.getName().substring(3)),
+                                new Setter(type, lookup.unreflect(m).asType(MethodType.methodType(void.class, Object.class, Object.class))));
+                        }
+                    }
+                }
+            }
+            for (String name : names) {
+                setters.remove(name); // as in DescribableModel, constructor parameters take precedence
+            }
+            return new StepInstantiator(clazz, constructor, names, types, defaults, setters);
+        } catch (NoStaplerConstructorException | IllegalAccessException | RuntimeException x) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the boxed type, or null if values of this type are not passed through unchanged
+     */
+    private static @CheckForNull Class<?> simpleType(Class<?> type) {
+        if (type.isPrimitive()) {
+            return MethodType.methodType(type).wrap().returnType();
+        }
+        if (type == String.class || type.isEnum() || Number.class.isAssignableFrom(type) && type.getName().startsWith("java.lang.")
+                || type == Boolean.class || type == Character.class) {
+            return type;
+        }
+        return null;
+    }
+
+    private static @CheckForNull Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a step if possible.
+     * Whether to fall back to {@link DescribableModel} is decided before anything is invoked,
+     * so the constructor never runs twice.
+     * @return null if {@link DescribableModel} must be used instead
+     * @throws IllegalArgumentException wrapping anything thrown by the constructor or a setter, as {@link DescribableModel#instantiate} does
+     */
+    @CheckForNull Step instantiate(Map<String, ?> arguments) {
+        Object[] args = defaults.clone();
+        int consumed = 0;
+        for (int i = 0; i < names.length; i++) {
+            Object v = arguments.get(names[i]);
+            if (v != null) {
+                if (types[i] == null || !types[i].isInstance(v)) {
+                    return null;
+                }
+                args[i] = v;
+                consumed++;
+            } else if (arguments.containsKey(names[i])) {
+                return null;
+            }
+        }
+        int remaining = arguments.size() - consumed;
+        Setter[] toSet = new Setter[remaining];
+        Object[] values = new Object[remaining];
+        if (remaining > 0) {
+            int j = 0;
+            for (Map.Entry<String, ?> e : arguments.entrySet()) {
+                if (isConstructorParameter(e.getKey())) {
+                    continue;
+                }
+                Setter setter = setters.get(e.getKey());
+                Object v = e.getValue();
+                if (setter == null || v == null || !setter.type.isInstance(v)) {
+                    return null; // unknown, deprecated, or needing coercion
+                }
+                toSet[j] = setter;
+                values[j++] = v;
+            }
+        }
+        try {
+            Object step = (Object) constructor.invokeExact(args);
+            for (int j = 0; j < remaining; j++) {
+                toSet[j].handle.invokeExact(step, values[j]);
+            }
+            return (Step) step;
+        } catch (Error x) {
+            throw x;
+        } catch (Throwable x) {
+            throw new IllegalArgumentException("Could not instantiate " + arguments + " for " + type.getName() + ": " + x, x);
+        }
+    }
+
+    private boolean isConstructorParameter(String name) {
+        for (String n : names) {
+            if (n.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import hudson.model.Result;
+import groovy.lang.GroovyClassLoader;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.AbstractWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.StaticWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MemoryAssert;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachingWhitelistTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void cachesSignatureBasedWhitelists() throws Exception {
+        CachingWhitelist w = new CachingWhitelist(List.of(new StaticWhitelist("method java.util.List size")));
+        Method size = List.class.getMethod("size");
+        Method exit = System.class.getMethod("exit", int.class);
+        long misses = CachingWhitelist.misses.longValue();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(w.permitsMethod(size, new ArrayList<>(), new Object[0]));
+            assertTrue(w.permitsMethod(size, new LinkedList<>(), new Object[0]));
+            assertFalse(w.permitsStaticMethod(exit, new Object[] {0}));
+        }
+        assertEquals(2, CachingWhitelist.misses.longValue() - misses);
+
+        CachingWhitelist.invalidateAll();
+        assertTrue(w.permitsMethod(size, new ArrayList<>(), new Object[0]));
+        assertEquals(3, CachingWhitelist.misses.longValue() - misses);
+    }
+
+    @Test public void otherWhitelistsAskedEveryTime() throws Exception {
+        ReceiverWhitelist receiverBased = new ReceiverWhitelist();
+        CachingWhitelist w = new CachingWhitelist(List.of(receiverBased));
+        Method size = List.class.getMethod("size");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(w.permitsMethod(size, new ArrayList<>(), new Object[0]));
+            assertFalse(w.permitsMethod(size, new LinkedList<>(), new Object[0]));
+        }
+        assertEquals(20, receiverBased.calls);
+    }
+
+    @Test public void scriptClassesNotRetained() throws Exception {
+        CachingWhitelist w = new CachingWhitelist(List.of(new StaticWhitelist("method java.lang.Object toString")));
+        GroovyClassLoader loader = new GroovyClassLoader();
+        Class<?> c = loader.parseClass("class C {}");
+        assertTrue(w.permitsMethod(Object.class.getMethod("toString"), c.getConstructor().newInstance(), new Object[0]));
+        assertFalse(w.permitsMethod(c.getMethod("getMetaClass"), c.getConstructor().newInstance(), new Object[0]));
+        WeakReference<ClassLoader> loaderRef = new WeakReference<>(loader);
+        loader = null;
+        c = null;
+        MemoryAssert.assertGC(loaderRef, false);
+    }
+
+    @Test public void approvalsInvalidate() throws Exception {
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("for (int i = 0; i < 3; i++) {catchError {System.getProperty('java.version')}}", true));
+        WorkflowRun b = r.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
+        r.assertLogContains("staticMethod java.lang.System getProperty java.lang.String", b);
+        long hits = CachingWhitelist.hits.longValue();
+        ScriptApproval.get().approveSignature("staticMethod java.lang.System getProperty java.lang.String");
+        r.buildAndAssertSuccess(p);
+        assertThat(CachingWhitelist.hits.longValue(), greaterThan(hits));
+    }
+
+    /** Permits calls on {@link ArrayList}s only. */
+    private static final class ReceiverWhitelist extends AbstractWhitelist {
+        int calls;
+
+        @Override public boolean permitsMethod(Method method, Object receiver, Object[] args) {
+            calls++;
+            return receiver instanceof ArrayList;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.flow.FlowDurabilityHint;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.job.properties.DurabilityHintJobProperty;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointPolicyTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsSessionRule sessions = new JenkinsSessionRule();
+    @Rule public FlagRule<Long> maxInterval = new FlagRule<>(() -> CheckpointPolicy.Adaptive.MAX_INTERVAL_SECONDS, v -> CheckpointPolicy.Adaptive.MAX_INTERVAL_SECONDS = v);
+    @Rule public FlagRule<Integer> maxChanges = new FlagRule<>(() -> CheckpointPolicy.Adaptive.MAX_CHANGES, v -> CheckpointPolicy.Adaptive.MAX_CHANGES = v);
+    @Rule public FlagRule<Integer> maxOverhead = new FlagRule<>(() -> CheckpointPolicy.Adaptive.MAX_OVERHEAD_PERCENT, v -> CheckpointPolicy.Adaptive.MAX_OVERHEAD_PERCENT = v);
+
+    @Test public void pauseForcesSave() throws Throwable {
+        sessions.then(r -> {
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+            WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("wait/1", b);
+            CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+            e.waitForSuspension();
+            assertFalse(e.getProgramDataFile().exists());
+            e.pause(true);
+            while (!e.getProgramDataFile().exists()) {
+                Thread.sleep(100);
+            }
+            e.pause(false);
+            SemaphoreStep.success("wait/1", null);
+            r.assertBuildStatusSuccess(r.waitForCompletion(b));
+        });
+    }
+
+    @Test public void shutdownForcesSave() throws Throwable {
+        sessions.then(r -> {
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("def x = 0; semaphore 'first'; x++; semaphore 'second'; echo(/x=$x/)", true));
+            WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.success("first/1", null);
+            SemaphoreStep.waitForStart("second/1", b);
+        });
+        sessions.then(r -> {
+            WorkflowRun b = r.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+            SemaphoreStep.success("second/1", null);
+            r.assertLogContains("x=1", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+        });
+    }
+
+    @Test public void adaptive() throws Throwable {
+        sessions.then(r -> {
+            CheckpointPolicy.Adaptive.MAX_INTERVAL_SECONDS = 3600;
+            CheckpointPolicy.Adaptive.MAX_OVERHEAD_PERCENT = 1;
+            CheckpointPolicy.Adaptive.MAX_CHANGES = 0;
+            long cost = TimeUnit.MILLISECONDS.toNanos(50);
+            // 50ms saves should be at least 5s apart
+            assertEquals(TimeUnit.SECONDS.toNanos(4), CheckpointPolicy.Adaptive.delay(TimeUnit.SECONDS.toNanos(1), 1, cost));
+            assertEquals(0, CheckpointPolicy.Adaptive.delay(TimeUnit.SECONDS.toNanos(5), 1, cost));
+            assertEquals(0, CheckpointPolicy.Adaptive.delay(Long.MAX_VALUE, 1, cost));
+            CheckpointPolicy.Adaptive.MAX_CHANGES = 10;
+            assertTrue(CheckpointPolicy.Adaptive.delay(0, 9, cost) > 0);
+            assertEquals(0, CheckpointPolicy.Adaptive.delay(0, 10, cost));
+            CheckpointPolicy.Adaptive.MAX_INTERVAL_SECONDS = 2;
+            assertEquals(TimeUnit.SECONDS.toNanos(1), CheckpointPolicy.Adaptive.delay(TimeUnit.SECONDS.toNanos(1), 1, cost));
+            for (FlowDurabilityHint hint : FlowDurabilityHint.values()) {
+                WorkflowJob p = r.createProject(WorkflowJob.class, "p-" + hint);
+                p.addProperty(new DurabilityHintJobProperty(hint));
+                p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                String id = "wait/" + (hint.ordinal() + 1); // one per build
+                SemaphoreStep.waitForStart(id, b);
+                CpsFlowExecution execution = (CpsFlowExecution) b.getExecution();
+                assertEquals(hint, execution.getDurabilityHint());
+                long delay = new CheckpointPolicy.Adaptive().delay(execution, TimeUnit.SECONDS.toNanos(1), 1, cost);
+                assertEquals(hint.toString(), hint == FlowDurabilityHint.SURVIVABLE_NONATOMIC, delay > 0);
+                SemaphoreStep.success(id, null);
+                r.assertBuildStatusSuccess(r.waitForCompletion(b));
+            }
+            CheckpointPolicy.Adaptive.MAX_INTERVAL_SECONDS = 0;
+            assertEquals(0, CheckpointPolicy.Adaptive.delay(0, 1, cost));
+        });
+    }
+
+    @TestExtension({"pauseForcesSave", "shutdownForcesSave"}) public static final class Never extends CheckpointPolicy {
+        @Override public long delay(CpsFlowExecution execution, long sinceLastSave, int changes, long saveCost) {
+            return TimeUnit.HOURS.toNanos(1);
+        }
+    }
+
+}
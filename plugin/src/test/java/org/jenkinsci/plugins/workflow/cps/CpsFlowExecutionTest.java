@@ -123,6 +123,7 @@ public class CpsFlowExecutionTest {
     @Rule public JenkinsSessionRule sessions = new JenkinsSessionRule();
     @Rule public LoggerRule logger = new LoggerRule();
     @Rule public FlagRule<Boolean> secretField = new FlagRule<>(() -> CpsFlowExecutionTest.SECRET, v -> CpsFlowExecutionTest.SECRET = v);
+    @Rule public FlagRule<Integer> suspendAllThreads = new FlagRule<>(() -> CpsFlowExecution.SUSPEND_ALL_THREADS, v -> CpsFlowExecution.SUSPEND_ALL_THREADS = v);
     // We intentionally avoid using the static fields so that tests can call setProperty before the classes are initialized.
     @Rule public FlagRule<String> groovySourceFileAllowlistDisabled = FlagRule.systemProperty("org.jenkinsci.plugins.workflow.cps.GroovySourceFileAllowlist.DISABLED");
     @Rule public FlagRule<String> groovySourceFileAllowlistFiles = FlagRule.systemProperty("org.jenkinsci.plugins.workflow.cps.GroovySourceFileAllowlist.DefaultAllowlist.ALLOWED_SOURCE_FILES");
@@ -929,4 +930,25 @@ public class CpsFlowExecutionTest {
         });
     }
 
+    @Test public void suspendAllInParallel() throws Throwable {
+        sessions.then(r -> {
+            CpsFlowExecution.SUSPEND_ALL_THREADS = 4;
+            logger.record(CpsFlowExecution.class, Level.INFO).capture(100);
+            for (int i = 0; i < 6; i++) {
+                WorkflowJob p = r.createProject(WorkflowJob.class, "p" + i);
+                p.setDefinition(new CpsFlowDefinition("semaphore 'wait'; echo 'resumed'", true));
+                SemaphoreStep.waitForStart("wait/" + (i + 1), p.scheduleBuild2(0).waitForStart());
+            }
+        });
+        assertThat(logger.getMessages(), hasItem(Matchers.startsWith("Suspended 6 of 6 Pipeline builds cleanly in ")));
+        sessions.then(r -> {
+            for (int i = 0; i < 6; i++) {
+                SemaphoreStep.success("wait/" + (i + 1), null);
+                WorkflowRun b = r.jenkins.getItemByFullName("p" + i, WorkflowJob.class).getBuildByNumber(1);
+                r.assertLogContains("Saved state for Jenkins shutdown", b);
+                r.assertLogContains("resumed", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+            }
+        });
+    }
+
 }
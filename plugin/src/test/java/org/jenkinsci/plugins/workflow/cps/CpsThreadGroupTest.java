@@ -0,0 +1,53 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CpsThreadGroupTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void scheduleRunCoalesces() throws Exception {
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+        CpsThreadGroup g = ((CpsFlowExecution) b.getExecution()).programPromise.get();
+
+        // hold the CPS VM thread so that runs stay pending
+        CountDownLatch release = new CountDownLatch(1);
+        g.runner.submit(() -> {
+            release.await();
+            return null;
+        });
+        Future<?> first = g.scheduleRun();
+        AtomicBoolean laterTaskDone = new AtomicBoolean();
+        g.runner.submit(() -> laterTaskDone.set(true));
+        for (int i = 0; i < 100; i++) {
+            assertSame(first, g.scheduleRun());
+        }
+        assertFalse(first.isDone());
+        release.countDown();
+        first.get(1, TimeUnit.MINUTES);
+        // the last callers joined after that task was submitted, so it must be done too
+        assertTrue(laterTaskDone.get());
+
+        SemaphoreStep.success("wait/1", null);
+        r.assertBuildStatusSuccess(r.waitForCompletion(b));
+    }
+}
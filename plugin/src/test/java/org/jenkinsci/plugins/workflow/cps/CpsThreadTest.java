@@ -74,6 +74,55 @@ public class CpsThreadTest {
         r.assertLogNotContains("\tat ", b);
     }
 
+    @Test public void interruptTightLoop() throws Exception {
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("echo 'spinning'; while (true) {}", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        r.waitForMessage("spinning", b);
+        b.doStop();
+        r.assertBuildStatus(Result.ABORTED, r.waitForCompletion(b));
+    }
+
+    @Test public void timeSlicing() throws Exception {
+        long steps = CpsFlowExecution.TIME_SLICE_STEPS;
+        CpsFlowExecution.TIME_SLICE_STEPS = 10;
+        try {
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition(
+                "def sums = [:]\n" +
+                "parallel a: {\n" +
+                "  int s = 0; for (int i = 0; i < 1000; i++) { s += i }; sums.a = s\n" +
+                "}, b: {\n" +
+                "  int s = 0; for (int i = 0; i < 100; i++) { s += i }; sums.b = s\n" +
+                "}\n" +
+                "echo \"sums=${sums.a},${sums.b}\"", true));
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("sums=499500,4950", b);
+            // the two branches had to take turns
+            assertNotNull(((CpsFlowExecution) b.getExecution()).liveTimings.get(CpsFlowExecution.TimingKind.runQueue.name()));
+        } finally {
+            CpsFlowExecution.TIME_SLICE_STEPS = steps;
+        }
+    }
+
+    @Test public void codeBetweenStepsAtomicByDefault() throws Exception {
+        assertEquals(0, CpsFlowExecution.TIME_SLICE_MILLIS);
+        assertEquals(0, CpsFlowExecution.TIME_SLICE_STEPS);
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+            "def shared = [n: 0]\n" +
+            "def trace = []\n" +
+            "parallel a: {\n" +
+            "  for (int i = 0; i < 2000; i++) { def n = shared.n; trace << 'a'; shared.n = n + 1 }\n" +
+            "}, b: {\n" +
+            "  for (int i = 0; i < 2000; i++) { def n = shared.n; trace << 'b'; shared.n = n + 1 }\n" +
+            "}\n" +
+            "int switches = 0\n" +
+            "for (int i = 1; i < trace.size(); i++) { if (trace[i] != trace[i - 1]) { switches++ } }\n" +
+            "echo \"n=${shared.n} switches=${switches}\"", true));
+        r.assertLogContains("n=4000 switches=1", r.buildAndAssertSuccess(p));
+    }
+
     public static class UnkillableStep extends AbstractStepImpl {
         @DataBoundConstructor public UnkillableStep() {}
         public static class Execution extends AbstractStepExecutionImpl {
@@ -25,19 +25,34 @@
 package org.jenkinsci.plugins.workflow.cps;
 
 import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.jvnet.hudson.test.BuildWatcher;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
 public class CpsVmExecutorServiceTest {
 
+    private static final Logger LOGGER = Logger.getLogger(CpsVmExecutorServiceTest.class.getName());
+
     @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
     @ClassRule public static JenkinsRule r = new JenkinsRule();
 
@@ -212,4 +227,66 @@ public class CpsVmExecutorServiceTest {
         r.assertLogNotContains("see what", b);
     }
 
+    @Test public void virtualThreads() throws Exception {
+        Assume.assumeTrue("virtual threads are not available in this JDK", CpsVmExecutorService.virtualThreadFactory() != null);
+        boolean orig = CpsVmExecutorService.USE_VIRTUAL_THREADS;
+        CpsVmExecutorService.USE_VIRTUAL_THREADS = true;
+        try {
+            p.setDefinition(new CpsFlowDefinition(
+                "echo(/virtual: ${Thread.currentThread().virtual}/)\n" +
+                "echo(/yes I can load ${Thread.currentThread().contextClassLoader.loadClass(getClass().name)}/)\n" +
+                "[1, 2, 3].each {x -> sleep time: 100, unit: 'MILLISECONDS'; echo(/no problem got $x/)}", false));
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("virtual: true", b);
+            r.assertLogContains("no problem got 3", b);
+            r.assertLogNotContains("expected to call", b);
+        } finally {
+            CpsVmExecutorService.USE_VIRTUAL_THREADS = orig;
+        }
+    }
+
+    /**
+     * Runs many builds at once which block the CPS VM thread, with and without virtual threads,
+     * printing the peak number of platform threads and the throughput of each.
+     */
+    @Ignore("Too long to run as part of main suite")
+    @Test public void virtualThreadsStress() throws Exception {
+        Assume.assumeTrue("virtual threads are not available in this JDK", CpsVmExecutorService.virtualThreadFactory() != null);
+        List<WorkflowJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            WorkflowJob job = r.createProject(WorkflowJob.class, "stress" + i);
+            // Thread.sleep rather than the sleep step, so as to hold on to the CPS VM thread like slow synchronous steps do.
+            job.setDefinition(new CpsFlowDefinition("for (int i = 0; i < 5; i++) {Thread.sleep(20); echo(/round $i/)}", false));
+            jobs.add(job);
+        }
+        boolean orig = CpsVmExecutorService.USE_VIRTUAL_THREADS;
+        try {
+            CpsVmExecutorService.USE_VIRTUAL_THREADS = false;
+            int platformPeak = stress(jobs, "platform threads");
+            CpsVmExecutorService.USE_VIRTUAL_THREADS = true;
+            int virtualPeak = stress(jobs, "virtual threads");
+            assertThat(virtualPeak, lessThan(platformPeak));
+        } finally {
+            CpsVmExecutorService.USE_VIRTUAL_THREADS = orig;
+        }
+    }
+
+    private int stress(List<WorkflowJob> jobs, String mode) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        List<QueueTaskFuture<WorkflowRun>> builds = new ArrayList<>();
+        for (WorkflowJob job : jobs) {
+            builds.add(job.scheduleBuild2(0));
+        }
+        for (QueueTaskFuture<WorkflowRun> build : builds) {
+            r.assertBuildStatusSuccess(build);
+        }
+        long elapsed = System.nanoTime() - start;
+        int peak = threads.getPeakThreadCount();
+        LOGGER.log(Level.INFO, () -> String.format("%s: %d builds in %dms (%.1f builds/s), peak of %d platform threads",
+            mode, jobs.size(), TimeUnit.NANOSECONDS.toMillis(elapsed), jobs.size() * 1e9 / elapsed, peak));
+        return peak;
+    }
+
 }
@@ -63,12 +63,16 @@ import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import org.jenkinsci.plugins.workflow.testMetaStep.AmbiguousEchoLowerStep;
 import org.jenkinsci.plugins.workflow.testMetaStep.AmbiguousEchoUpperStep;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -245,6 +249,32 @@ public class DSLTest {
         r.assertLogContains("polygon", b);
     }
 
+    @Test public void functionIndexShared() throws Exception {
+        p.setDefinition(new CpsFlowDefinition("nonexistent()", true));
+        r.assertLogContains("No such DSL method 'nonexistent' found among steps", r.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0)));
+        FunctionIndex index = FunctionIndex.get();
+        assertThat(index.getStep("echo"), notNullValue());
+        assertThat(index.isSymbol("nonexistent"), is(false));
+        assertThat(index.isSymbol("polygon"), is(true));
+        WorkflowRun b = r.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
+        r.assertLogContains("No such DSL method 'nonexistent' found among steps", b);
+        r.assertLogContains("polygon", b);
+        assertThat(FunctionIndex.get(), sameInstance(index));
+        FunctionIndex.invalidate();
+        assertThat(FunctionIndex.get(), not(sameInstance(index)));
+    }
+
+    @Test public void environmentComputedOnlyWhenSensitive() throws Exception {
+        p.setDefinition(new CpsFlowDefinition("echo 'hello'; semaphore 'wait'", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+        CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+        assertThat(e.liveTimings.containsKey(CpsFlowExecution.TimingKind.stepSensitiveVariables.name()), is(true));
+        assertThat(e.liveTimings.containsKey(CpsFlowExecution.TimingKind.stepEnvironment.name()), is(false));
+        SemaphoreStep.success("wait/1", null);
+        r.assertBuildStatusSuccess(r.waitForCompletion(b));
+    }
+
     @Issue("JENKINS-29922")
     @Test public void runMetaBlockStep() throws Exception {
         p.setDefinition(new CpsFlowDefinition("circle {echo 'interior is a disk'}", true));
@@ -0,0 +1,203 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaCheckpointsTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsSessionRule sessions = new JenkinsSessionRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+    @Rule public FlagRule<Boolean> enabled = new FlagRule<>(() -> DeltaCheckpoints.ENABLED, v -> DeltaCheckpoints.ENABLED = v);
+    @Rule public FlagRule<Boolean> compressed = new FlagRule<>(() -> ProgramCompression.ENABLED, v -> ProgramCompression.ENABLED = v);
+    @Rule public FlagRule<Integer> compactionPercent = new FlagRule<>(() -> DeltaCheckpoints.COMPACTION_PERCENT, v -> DeltaCheckpoints.COMPACTION_PERCENT = v);
+
+    private final Random random = new Random(42);
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /** Inserts some bytes in the middle, shifting the rest. */
+    private byte[] edit(byte[] data) {
+        byte[] inserted = randomBytes(100);
+        int at = data.length / 2;
+        byte[] result = Arrays.copyOf(data, data.length + inserted.length);
+        System.arraycopy(inserted, 0, result, at, inserted.length);
+        System.arraycopy(data, at, result, at + inserted.length, data.length - at);
+        return result;
+    }
+
+    private boolean commit(DeltaCheckpoints checkpoints, File dir, byte[] data) throws Exception {
+        File serialized = File.createTempFile("atomic", null, dir);
+        Files.write(serialized.toPath(), data);
+        boolean wroteDelta = checkpoints.commit(serialized);
+        assertFalse(serialized.exists());
+        return wroteDelta;
+    }
+
+    /** Reads the latest checkpoint as loading the program does, checking that nothing on disk is modified. */
+    private static byte[] replay(File base) throws Exception {
+        File delta = DeltaCheckpoints.deltaFile(base);
+        byte[] baseBefore = Files.readAllBytes(base.toPath());
+        byte[] deltaBefore = Files.readAllBytes(delta.toPath());
+        File replayed = DeltaCheckpoints.replay(base);
+        try {
+            assertArrayEquals(baseBefore, Files.readAllBytes(base.toPath()));
+            assertArrayEquals(deltaBefore, Files.readAllBytes(delta.toPath()));
+            return replayed != null ? Files.readAllBytes(replayed.toPath()) : ProgramCompression.readAllBytes(base);
+        } finally {
+            ProgramCompression.deleteDecompressed(replayed);
+        }
+    }
+
+    @Test public void deltasProportionalToChange() throws Exception {
+        File dir = tmp.newFolder();
+        File base = new File(dir, "program.dat");
+        File delta = DeltaCheckpoints.deltaFile(base);
+        DeltaCheckpoints checkpoints = new DeltaCheckpoints(base);
+        byte[] v1 = randomBytes(500_000);
+        assertFalse("first checkpoint is a base", commit(checkpoints, dir, v1));
+        assertFalse(delta.exists());
+        byte[] v2 = edit(v1);
+        assertTrue(commit(checkpoints, dir, v2));
+        long afterFirstDelta = delta.length();
+        assertTrue("delta of " + afterFirstDelta + " bytes", afterFirstDelta < 50_000);
+        byte[] v3 = edit(v2);
+        assertTrue(commit(checkpoints, dir, v3));
+        assertTrue(delta.length() - afterFirstDelta < 50_000);
+        assertArrayEquals("base untouched by deltas", v1, Files.readAllBytes(base.toPath()));
+        assertArrayEquals(v3, replay(base));
+    }
+
+    @Test public void onlyNewChunksRetained() throws Exception {
+        File dir = tmp.newFolder();
+        File base = new File(dir, "program.dat");
+        DeltaCheckpoints checkpoints = new DeltaCheckpoints(base);
+        byte[] v1 = randomBytes(500_000);
+        commit(checkpoints, dir, v1);
+        File serialized = File.createTempFile("atomic", null, dir);
+        byte[] v2 = edit(v1);
+        Files.write(serialized.toPath(), v2);
+        DeltaCheckpoints.Encoded encoded = checkpoints.encode(serialized);
+        assertFalse(encoded.compact);
+        assertEquals(v2.length, encoded.length);
+        long retained = 0;
+        for (byte[] chunk : encoded.fresh.values()) {
+            retained += chunk.length;
+        }
+        assertTrue("retained " + retained + " bytes", retained > 0 && retained < 50_000);
+        assertTrue(checkpoints.write(encoded, false));
+        assertArrayEquals(v2, replay(base));
+    }
+
+    @Test public void compaction() throws Exception {
+        File dir = tmp.newFolder();
+        File base = new File(dir, "program.dat");
+        DeltaCheckpoints checkpoints = new DeltaCheckpoints(base);
+        byte[] v1 = randomBytes(500_000);
+        commit(checkpoints, dir, v1);
+        byte[] v2 = edit(v1);
+        assertTrue(commit(checkpoints, dir, v2));
+        DeltaCheckpoints.COMPACTION_PERCENT = 1;
+        byte[] v3 = edit(v2);
+        assertFalse("log exceeded 1% of the base", commit(checkpoints, dir, v3));
+        assertFalse(DeltaCheckpoints.deltaFile(base).exists());
+        assertArrayEquals(v3, Files.readAllBytes(base.toPath()));
+        DeltaCheckpoints.COMPACTION_PERCENT = 100;
+        byte[] v4 = edit(v3);
+        assertTrue("deltas now apply to the new base", commit(checkpoints, dir, v4));
+        assertArrayEquals(v4, replay(base));
+    }
+
+    @Test public void tornAppendIgnored() throws Exception {
+        File dir = tmp.newFolder();
+        File base = new File(dir, "program.dat");
+        File delta = DeltaCheckpoints.deltaFile(base);
+        DeltaCheckpoints checkpoints = new DeltaCheckpoints(base);
+        byte[] v1 = randomBytes(500_000);
+        commit(checkpoints, dir, v1);
+        byte[] v2 = edit(v1);
+        commit(checkpoints, dir, v2);
+        commit(checkpoints, dir, edit(v2));
+        try (RandomAccessFile raf = new RandomAccessFile(delta, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        assertArrayEquals(v2, replay(base));
+    }
+
+    @Test public void staleLogIgnored() throws Exception {
+        File dir = tmp.newFolder();
+        File base = new File(dir, "program.dat");
+        DeltaCheckpoints checkpoints = new DeltaCheckpoints(base);
+        byte[] v1 = randomBytes(500_000);
+        commit(checkpoints, dir, v1);
+        commit(checkpoints, dir, edit(v1));
+        // as if a new base had been written by another process, which was interrupted before deleting the log
+        byte[] other = randomBytes(1000);
+        Files.write(base.toPath(), other);
+        assertArrayEquals(other, replay(base));
+    }
+
+    @Test public void compressedBase() throws Exception {
+        ProgramCompression.ENABLED = true;
+        File dir = tmp.newFolder();
+        File base = new File(dir, "program.dat");
+        DeltaCheckpoints checkpoints = new DeltaCheckpoints(base);
+        byte[] v1 = new byte[500_000];
+        for (int i = 0; i < v1.length; i++) {
+            v1[i] = (byte) ('a' + random.nextInt(4));
+        }
+        commit(checkpoints, dir, v1);
+        assertTrue(ProgramCompression.isCompressed(base));
+        byte[] v2 = edit(v1);
+        assertTrue(commit(checkpoints, dir, v2));
+        assertArrayEquals(v2, replay(base));
+    }
+
+    @Test public void resume() throws Throwable {
+        sessions.then(r -> {
+            DeltaCheckpoints.ENABLED = true;
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition(
+                "def data = (1..500).collect {i -> \"item-${i}\".toString()}\n" +
+                "for (int i = 0; i < 3; i++) {\n" +
+                "  data[i] = \"changed-${i}\".toString()\n" +
+                "  semaphore \"wait${i}\"\n" +
+                "}\n" +
+                "echo(/got ${data[0]} ${data[2]} ${data[499]}/)", true));
+            WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.success("wait0/1", null);
+            SemaphoreStep.success("wait1/1", null);
+            SemaphoreStep.waitForStart("wait2/1", b);
+        });
+        sessions.then(r -> {
+            WorkflowRun b = r.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+            SemaphoreStep.success("wait2/1", null);
+            r.assertLogContains("got changed-0 changed-2 item-500", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+            File programDataFile = ((CpsFlowExecution) b.getExecution()).getProgramDataFile();
+            assertFalse(programDataFile.exists());
+            assertFalse(DeltaCheckpoints.deltaFile(programDataFile).exists());
+        });
+    }
+}
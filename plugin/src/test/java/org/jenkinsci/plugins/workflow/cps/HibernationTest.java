@@ -0,0 +1,105 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import hudson.ExtensionList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputAction;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputStepExecution;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HibernationTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsRule r = new JenkinsRule();
+    @Rule public FlagRule<Long> idleSeconds = new FlagRule<>(() -> Hibernation.IDLE_SECONDS, v -> Hibernation.IDLE_SECONDS = v);
+
+    @Test public void input() throws Exception {
+        Hibernation.IDLE_SECONDS = 1;
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("def x = 'kept'; stage('gate') {input 'Proceed?'}; echo(/approved with ${x}/)", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        while (b.getAction(InputAction.class) == null || b.getAction(InputAction.class).getExecutions().isEmpty()) {
+            Thread.sleep(100);
+        }
+        CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+        hibernate(e);
+        assertThat(e.getThreadDump().toString(), containsString("hibernated"));
+        assertFalse(e.blocksRestart());
+        // approving the input wakes the program up
+        b.getAction(InputAction.class).getExecutions().get(0).doProceedEmpty();
+        r.assertLogContains("approved with kept", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+        assertTrue(e.liveTimings.containsKey(CpsFlowExecution.TimingKind.load.name()));
+    }
+
+    @Test public void applyAllDoesNotWake() throws Exception {
+        Hibernation.IDLE_SECONDS = 1;
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("stage('gate') {input 'Proceed?'}; echo 'approved'", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        while (b.getAction(InputAction.class) == null || b.getAction(InputAction.class).getExecutions().isEmpty()) {
+            Thread.sleep(100);
+        }
+        CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+        hibernate(e);
+        AtomicInteger inputs = new AtomicInteger();
+        StepExecution.applyAll(InputStepExecution.class, s -> {
+            inputs.incrementAndGet();
+            return null;
+        }).get();
+        assertEquals(1, inputs.get());
+        assertTrue("still hibernated", e.isHibernated());
+        b.getAction(InputAction.class).getExecutions().get(0).doProceedEmpty();
+        r.assertLogContains("approved", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+    }
+
+    @Test public void sleep() throws Exception {
+        Hibernation.IDLE_SECONDS = 1;
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("parallel a: {sleep 5; echo 'a done'}, b: {sleep 6; echo 'b done'}", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        r.waitForMessage("Sleeping for 6 sec", b);
+        hibernate((CpsFlowExecution) b.getExecution());
+        // the original timers complete the steps
+        r.assertBuildStatusSuccess(r.waitForCompletion(b));
+        r.assertLogContains("a done", b);
+        r.assertLogContains("b done", b);
+    }
+
+    @Test public void otherStepsNotHibernated() throws Exception {
+        Hibernation.IDLE_SECONDS = 1;
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+        CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+        Thread.sleep(1500);
+        ExtensionList.lookupSingleton(CpsFlowExecution.HibernationSweeper.class).doRun();
+        e.waitForSuspension();
+        assertFalse(e.isHibernated());
+        SemaphoreStep.success("wait/1", null);
+        r.assertBuildStatusSuccess(r.waitForCompletion(b));
+    }
+
+    private static void hibernate(CpsFlowExecution e) throws Exception {
+        Thread.sleep(1500);
+        ExtensionList.lookupSingleton(CpsFlowExecution.HibernationSweeper.class).doRun();
+        while (!e.isHibernated()) {
+            Thread.sleep(100);
+        }
+    }
+
+}
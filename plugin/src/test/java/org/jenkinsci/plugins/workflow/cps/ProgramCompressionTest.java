@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramCompressionTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsSessionRule sessions = new JenkinsSessionRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+    @Rule public FlagRule<Boolean> enabled = new FlagRule<>(() -> ProgramCompression.ENABLED, v -> ProgramCompression.ENABLED = v);
+
+    private static byte[] sample() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            b.append("org.jenkinsci.plugins.workflow.cps.CpsThread#").append(i).append('\n');
+        }
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test public void roundTrip() throws Exception {
+        File raw = tmp.newFile();
+        byte[] data = sample();
+        Files.write(raw.toPath(), data);
+        assertFalse(ProgramCompression.isCompressed(raw));
+        File compressed = ProgramCompression.compress(raw, raw.getParentFile());
+        assertTrue(ProgramCompression.isCompressed(compressed));
+        assertTrue(compressed.length() < data.length / 4);
+        assertArrayEquals(data, ProgramCompression.readAllBytes(compressed));
+        byte[] stored = Files.readAllBytes(compressed.toPath());
+        File decompressed = ProgramCompression.decompressed(compressed);
+        assertNotNull(decompressed);
+        assertNotEquals(compressed.getParentFile(), decompressed.getParentFile());
+        assertArrayEquals(data, Files.readAllBytes(decompressed.toPath()));
+        assertArrayEquals("left alone", stored, Files.readAllBytes(compressed.toPath()));
+        ProgramCompression.deleteDecompressed(decompressed);
+        assertFalse(decompressed.exists());
+    }
+
+    @Test public void uncompressedReadAsIs() throws Exception {
+        File raw = tmp.newFile();
+        byte[] data = sample();
+        Files.write(raw.toPath(), data);
+        assertArrayEquals(data, ProgramCompression.readAllBytes(raw));
+        assertNull(ProgramCompression.decompressed(raw));
+    }
+
+    @Test public void truncated() throws Exception {
+        File raw = tmp.newFile();
+        Files.write(raw.toPath(), sample());
+        File compressed = ProgramCompression.compress(raw, raw.getParentFile());
+        try (RandomAccessFile raf = new RandomAccessFile(compressed, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        assertThrows(IOException.class, () -> ProgramCompression.readAllBytes(compressed));
+    }
+
+    @Test public void resume() throws Throwable {
+        sessions.then(r -> {
+            ProgramCompression.ENABLED = true;
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("def x = 'saved'; semaphore 'wait'; echo(/got ${x}/)", true));
+            WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("wait/1", b);
+            CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+            while (!e.getProgramDataFile().isFile()) {
+                Thread.sleep(50);
+            }
+            assertTrue(ProgramCompression.isCompressed(e.getProgramDataFile()));
+            assertTrue(e.liveTimings.containsKey(CpsFlowExecution.SizeKind.saveProgramRaw.name()));
+            assertTrue(e.liveTimings.get(CpsFlowExecution.SizeKind.saveProgramCompressed.name()).longValue() > 0);
+        });
+        sessions.then(r -> {
+            WorkflowRun b = r.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+            SemaphoreStep.success("wait/1", null);
+            r.assertLogContains("got saved", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+        });
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class ProgramStateProfileTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsRule r = new JenkinsRule();
+    @Rule public FlagRule<Integer> threshold = new FlagRule<>(() -> ProgramStateProfile.WARNING_THRESHOLD_MB, v -> ProgramStateProfile.WARNING_THRESHOLD_MB = v);
+
+    @Test public void profile() throws Exception {
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+            "def big = 'x' * 100000\n" +
+            "parallel a: {\n" +
+            "  semaphore 'a'\n" +
+            "}, b: {\n" +
+            "  def mine = big + 'y'\n" +
+            "  semaphore 'b'\n" +
+            "  echo(/${mine.length()}/)\n" +
+            "}", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("a/1", b);
+        SemaphoreStep.waitForStart("b/1", b);
+        ProgramStateProfile profile = ProgramStateProfile.of((CpsFlowExecution) b.getExecution());
+        assertThat(profile.getTotal(), greaterThan(200000L));
+        StringWriter w = new StringWriter();
+        profile.writeTo(new PrintWriter(w));
+        assertThat(w.toString(), containsString("java.lang.String"));
+        assertThat(w.toString(), containsString("WorkflowScript:6"));
+        SemaphoreStep.success("a/1", null);
+        SemaphoreStep.success("b/1", null);
+        r.assertLogContains("100001", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+    }
+
+    @Test public void warning() throws Exception {
+        ProgramStateProfile.WARNING_THRESHOLD_MB = 1;
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("def small = 'x'; semaphore 'small'; def big = 'x' * 2000000; semaphore 'big'; echo(/${big.length()}/)", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.success("small/1", null);
+        SemaphoreStep.waitForStart("big/1", b);
+        r.waitForMessage("Warning: the state of this Pipeline takes", b);
+        SemaphoreStep.success("big/1", null);
+        r.assertBuildStatusSuccess(r.waitForCompletion(b));
+    }
+
+}
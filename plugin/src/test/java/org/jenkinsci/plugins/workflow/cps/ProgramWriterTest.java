@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import java.io.File;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramWriterTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsSessionRule sessions = new JenkinsSessionRule();
+    @Rule public FlagRule<Boolean> async = new FlagRule<>(() -> ProgramWriter.ASYNC, v -> ProgramWriter.ASYNC = v);
+    @Rule public FlagRule<Boolean> deltas = new FlagRule<>(() -> DeltaCheckpoints.ENABLED, v -> DeltaCheckpoints.ENABLED = v);
+
+    @Test public void syncSave() throws Throwable {
+        resume(false, false);
+    }
+
+    @Test public void asyncSave() throws Throwable {
+        resume(true, false);
+    }
+
+    @Test public void asyncSaveWithDeltas() throws Throwable {
+        resume(true, true);
+    }
+
+    @Test public void flushWaitsForBackgroundWrite() throws Throwable {
+        sessions.then(r -> {
+            ProgramWriter.ASYNC = true;
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("semaphore 'wait'", true));
+            WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("wait/1", b);
+            CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+            e.waitForSuspension(); // snapshot taken and handed to the writer
+            e.programPromise.get().flushProgram();
+            assertTrue("written by the time flush returns", e.getProgramDataFile().isFile());
+            SemaphoreStep.success("wait/1", null);
+            r.assertBuildStatusSuccess(r.waitForCompletion(b));
+        });
+    }
+
+    private void resume(boolean async, boolean withDeltas) throws Throwable {
+        sessions.then(r -> {
+            ProgramWriter.ASYNC = async;
+            DeltaCheckpoints.ENABLED = withDeltas;
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition(
+                "def log = []\n" +
+                "for (int i = 0; i < 20; i++) {\n" +
+                "  log << \"step${i}\".toString()\n" +
+                "  echo(/at ${i}/)\n" +
+                "}\n" +
+                "semaphore 'wait'\n" +
+                "echo(/done ${log.size()} ${log[-1]}/)", true));
+            WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("wait/1", b);
+            CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+            while (!e.getProgramDataFile().isFile()) {
+                Thread.sleep(50); // written in the background
+            }
+            assertTrue(e.liveTimings.containsKey(CpsFlowExecution.TimingKind.saveProgramSnapshot.name()));
+            assertTrue(e.liveTimings.containsKey(CpsFlowExecution.TimingKind.saveProgramWrite.name()));
+        });
+        sessions.then(r -> {
+            WorkflowRun b = r.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+            SemaphoreStep.success("wait/1", null);
+            r.assertLogContains("done 20 step19", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+            File programDataFile = ((CpsFlowExecution) b.getExecution()).getProgramDataFile();
+            assertFalse(programDataFile.exists());
+            assertFalse(DeltaCheckpoints.deltaFile(programDataFile).exists());
+            File[] leftovers = programDataFile.getParentFile().listFiles((dir, name) -> name.startsWith("atomic"));
+            assertTrue(leftovers == null || leftovers.length == 0);
+        });
+    }
+}
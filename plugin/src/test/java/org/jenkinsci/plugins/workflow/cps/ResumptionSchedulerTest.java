@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertTrue;
+
+public class ResumptionSchedulerTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsSessionRule sessions = new JenkinsSessionRule();
+    @Rule public FlagRule<Integer> concurrency = new FlagRule<>(() -> ResumptionScheduler.CONCURRENCY, v -> ResumptionScheduler.CONCURRENCY = v);
+
+    @Test public void boundedResumption() throws Throwable {
+        sessions.then(r -> {
+            for (int i = 0; i < 3; i++) {
+                WorkflowJob p = r.createProject(WorkflowJob.class, "p" + i);
+                p.setDefinition(new CpsFlowDefinition("semaphore 'wait'; echo 'resumed'", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait/" + (i + 1), b);
+            }
+            ResumptionScheduler.CONCURRENCY = 1;
+        });
+        sessions.then(r -> {
+            for (int i = 0; i < 3; i++) {
+                SemaphoreStep.success("wait/" + (i + 1), null);
+            }
+            for (int i = 0; i < 3; i++) {
+                WorkflowRun b = r.jenkins.getItemByFullName("p" + i, WorkflowJob.class).getBuildByNumber(1);
+                r.assertLogContains("resumed", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+                CpsFlowExecution e = (CpsFlowExecution) b.getExecution();
+                assertTrue(e.liveTimings.containsKey(CpsFlowExecution.TimingKind.load.name()));
+                assertTrue(e.liveTimings.containsKey(CpsFlowExecution.TimingKind.loadQueue.name()));
+            }
+            StringWriter w = new StringWriter();
+            ResumptionScheduler.get().writeStatus(new PrintWriter(w));
+            assertThat(w.toString(), containsString("p0 #1"));
+        });
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.logging.Level;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+import org.jvnet.hudson.test.LoggerRule;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptClassCacheTest {
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsSessionRule sessions = new JenkinsSessionRule();
+    @Rule public FlagRule<Boolean> enabled = new FlagRule<>(() -> ScriptClassCache.ENABLED, v -> ScriptClassCache.ENABLED = v);
+    @Rule public LoggerRule logging = new LoggerRule().record(CpsGroovyShell.class, Level.FINE).capture(100);
+
+    @Test public void resumeFromCache() throws Throwable {
+        start();
+        sessions.then(r -> {
+            WorkflowRun b = r.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+            SemaphoreStep.success("wait/1", null);
+            r.assertLogContains("got 42 from lib", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+            assertThat(logging.getMessages(), hasItem("defining cached classes of WorkflowScript"));
+            assertThat(logging.getMessages(), hasItem("defining cached classes of Script1"));
+            assertFalse(ScriptClassCache.file((CpsFlowExecution) b.getExecution()).exists());
+        });
+    }
+
+    @Test public void tamperedCacheIgnored() throws Throwable {
+        start();
+        sessions.then(r -> {
+            WorkflowRun b = r.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+            // corrupt the cache before the build is resumed
+            try (RandomAccessFile raf = new RandomAccessFile(new File(b.getRootDir(), "script-classes.dat"), "rw")) {
+                raf.seek(raf.length() - 1);
+                raf.write(raf.read() ^ 0xFF);
+            }
+        });
+        sessions.then(r -> {
+            WorkflowRun b = r.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+            SemaphoreStep.success("wait/1", null);
+            r.assertLogContains("got 42 from lib", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+            assertThat(logging.getMessages(), not(hasItem("defining cached classes of WorkflowScript")));
+        });
+    }
+
+    private void start() throws Throwable {
+        sessions.then(r -> {
+            ScriptClassCache.ENABLED = true;
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            r.jenkins.getWorkspaceFor(p).child("lib.groovy").write("class Helper {int answer() {42}}; def call() {new Helper().answer()}; return this", null);
+            p.setDefinition(new CpsFlowDefinition(
+                "def lib\n" +
+                "node {lib = load 'lib.groovy'}\n" +
+                "semaphore 'wait'\n" +
+                "echo(/got ${lib()} from lib/)", true));
+            WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("wait/1", b);
+            assertTrue(ScriptClassCache.file((CpsFlowExecution) b.getExecution()).isFile());
+        });
+    }
+
+}
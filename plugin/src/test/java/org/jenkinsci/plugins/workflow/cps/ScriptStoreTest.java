@@ -0,0 +1,155 @@
+package org.jenkinsci.plugins.workflow.cps;
+
+import hudson.model.Result;
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.workflow.cps.replay.ReplayAction;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.FlagRule;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptStoreTest {
+
+    private static final String LIB = "def call() {'from lib'}; return this";
+    private static final String SCRIPT =
+        "def lib\n" +
+        "node {lib = load 'lib.groovy'}\n" +
+        "semaphore 'wait'\n" +
+        "echo(/got ${lib()}/)";
+
+    @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
+    @Rule public JenkinsSessionRule sessions = new JenkinsSessionRule();
+    @Rule public FlagRule<Boolean> enabled = new FlagRule<>(() -> ScriptStore.ENABLED, v -> ScriptStore.ENABLED = v);
+
+    @Test public void scriptsStoredByHash() throws Throwable {
+        sessions.then(r -> {
+            ScriptStore.ENABLED = true;
+            WorkflowJob p = start(r);
+            WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("wait/2", b2);
+            for (WorkflowRun b : new WorkflowRun[] {p.getBuildByNumber(1), b2}) {
+                b.save();
+                String xml = Files.readString(new File(b.getRootDir(), "build.xml").toPath(), StandardCharsets.UTF_8);
+                assertThat(xml, containsString("<scriptRef>" + ScriptStore.hash(SCRIPT) + "</scriptRef>"));
+                assertThat(xml, not(containsString("from lib")));
+            }
+            // one copy each of the main script and the loaded script, shared by both builds
+            assertThat(new File(p.getRootDir(), "scripts").list(), arrayWithSize(2));
+        });
+        sessions.then(r -> {
+            WorkflowJob p = r.jenkins.getItemByFullName("p", WorkflowJob.class);
+            WorkflowRun b = p.getBuildByNumber(1);
+            ReplayAction replay = b.getAction(ReplayAction.class);
+            assertEquals(SCRIPT, replay.getOriginalScript());
+            assertEquals(Map.of("Script1", LIB), replay.getOriginalLoadedScripts());
+            SemaphoreStep.success("wait/1", null);
+            SemaphoreStep.success("wait/2", null);
+            r.assertLogContains("got from lib", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+            r.assertLogContains("got from lib", r.assertBuildStatusSuccess(r.waitForCompletion(p.getBuildByNumber(2))));
+        });
+    }
+
+    @Test public void hashesRememberedBetweenSaves() throws Throwable {
+        sessions.then(r -> {
+            ScriptStore.ENABLED = true;
+            WorkflowJob p = start(r);
+            WorkflowRun b = p.getBuildByNumber(1);
+            b.save();
+            File scripts = new File(p.getRootDir(), "scripts");
+            assertThat(scripts.list(), arrayWithSize(2));
+            FileUtils.deleteDirectory(scripts);
+            b.save();
+            assertFalse("scripts neither hashed nor stored again", scripts.exists());
+            assertThat(Files.readString(new File(b.getRootDir(), "build.xml").toPath(), StandardCharsets.UTF_8),
+                containsString("<scriptRef>" + ScriptStore.hash(SCRIPT) + "</scriptRef>"));
+            ((CpsFlowExecution) b.getExecution()).addLoadedScript("Script2", "return this");
+            b.save();
+            assertThat("loaded scripts stored again once changed", scripts.list(), arrayWithSize(2));
+            SemaphoreStep.success("wait/1", null);
+            r.assertBuildStatusSuccess(r.waitForCompletion(b));
+        });
+    }
+
+    @Test public void inlineScriptsStillRead() throws Throwable {
+        sessions.then(r -> {
+            start(r);
+            ScriptStore.ENABLED = true;
+        });
+        sessions.then(r -> {
+            WorkflowJob p = r.jenkins.getItemByFullName("p", WorkflowJob.class);
+            WorkflowRun b = p.getBuildByNumber(1);
+            assertEquals(SCRIPT, b.getAction(ReplayAction.class).getOriginalScript());
+            SemaphoreStep.success("wait/1", null);
+            r.assertLogContains("got from lib", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+        });
+    }
+
+    @Test public void missingScriptFailsResume() throws Throwable {
+        sessions.then(r -> {
+            ScriptStore.ENABLED = true;
+            WorkflowJob p = start(r);
+            p.getBuildByNumber(1).save();
+            FileUtils.deleteDirectory(new File(p.getRootDir(), "scripts"));
+        });
+        sessions.then(r -> {
+            WorkflowJob p = r.jenkins.getItemByFullName("p", WorkflowJob.class);
+            WorkflowRun b = p.getBuildByNumber(1);
+            r.assertBuildStatus(Result.FAILURE, r.waitForCompletion(b));
+            r.assertLogContains("Cannot read the Pipeline scripts of", b);
+            r.assertLogContains("is missing from the store", b);
+            assertThrows(UncheckedIOException.class, () -> b.getAction(ReplayAction.class).getOriginalScript());
+        });
+    }
+
+    @Test public void unusedScriptsDeleted() throws Throwable {
+        sessions.then(r -> {
+            ScriptStore.ENABLED = true;
+            WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("echo 'one'", true));
+            WorkflowRun b1 = r.buildAndAssertSuccess(p);
+            p.setDefinition(new CpsFlowDefinition("echo 'two'", true));
+            r.buildAndAssertSuccess(p);
+            File scripts = new File(p.getRootDir(), "scripts");
+            assertThat(scripts.list(), arrayWithSize(2));
+            for (File f : scripts.listFiles()) {
+                assertTrue(f.setLastModified(0));
+            }
+            ScriptStore.of(p).sweep(p.getBuildDir());
+            assertThat("both still in use", scripts.list(), arrayWithSize(2));
+            b1.delete();
+            ScriptStore.of(p).sweep(p.getBuildDir());
+            assertThat(scripts.list(), arrayContaining(ScriptStore.hash("echo 'two'") + ".groovy"));
+        });
+    }
+
+    private static WorkflowJob start(JenkinsRule r) throws Exception {
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        r.jenkins.getWorkspaceFor(p).child("lib.groovy").write(LIB, null);
+        p.setDefinition(new CpsFlowDefinition(SCRIPT, true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+        return p;
+    }
+
+}
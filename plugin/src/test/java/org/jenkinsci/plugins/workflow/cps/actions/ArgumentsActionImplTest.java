@@ -53,6 +53,7 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -77,6 +78,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -176,6 +178,47 @@ public class ArgumentsActionImplTest {
         assertThat("EnvVars that do not occur are safe", ArgumentsActionImpl.replaceSensitiveVariables("I have no passwords", new EnvVars(passwordBinding), sensitiveVariables), is("I have no passwords"));
     }
 
+    @Test
+    public void secretMasker() {
+        EnvVars env = new EnvVars();
+        Set<String> sensitiveVariables = new LinkedHashSet<>();
+        for (int i = 0; i < 40; i++) {
+            env.put("SECRET" + i, "s3cr3t-" + i + "-value");
+            sensitiveVariables.add("SECRET" + i);
+        }
+        env.put("SHORT", "s3cr3t");
+        env.put("EMPTY", "");
+        env.put("PLAIN", "not secret");
+        sensitiveVariables.add("SHORT");
+        sensitiveVariables.add("EMPTY");
+        SecretMasker masker = SecretMasker.of(env, sensitiveVariables, null);
+        assertThat(masker.mask("echo s3cr3t-7-value and s3cr3t-39-value|s3cr3t-7-value"), is("echo ${SECRET7} and ${SECRET39}|${SECRET7}"));
+        assertThat("longest match wins", masker.mask("xs3cr3t-1-valuex s3cr3t-1-"), is("x${SECRET1}x ${SHORT}-1-"));
+        assertThat("nothing to mask", masker.mask("not secret"), is("not secret"));
+        assertThat(masker.mask(""), is(""));
+        assertThat("same as replacing in turn", masker.mask("s3cr3t-2-value"), is(ArgumentsActionImpl.replaceSensitiveVariables("s3cr3t-2-value", env, Set.of("SECRET2"))));
+        assertThat("reused for same values", SecretMasker.of(new EnvVars(env), sensitiveVariables, masker), sameInstance(masker));
+        env.put("SHORT", "other");
+        assertThat("rebuilt when values change", SecretMasker.of(env, sensitiveVariables, masker), not(sameInstance(masker)));
+        Map<String, String> duplicate = new HashMap<>();
+        duplicate.put("A", "dup");
+        duplicate.put("B", "dup");
+        assertThat("first variable wins", SecretMasker.of(new EnvVars(duplicate), new LinkedHashSet<>(List.of("B", "A")), null).mask("a dup"), is("a ${B}"));
+    }
+
+    @Test
+    public void secretsNotRetained() throws Exception {
+        EnvVars env = new EnvVars();
+        env.put("SECRET", "s3cr3t");
+        Set<String> sensitiveVariables = Set.of("SECRET");
+        SecretMasker masker = SecretMasker.of(env, sensitiveVariables, null);
+        ArgumentsActionImpl impl = new ArgumentsActionImpl(Map.of("text", "echo s3cr3t"), env, sensitiveVariables, masker);
+        assertThat(impl.getArguments().get("text"), is("echo ${SECRET}"));
+        Field f = ArgumentsActionImpl.class.getDeclaredField("masker");
+        f.setAccessible(true);
+        Assert.assertNull("masker holding the secret values is dropped once arguments are sanitized", f.get(impl));
+    }
+
     @Test
     public void testRecursiveSanitizationOfContent() {
         EnvVars env = new EnvVars();
@@ -23,16 +23,35 @@
  */
 package org.jenkinsci.plugins.workflow.cps.nodes;
 
+import hudson.ExtensionList;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import java.util.Set;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.cps.steps.LoadStep;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.EchoStep;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.TimeoutStep;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
+import org.jvnet.hudson.test.FlagRule;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class StepDescriptorCacheTest {
     @Rule
     public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public FlagRule<Boolean> instantiatorEnabled = new FlagRule<>(() -> StepInstantiator.ENABLED, v -> StepInstantiator.ENABLED = v);
 
     @Test
     public void testStepDescriptorCache() {
@@ -46,4 +65,73 @@ public class StepDescriptorCacheTest {
         nullDescriptor = cache.getDescriptor(null);
         Assert.assertNull(nullDescriptor);
     }
+
+    @Test
+    public void testDispatch() {
+        StepDescriptorCache cache = StepDescriptorCache.getPublicCache();
+        StepDescriptorCache.Dispatch echo = cache.getDispatch(ExtensionList.lookupSingleton(EchoStep.DescriptorImpl.class));
+        Assert.assertTrue(echo.singleArgumentOnly);
+        Assert.assertEquals("message", echo.soleArgumentKey);
+        Assert.assertFalse(echo.requiresBody);
+        Assert.assertSame(echo, cache.getDispatch(echo.descriptor));
+
+        StepDescriptorCache.Dispatch timeout = cache.getDispatch(ExtensionList.lookupSingleton(TimeoutStep.DescriptorImpl.class));
+        Assert.assertTrue(timeout.requiresBody);
+        Assert.assertFalse(timeout.singleArgumentOnly);
+
+        cache.invalidateAll();
+        Assert.assertNotSame(echo, cache.getDispatch(echo.descriptor));
+    }
+
+    @Test
+    public void instantiatorThroughDsl() throws Exception {
+        StepInstantiator.ENABLED = true;
+        StepDescriptorCache.getPublicCache().invalidateAll();
+        WorkflowJob p = r.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("checkedEcho 'one'; checkedEcho value: 'two', suffix: '!'", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("checked one", b);
+        r.assertLogContains("checked two!", b);
+        p.setDefinition(new CpsFlowDefinition("checkedEcho ''", true));
+        b = r.buildAndAssertStatus(Result.FAILURE, p);
+        r.assertLogContains("Could not instantiate {value=} for " + CheckedEchoStep.class.getName(), b);
+        r.assertLogContains("value must not be empty", b);
+    }
+
+    public static final class CheckedEchoStep extends Step {
+        final String value;
+        String suffix = "";
+        @DataBoundConstructor public CheckedEchoStep(String value) {
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("value must not be empty");
+            }
+            this.value = value;
+        }
+        @DataBoundSetter public void setSuffix(String suffix) {
+            this.suffix = suffix;
+        }
+        @Override public StepExecution start(StepContext context) {
+            return new Execution(context, "checked " + value + suffix);
+        }
+        private static final class Execution extends SynchronousStepExecution<Void> {
+            private static final long serialVersionUID = 1;
+            private final String message;
+            Execution(StepContext context, String message) {
+                super(context);
+                this.message = message;
+            }
+            @Override protected Void run() throws Exception {
+                getContext().get(TaskListener.class).getLogger().println(message);
+                return null;
+            }
+        }
+        @TestExtension("instantiatorThroughDsl") public static final class DescriptorImpl extends StepDescriptor {
+            @Override public String getFunctionName() {
+                return "checkedEcho";
+            }
+            @Override public Set<? extends Class<?>> getRequiredContext() {
+                return Set.of(TaskListener.class);
+            }
+        }
+    }
 }
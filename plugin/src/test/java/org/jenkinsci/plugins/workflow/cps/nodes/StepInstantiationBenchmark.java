@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.workflow.cps.nodes;
+
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.structs.describable.DescribableModel;
+import org.jenkinsci.plugins.workflow.steps.EchoStep;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creates steps from named arguments, as {@link StepDescriptorCache.Dispatch#newInstance} does for every step call,
+ * through {@link DescribableModel} and through {@link StepInstantiator}.
+ *
+ * <p>
+ * {@code echo} has a single string argument; {@code simple} has a constructor parameter and setters of several simple types;
+ * {@code nested} passes a map for a nested describable, which {@link StepInstantiator} leaves to {@link DescribableModel}.
+ * Run with {@code -Dbenchmark} through {@link StepInstantiatorTest#benchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StepInstantiationBenchmark {
+
+    @Param({"echo", "simple", "nested"})
+    public String step;
+
+    private DescribableModel<? extends Step> model;
+    private StepInstantiator instantiator;
+    private Map<String, Object> arguments;
+
+    @Setup
+    public void setUp() {
+        Class<? extends Step> clazz;
+        switch (step) {
+        case "echo":
+            clazz = EchoStep.class;
+            arguments = Map.of("message", "hello");
+            break;
+        case "simple":
+            clazz = SimpleStep.class;
+            arguments = Map.of("name", "x", "count", 3, "verbose", true, "mode", Speed.FAST);
+            break;
+        case "nested":
+            clazz = NestedStep.class;
+            arguments = Map.of("inner", Map.of("name", "x"), "count", 3);
+            break;
+        default:
+            throw new IllegalArgumentException(step);
+        }
+        model = DescribableModel.of(clazz);
+        instantiator = StepInstantiator.of(clazz);
+        if (instantiator == null) {
+            throw new IllegalStateException("no instantiator for " + clazz);
+        }
+    }
+
+    @Benchmark
+    public Step describableModel() throws Exception {
+        return model.instantiate(arguments, null);
+    }
+
+    @Benchmark
+    public Step methodHandles() throws Exception {
+        Step s = instantiator.instantiate(arguments);
+        return s != null ? s : model.instantiate(arguments, null);
+    }
+
+    public enum Speed {FAST, SLOW}
+
+    public static final class SimpleStep extends Step {
+        public final String name;
+        int count;
+        boolean verbose;
+        Speed mode;
+        @DataBoundConstructor public SimpleStep(String name) {
+            this.name = name;
+        }
+        @DataBoundSetter public void setCount(int count) {
+            this.count = count;
+        }
+        @DataBoundSetter public void setVerbose(boolean verbose) {
+            this.verbose = verbose;
+        }
+        @DataBoundSetter public void setMode(Speed mode) {
+            this.mode = mode;
+        }
+        @Override public StepExecution start(StepContext context) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static final class NestedStep extends Step {
+        public final Inner inner;
+        @DataBoundSetter public int count;
+        @DataBoundConstructor public NestedStep(Inner inner) {
+            this.inner = inner;
+        }
+        @Override public StepExecution start(StepContext context) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static final class Inner extends AbstractDescribableImpl<Inner> {
+        public final String name;
+        @DataBoundConstructor public Inner(String name) {
+            this.name = name;
+        }
+        public static final class DescriptorImpl extends Descriptor<Inner> {}
+    }
+
+}
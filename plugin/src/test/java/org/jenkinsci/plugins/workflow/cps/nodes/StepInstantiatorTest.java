@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.workflow.cps.nodes;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.steps.EchoStep;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.junit.Assume;
+import org.junit.Test;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class StepInstantiatorTest {
+
+    @Test public void simpleArguments() throws Exception {
+        StepInstantiator instantiator = StepInstantiator.of(StepInstantiationBenchmark.SimpleStep.class);
+        assertNotNull(instantiator);
+        StepInstantiationBenchmark.SimpleStep s = (StepInstantiationBenchmark.SimpleStep) instantiator.instantiate(
+            Map.of("name", "x", "count", 3, "verbose", true, "mode", StepInstantiationBenchmark.Speed.SLOW));
+        assertEquals("x", s.name);
+        assertEquals(3, s.count);
+        assertEquals(true, s.verbose);
+        assertEquals(StepInstantiationBenchmark.Speed.SLOW, s.mode);
+        s = (StepInstantiationBenchmark.SimpleStep) instantiator.instantiate(Map.of());
+        assertNull(s.name);
+        assertEquals(0, s.count);
+        EchoStep echo = (EchoStep) StepInstantiator.of(EchoStep.class).instantiate(Map.of("message", "hello"));
+        assertEquals("hello", echo.getMessage());
+    }
+
+    @Test public void coercionLeftToDescribableModel() throws Exception {
+        StepInstantiator instantiator = StepInstantiator.of(StepInstantiationBenchmark.SimpleStep.class);
+        assertThat("enum from string", instantiator.instantiate(Map.of("name", "x", "mode", "FAST")), nullValue());
+        assertThat("long to int", instantiator.instantiate(Map.of("name", "x", "count", 3L)), nullValue());
+        assertThat("unknown", instantiator.instantiate(Map.of("name", "x", "bogus", 1)), nullValue());
+        StepInstantiator nested = StepInstantiator.of(StepInstantiationBenchmark.NestedStep.class);
+        assertThat(nested.instantiate(Map.of("inner", Map.of("name", "x"))), nullValue());
+        assertThat(nested.instantiate(Map.of("count", 1)), is(instanceOf(StepInstantiationBenchmark.NestedStep.class)));
+    }
+
+    @Test public void constructorRunsOnce() throws Exception {
+        StepInstantiator instantiator = StepInstantiator.of(ValidatingStep.class);
+        ValidatingStep.constructed = 0;
+        assertThrows(IllegalArgumentException.class, () -> instantiator.instantiate(Map.of("value", "")));
+        assertEquals(1, ValidatingStep.constructed);
+        assertEquals("ok", ((ValidatingStep) instantiator.instantiate(Map.of("value", "ok"))).value);
+        assertEquals(2, ValidatingStep.constructed);
+    }
+
+    public static final class ValidatingStep extends Step {
+        static int constructed;
+        final String value;
+        @DataBoundConstructor public ValidatingStep(String value) {
+            constructed++;
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("value must not be empty");
+            }
+            this.value = value;
+        }
+        @Override public StepExecution start(StepContext context) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** Runs {@link StepInstantiationBenchmark}: {@code mvn -pl plugin test -Dtest=StepInstantiatorTest#benchmark -Dbenchmark} */
+    @Test public void benchmark() throws Exception {
+        Assume.assumeNotNull(System.getProperty("benchmark"));
+        new Runner(new OptionsBuilder()
+            .include(StepInstantiationBenchmark.class.getName())
+            .timeUnit(TimeUnit.MICROSECONDS)
+            .resultFormat(ResultFormatType.JSON)
+            .result("target/jmh-step-instantiation.json")
+            .build()).run();
+    }
+
+}